@@ -0,0 +1,31 @@
+package org.synth.intercept.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.synth.intercept.NativeInterceptorAgent;
+
+/**
+ * Measures the startup cost of {@link NativeInterceptorAgent#enable()}, i.e. attaching the agent
+ * to the current VM. Each fork is a fresh VM that attaches exactly once, so there is no warmup and
+ * the score is the cold time to attach, averaged over the forks.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(5)
+public class AttachBenchmark
+{
+    @Benchmark
+    public void enable()
+    {
+        NativeInterceptorAgent.enable();
+    }
+}
@@ -0,0 +1,178 @@
+package org.synth.intercept.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.synth.intercept.GlobClassnameFilter;
+import org.synth.intercept.NativeInterceptorAgent;
+import org.synth.intercept.NativeWrappingTransformer;
+
+/**
+ * Measures what the agent costs at startup, by loading thousands of generated classes through a
+ * fresh class loader, with the bytes of each class passed through the wrapping transformer first
+ * as the agent would. A given percentage of the classes have native methods of varied signatures,
+ * and the rest have only plain methods. The scores are per class: {@code load} reports classes
+ * loaded per second, whose reciprocal is the time per class, and {@code transform} reports the
+ * transformer alone. Run with {@code -prof gc} to see the bytes allocated per class.
+ *
+ * The {@code agent} parameter selects what is done to the bytes: nothing ({@code none}), wrapping
+ * ({@code wrap}), or wrapping and intercepting at load ({@code eager}), which also runs the
+ * intercepting class adapter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassLoadingBenchmark
+{
+    /**
+     * The number of generated classes.
+     */
+    private static final int CLASSES = 2000;
+
+    /**
+     * The package of the generated classes.
+     */
+    private static final String PACKAGE = "org/synth/intercept/bench/generated/";
+
+    /**
+     * The signatures of the generated native methods.
+     */
+    private static final String[] NATIVE_DESCRIPTORS = new String[] {
+        "()V", "(I)I", "(JID)J", "(Ljava/lang/Object;)Ljava/lang/Object;", "([I)[I",
+        "(Ljava/lang/String;Z)Ljava/lang/String;", "(FFF)F", "([BII)V"
+    };
+
+    @Param({ "none", "wrap", "eager" })
+    public String agent;
+
+    @Param({ "10" })
+    public int nativePercent;
+
+    private final String[] names = new String[ClassLoadingBenchmark.CLASSES];
+    private final byte[][] classes = new byte[ClassLoadingBenchmark.CLASSES][];
+    private final NativeWrappingTransformer transformer = new NativeWrappingTransformer();
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        for (int i = 0; i < ClassLoadingBenchmark.CLASSES; i++)
+        {
+            this.names[i] = ClassLoadingBenchmark.PACKAGE + "Synthetic" + i;
+            this.classes[i] = ClassLoadingBenchmark.generate(this.names[i], i % 100 < this.nativePercent ? 1 + i % 3 : 0, i);
+        }
+        if ("eager".equals(this.agent))
+            NativeInterceptorAgent.setEagerFilter(new GlobClassnameFilter(ClassLoadingBenchmark.PACKAGE.replace('/', '.') + "**"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        NativeInterceptorAgent.setEagerFilter(null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ClassLoadingBenchmark.CLASSES)
+    public void load(final Blackhole blackhole) throws Exception
+    {
+        final Loader loader = new Loader(ClassLoadingBenchmark.class.getClassLoader());
+        for (int i = 0; i < ClassLoadingBenchmark.CLASSES; i++)
+            blackhole.consume(loader.define(this.names[i], this.transform(i)));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ClassLoadingBenchmark.CLASSES)
+    public void transform(final Blackhole blackhole) throws Exception
+    {
+        for (int i = 0; i < ClassLoadingBenchmark.CLASSES; i++)
+            blackhole.consume(this.transform(i));
+    }
+
+    /**
+     * Get the bytes of a generated class as the agent would leave them.
+     */
+    private byte[] transform(final int i) throws Exception
+    {
+        if ("none".equals(this.agent))
+            return this.classes[i];
+        final byte[] transformed = this.transformer.transform(null, this.names[i], null, null, this.classes[i]);
+        return transformed == null ? this.classes[i] : transformed;
+    }
+
+    /**
+     * Generate a class with a field, a constructor, some plain methods and the given number of
+     * native methods, whose signatures vary with the seed.
+     */
+    private static byte[] generate(final String name, final int natives, final int seed)
+    {
+        final ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, "java/lang/Object", null);
+        writer.visitField(Opcodes.ACC_PRIVATE, "value", "I", null, null).visitEnd();
+        MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        method.visitCode();
+        method.visitVarInsn(Opcodes.ALOAD, 0);
+        method.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        method.visitInsn(Opcodes.RETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+        method = writer.visitMethod(Opcodes.ACC_PUBLIC, "getValue", "()I", null, null);
+        method.visitCode();
+        method.visitVarInsn(Opcodes.ALOAD, 0);
+        method.visitFieldInsn(Opcodes.GETFIELD, name, "value", "I");
+        method.visitInsn(Opcodes.IRETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+        method = writer.visitMethod(Opcodes.ACC_PUBLIC, "add", "(I)I", null, null);
+        method.visitCode();
+        method.visitVarInsn(Opcodes.ALOAD, 0);
+        method.visitFieldInsn(Opcodes.GETFIELD, name, "value", "I");
+        method.visitVarInsn(Opcodes.ILOAD, 1);
+        method.visitInsn(Opcodes.IADD);
+        method.visitInsn(Opcodes.IRETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+        for (int i = 0; i < natives; i++)
+        {
+            final int access = Opcodes.ACC_PUBLIC | Opcodes.ACC_NATIVE | (i % 2 == 0 ? 0 : Opcodes.ACC_STATIC);
+            final String desc = ClassLoadingBenchmark.NATIVE_DESCRIPTORS[(seed + i) % ClassLoadingBenchmark.NATIVE_DESCRIPTORS.length];
+            writer.visitMethod(access, "native" + i, desc, null, null).visitEnd();
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * A class loader that defines the generated classes.
+     */
+    static final class Loader extends ClassLoader
+    {
+        Loader(final ClassLoader parent)
+        {
+            super(parent);
+        }
+
+        Class<?> define(final String name, final byte[] bytes)
+        {
+            return this.defineClass(name.replace('/', '.'), bytes, 0, bytes.length);
+        }
+    }
+}
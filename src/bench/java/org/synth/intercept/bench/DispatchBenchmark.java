@@ -0,0 +1,234 @@
+package org.synth.intercept.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.synth.intercept.DispatchMode;
+import org.synth.intercept.NativeFrame;
+import org.synth.intercept.NativeInvocationHandler;
+import org.synth.intercept.NativeMethod;
+import org.synth.intercept.PrimitiveInvocationHandler;
+
+/**
+ * Compares the cost of dispatching an intercepted method to its handler in each
+ * {@link DispatchMode} against calling a plain Java implementation of the same method, for each
+ * return type (void, primitive, object and array) and for several arities. {@link DispatchMode#STATIC} is the reflective dispatch
+ * through the shared {@link NativeInvocationHandler} methods.
+ *
+ * The benchmarks run on a single thread, and again on several threads in {@link Contended}, to
+ * show how dispatch scales when the handler and its method are shared. Run them with the GC
+ * profiler (as the <code>bench-suite</code> target does) to see what each mode allocates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class DispatchBenchmark
+{
+    @Param({ "STATIC", "LINKED", "PRIMITIVE" })
+    public DispatchMode mode;
+
+    private DispatchTarget intercepted;
+    private DispatchTarget direct;
+    private Object arg;
+    private int[] arrayArg;
+    private int intArg;
+    private long longArg;
+    private double doubleArg;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        final Class<?> type = Instrumented.intercept(DispatchData.class, this.mode);
+        NativeInvocationHandler.registerHandler(type,
+            this.mode == DispatchMode.PRIMITIVE ? new PrimitiveHandler() : new Handler());
+        this.intercepted = (DispatchTarget)type.newInstance();
+        this.direct = new Direct();
+        this.arg = new Object();
+        this.arrayArg = new int[] { 1, 2, 3 };
+        this.intArg = 42;
+        this.longArg = 1234567890123L;
+        this.doubleArg = 0.5;
+    }
+
+    @Benchmark
+    public void directVoidNoArgs()
+    {
+        this.direct.voidNoArgs();
+    }
+
+    @Benchmark
+    public int directIntOneArg()
+    {
+        return this.direct.intOneArg(this.intArg);
+    }
+
+    @Benchmark
+    public long directLongThreeArgs()
+    {
+        return this.direct.longThreeArgs(this.longArg, this.intArg, this.doubleArg);
+    }
+
+    @Benchmark
+    public Object directObjectOneArg()
+    {
+        return this.direct.objectOneArg(this.arg);
+    }
+
+    @Benchmark
+    public Object directObjectThreeArgs()
+    {
+        return this.direct.objectThreeArgs(this.arg, this.arg, this.arg);
+    }
+
+    @Benchmark
+    public int[] directArrayOneArg()
+    {
+        return this.direct.arrayOneArg(this.arrayArg);
+    }
+
+    @Benchmark
+    public void interceptedVoidNoArgs()
+    {
+        this.intercepted.voidNoArgs();
+    }
+
+    @Benchmark
+    public int interceptedIntOneArg()
+    {
+        return this.intercepted.intOneArg(this.intArg);
+    }
+
+    @Benchmark
+    public long interceptedLongThreeArgs()
+    {
+        return this.intercepted.longThreeArgs(this.longArg, this.intArg, this.doubleArg);
+    }
+
+    @Benchmark
+    public Object interceptedObjectOneArg()
+    {
+        return this.intercepted.objectOneArg(this.arg);
+    }
+
+    @Benchmark
+    public Object interceptedObjectThreeArgs()
+    {
+        return this.intercepted.objectThreeArgs(this.arg, this.arg, this.arg);
+    }
+
+    @Benchmark
+    public int[] interceptedArrayOneArg()
+    {
+        return this.intercepted.arrayOneArg(this.arrayArg);
+    }
+
+    /**
+     * The same benchmarks, run on several threads at once.
+     */
+    @Threads(4)
+    public static class Contended extends DispatchBenchmark
+    {
+    }
+
+    /**
+     * The handler registered for the intercepted methods. It does the same work as {@link Direct}.
+     */
+    static final class Handler implements InvocationHandler
+    {
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+        {
+            final Class<?> returnType = method.getReturnType();
+            if (returnType == void.class)
+                return null;
+            if (returnType == int.class)
+                return Integer.valueOf(((Integer)args[0]).intValue() + 1);
+            if (returnType == long.class)
+                return Long.valueOf(((Long)args[0]).longValue() + ((Integer)args[1]).intValue() +
+                                    (long)((Double)args[2]).doubleValue());
+            return args[args.length - 1];
+        }
+    }
+
+    /**
+     * The same handler as {@link Handler}, implemented without boxing for
+     * {@link DispatchMode#PRIMITIVE} mode.
+     */
+    static final class PrimitiveHandler extends PrimitiveInvocationHandler
+    {
+        @Override
+        public void invokeVoid(final Object proxy, final NativeMethod method, final NativeFrame args)
+        {
+        }
+
+        @Override
+        public int invokeInt(final Object proxy, final NativeMethod method, final NativeFrame args)
+        {
+            return args.getInt(0) + 1;
+        }
+
+        @Override
+        public long invokeLong(final Object proxy, final NativeMethod method, final NativeFrame args)
+        {
+            return args.getLong(0) + args.getInt(1) + (long)args.getDouble(2);
+        }
+
+        @Override
+        public Object invokeObject(final Object proxy, final NativeMethod method, final NativeFrame args)
+        {
+            return args.getObject(args.size() - 1);
+        }
+    }
+
+    /**
+     * A plain Java implementation of the benchmarked methods.
+     */
+    static final class Direct implements DispatchTarget
+    {
+        public void voidNoArgs()
+        {
+        }
+
+        public int intOneArg(final int a)
+        {
+            return a + 1;
+        }
+
+        public long longThreeArgs(final long a, final int b, final double c)
+        {
+            return a + b + (long)c;
+        }
+
+        public Object objectOneArg(final Object a)
+        {
+            return a;
+        }
+
+        public Object objectThreeArgs(final Object a, final Object b, final Object c)
+        {
+            return c;
+        }
+
+        public int[] arrayOneArg(final int[] a)
+        {
+            return a;
+        }
+    }
+}
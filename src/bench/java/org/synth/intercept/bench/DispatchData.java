@@ -0,0 +1,20 @@
+package org.synth.intercept.bench;
+
+/**
+ * The native methods intercepted by the dispatch benchmarks. This class is never loaded
+ * directly, only through {@link Instrumented}.
+ */
+public class DispatchData implements DispatchTarget
+{
+    public native void voidNoArgs();
+
+    public native int intOneArg(int a);
+
+    public native long longThreeArgs(long a, int b, double c);
+
+    public native Object objectOneArg(Object a);
+
+    public native Object objectThreeArgs(Object a, Object b, Object c);
+
+    public native int[] arrayOneArg(int[] a);
+}
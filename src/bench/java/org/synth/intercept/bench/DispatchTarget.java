@@ -0,0 +1,21 @@
+package org.synth.intercept.bench;
+
+/**
+ * The interface the benchmarks use to call the methods of {@link DispatchData}, since the
+ * transformed copies of that class are loaded by their own class loaders. It has one method for
+ * each combination of return type and arity that is measured.
+ */
+public interface DispatchTarget
+{
+    void voidNoArgs();
+
+    int intOneArg(int a);
+
+    long longThreeArgs(long a, int b, double c);
+
+    Object objectOneArg(Object a);
+
+    Object objectThreeArgs(Object a, Object b, Object c);
+
+    int[] arrayOneArg(int[] a);
+}
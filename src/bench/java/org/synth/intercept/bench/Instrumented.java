@@ -0,0 +1,90 @@
+package org.synth.intercept.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
+import org.synth.intercept.DispatchMode;
+import org.synth.intercept.NativeInterceptingClassAdapter;
+import org.synth.intercept.NativeWrappingClassAdapter;
+
+/**
+ * Loads benchmark data classes after running them through the wrapping and intercepting
+ * transformations. This allows the benchmarks to compare dispatch modes in a single VM without
+ * attaching the agent.
+ */
+public final class Instrumented
+{
+    private Instrumented()
+    {
+    }
+
+    /**
+     * Load a wrapped and intercepted copy of the given class in a new class loader.
+     *
+     * @param type The class to transform. Its interfaces are shared with the copy.
+     * @param mode The dispatch mode for the intercepting transformation.
+     * @return The transformed copy of the class.
+     * @throws IOException When the class bytes cannot be read.
+     */
+    public static Class<?> intercept(final Class<?> type, final DispatchMode mode) throws IOException
+    {
+        final Type asmType = Type.getType(type);
+        ClassReader reader = new ClassReader(Instrumented.read(type));
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(new NativeWrappingClassAdapter(writer, asmType), 0);
+        reader = new ClassReader(writer.toByteArray());
+        writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(new NativeInterceptingClassAdapter(writer, asmType, mode), 0);
+        return new Loader(type.getClassLoader()).define(type.getName(), writer.toByteArray());
+    }
+
+    /**
+     * Load a wrapped (but not intercepted) copy of the given class in a new class loader.
+     *
+     * @param type The class to transform. Its interfaces are shared with the copy.
+     * @return The transformed copy of the class.
+     * @throws IOException When the class bytes cannot be read.
+     */
+    public static Class<?> wrap(final Class<?> type) throws IOException
+    {
+        final ClassReader reader = new ClassReader(Instrumented.read(type));
+        final ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(new NativeWrappingClassAdapter(writer, Type.getType(type)), 0);
+        return new Loader(type.getClassLoader()).define(type.getName(), writer.toByteArray());
+    }
+
+    /**
+     * Read the class file for the given class.
+     */
+    static byte[] read(final Class<?> type) throws IOException
+    {
+        final InputStream in = type.getResourceAsStream('/' + type.getName().replace('.', '/') + ".class");
+        try
+        {
+            return new ClassReader(in).b;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * A class loader that defines a single transformed class and delegates everything else.
+     */
+    static final class Loader extends ClassLoader
+    {
+        Loader(final ClassLoader parent)
+        {
+            super(parent);
+        }
+
+        Class<?> define(final String name, final byte[] bytes)
+        {
+            return this.defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.synth.intercept.bench;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.EmptyVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.synth.intercept.DispatchMode;
+import org.synth.intercept.NativeInterceptingClassAdapter;
+import org.synth.intercept.NativeWrappingClassAdapter;
+
+/**
+ * Measures the intercepting pass the agent makes on every retransformation, over large classes
+ * with many methods besides their natives. {@code interceptOne} selects a single native method and
+ * {@code interceptAll} all of them. Run with {@code -prof gc} to compare allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterceptBenchmark
+{
+    @Param({ "java.lang.Thread", "java.lang.Class" })
+    public String className;
+
+    private Type type;
+    private byte[] wrapped;
+    private Set<String> one;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        final ClassReader reader = new ClassReader(this.className);
+        this.type = Type.getObjectType(reader.getClassName());
+        final ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(new NativeWrappingClassAdapter(writer, this.type), 0);
+        this.wrapped = writer.toByteArray();
+        final String[] first = new String[1];
+        reader.accept(new EmptyVisitor() {
+            @Override
+            public MethodVisitor visitMethod(final int access, final String name, final String desc,
+                                             final String signature, final String[] exceptions)
+            {
+                if ((access & Opcodes.ACC_NATIVE) != 0 && first[0] == null)
+                    first[0] = name + desc;
+                return null;
+            }
+        }, ClassReader.SKIP_CODE);
+        this.one = Collections.singleton(first[0]);
+    }
+
+    @Benchmark
+    public byte[] interceptOne()
+    {
+        return this.intercept(this.one);
+    }
+
+    @Benchmark
+    public byte[] interceptAll()
+    {
+        return this.intercept(null);
+    }
+
+    /**
+     * Make the same pass as the intercepting transformer.
+     */
+    private byte[] intercept(final Set<String> selected)
+    {
+        final ClassReader reader = new ClassReader(this.wrapped);
+        final ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(new NativeInterceptingClassAdapter(writer, this.type, DispatchMode.STATIC, false, selected),
+                      ClassReader.EXPAND_FRAMES);
+        return writer.toByteArray();
+    }
+}
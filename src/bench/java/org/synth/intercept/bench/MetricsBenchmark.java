@@ -0,0 +1,66 @@
+package org.synth.intercept.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.synth.intercept.DispatchMode;
+import org.synth.intercept.NativeInvocationHandler;
+import org.synth.intercept.NativeMethodMetrics;
+
+/**
+ * Measures the cost of metering an intercepted method with {@link NativeMethodMetrics}, by
+ * dispatching the same method with metering switched off and on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark
+{
+    @Param({ "STATIC", "LINKED", "PRIMITIVE" })
+    public DispatchMode mode;
+
+    @Param({ "false", "true" })
+    public boolean metered;
+
+    private DispatchTarget intercepted;
+    private Object arg;
+    private int intArg;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        final Class<?> type = Instrumented.intercept(DispatchData.class, this.mode);
+        NativeInvocationHandler.registerHandler(type, this.mode == DispatchMode.PRIMITIVE ?
+            new DispatchBenchmark.PrimitiveHandler() : new DispatchBenchmark.Handler());
+        this.intercepted = (DispatchTarget)type.newInstance();
+        NativeMethodMetrics.setEnabled(type, this.metered);
+        this.arg = new Object();
+        this.intArg = 42;
+    }
+
+    @Benchmark
+    public Object interceptedObject()
+    {
+        return this.intercepted.objectOneArg(this.arg);
+    }
+
+    @Benchmark
+    public int interceptedInt()
+    {
+        return this.intercepted.intOneArg(this.intArg);
+    }
+}
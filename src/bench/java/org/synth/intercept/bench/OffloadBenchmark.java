@@ -0,0 +1,230 @@
+package org.synth.intercept.bench;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.synth.intercept.DispatchMode;
+import org.synth.intercept.NativeFrame;
+import org.synth.intercept.NativeInvocationHandler;
+import org.synth.intercept.NativeMethod;
+import org.synth.intercept.OffloadingHandler;
+import org.synth.intercept.PrimitiveInvocationHandler;
+
+/**
+ * Measures a mixed workload of virtual threads, where some threads call a slow native method and
+ * the others do short tasks that park and compute, with and without
+ * {@link OffloadingHandler}. Without offloading, each native call pins the carrier of its virtual
+ * thread for its whole duration, so the short tasks queue for the remaining carriers; with
+ * offloading the native calls run on a pool of platform threads and the carriers stay free. The
+ * score is tasks completed per second. The secondary {@code shortTasks} and {@code nativeCalls}
+ * scores split it by kind; the rate of short tasks shows how much of the carriers' time was left
+ * for work that does not call the native method.
+ *
+ * The slow native method is simulated by sleeping while holding a monitor, which pins a virtual
+ * thread on Java 21 just as a blocking call into a native library does. Virtual threads need Java
+ * 21, so run this benchmark in a Java 21 VM with the JMH <code>-jvm</code> option; on earlier VMs
+ * its setup fails. The scheduler is limited to two carriers so that pinning shows on any machine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.virtualThreadScheduler.parallelism=2")
+public class OffloadBenchmark
+{
+    /**
+     * The number of virtual threads started for each batch of the workload.
+     */
+    private static final int TASKS = 64;
+
+    /**
+     * The number of platform threads the native calls are offloaded to.
+     */
+    private static final int POOL = 16;
+
+    @Param({ "false", "true" })
+    public boolean offload;
+
+    @Param({ "10", "25" })
+    public int nativePercent;
+
+    @Param({ "2" })
+    public int nativeMillis;
+
+    @Param({ "1" })
+    public int parkMillis;
+
+    private Method startVirtualThread;
+    private ExecutorService pool;
+    private DispatchTarget target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        try
+        {
+            this.startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+        }
+        catch (final NoSuchMethodException e)
+        {
+            throw new UnsupportedOperationException("Virtual threads need Java 21; run with -jvm <java 21>");
+        }
+        final Class<?> type = Instrumented.intercept(DispatchData.class, DispatchMode.PRIMITIVE);
+        if (this.offload)
+        {
+            this.pool = Executors.newFixedThreadPool(OffloadBenchmark.POOL);
+            NativeInvocationHandler.registerHandler(type, new OffloadedNative(this.pool, this.nativeMillis));
+        }
+        else
+            NativeInvocationHandler.registerHandler(type, new PinnedNative(this.nativeMillis));
+        this.target = (DispatchTarget)type.newInstance();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        if (this.pool != null)
+            this.pool.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OffloadBenchmark.TASKS)
+    public void mixed(final Counters counters) throws Exception
+    {
+        final Thread[] threads = new Thread[OffloadBenchmark.TASKS];
+        final AtomicInteger sink = new AtomicInteger();
+        final int natives = OffloadBenchmark.TASKS * this.nativePercent / 100;
+        // spread the native calls through the batch rather than starting them all first
+        final int stride = natives == 0 ? OffloadBenchmark.TASKS + 1 : OffloadBenchmark.TASKS / natives;
+        for (int i = 0; i < threads.length; i++)
+        {
+            final Runnable task = i % stride == 0 && i / stride < natives ? this.nativeCall(sink) : this.shortTask(sink);
+            threads[i] = (Thread)this.startVirtualThread.invoke(null, task);
+        }
+        for (final Thread thread : threads)
+            thread.join();
+        counters.nativeCalls += natives;
+        counters.shortTasks += OffloadBenchmark.TASKS - natives;
+    }
+
+    /**
+     * A task that calls the slow native method.
+     */
+    private Runnable nativeCall(final AtomicInteger sink)
+    {
+        final DispatchTarget target = this.target;
+        return new Runnable() {
+            public void run()
+            {
+                sink.addAndGet(target.intOneArg(1));
+            }
+        };
+    }
+
+    /**
+     * A short task, which parks as if waiting for I/O (freeing its carrier) and then computes.
+     */
+    private Runnable shortTask(final AtomicInteger sink)
+    {
+        final long parkNanos = TimeUnit.MILLISECONDS.toNanos(this.parkMillis);
+        return new Runnable() {
+            public void run()
+            {
+                LockSupport.parkNanos(parkNanos);
+                Blackhole.consumeCPU(1000);
+                sink.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Simulate a slow native method: sleeping while holding a monitor blocks the carrier of a
+     * virtual thread until it returns.
+     */
+    static int block(final int millis) throws InterruptedException
+    {
+        synchronized (Thread.currentThread())
+        {
+            Thread.sleep(millis);
+        }
+        return 1;
+    }
+
+    /**
+     * The number of tasks of each kind completed, reported as rates next to the total.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters
+    {
+        public long shortTasks;
+        public long nativeCalls;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            this.shortTasks = 0;
+            this.nativeCalls = 0;
+        }
+    }
+
+    /**
+     * The slow native method called directly by the virtual thread, pinning its carrier.
+     */
+    static final class PinnedNative extends PrimitiveInvocationHandler
+    {
+        private final int millis;
+
+        PinnedNative(final int millis)
+        {
+            this.millis = millis;
+        }
+
+        @Override
+        public int invokeInt(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            return OffloadBenchmark.block(this.millis);
+        }
+    }
+
+    /**
+     * The slow native method offloaded to the pool when called by a virtual thread.
+     */
+    static final class OffloadedNative extends OffloadingHandler
+    {
+        private final int millis;
+
+        OffloadedNative(final ExecutorService pool, final int millis)
+        {
+            super(pool);
+            this.millis = millis;
+        }
+
+        @Override
+        protected Object load(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            return Integer.valueOf(OffloadBenchmark.block(this.millis));
+        }
+    }
+}
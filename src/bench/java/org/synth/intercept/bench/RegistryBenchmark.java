@@ -0,0 +1,121 @@
+package org.synth.intercept.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.synth.intercept.DispatchMode;
+import org.synth.intercept.NativeInvocationHandler;
+
+/**
+ * Measures the throughput of intercepted calls that look up their handler in the registry on
+ * every invocation ({@link DispatchMode#STATIC}), with and without handlers being re-registered
+ * concurrently. To check that lookups scale with cores, compare runs with increasing thread
+ * counts, e.g. {@code -t 1}, {@code -t 2}, {@code -t 4} for {@code lookup} and {@code -tg 1,1},
+ * {@code -tg 2,1}, {@code -tg 4,1} for the {@code churn} group.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryBenchmark
+{
+    private Class<?> type;
+    private Class<?> other;
+    private InvocationHandler first;
+    private InvocationHandler second;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        this.type = Instrumented.intercept(DispatchData.class, DispatchMode.STATIC);
+        this.other = Instrumented.intercept(DispatchData.class, DispatchMode.STATIC);
+        this.first = new Handler();
+        this.second = new Handler();
+        NativeInvocationHandler.registerHandler(this.type, this.first);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        NativeInvocationHandler.unregisterHandler(this.type);
+        NativeInvocationHandler.unregisterHandler(this.other);
+    }
+
+    /**
+     * The per-thread receiver, so that readers do not share anything but the registry.
+     */
+    @State(Scope.Thread)
+    public static class Receiver
+    {
+        DispatchTarget target;
+        Object arg;
+
+        @Setup(Level.Trial)
+        public void setUp(final RegistryBenchmark benchmark) throws Exception
+        {
+            this.target = (DispatchTarget)benchmark.type.newInstance();
+            this.arg = new Object();
+        }
+    }
+
+    /**
+     * The state of the thread re-registering handlers.
+     */
+    @State(Scope.Thread)
+    public static class Writer
+    {
+        int count;
+    }
+
+    @Benchmark
+    public Object lookup(final Receiver receiver)
+    {
+        return receiver.target.objectOneArg(receiver.arg);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    public Object churnLookup(final Receiver receiver)
+    {
+        return receiver.target.objectOneArg(receiver.arg);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public void churnRegister(final Writer writer)
+    {
+        final int count = writer.count++;
+        NativeInvocationHandler.registerHandler(this.type, (count & 1) == 0 ? this.first : this.second);
+        if ((count & 2) == 0)
+            NativeInvocationHandler.registerHandler(this.other, this.first);
+        else
+            NativeInvocationHandler.unregisterHandler(this.other);
+    }
+
+    static final class Handler implements InvocationHandler
+    {
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+        {
+            return args[0];
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.synth.intercept.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.synth.intercept.NativeWrappingClassAdapter;
+import org.synth.intercept.NativeWrappingTransformer;
+
+/**
+ * Measures the overhead the wrapping transformer adds to loading a jar of classes, most of which
+ * have no native methods. {@code transform} runs every class in the jar through the transformer,
+ * while {@code fullPass} runs them through the ASM pass the transformer used to make for every
+ * class, for comparison. Pass a different jar with {@code -p jar=/path/to/classes.jar}; by
+ * default the JMH core jar is used. Classes that ASM cannot read are left out, so that both
+ * benchmarks see the same classes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformBenchmark
+{
+    @Param("")
+    public String jar;
+
+    private final List<String> names = new ArrayList<String>();
+    private final List<byte[]> classes = new ArrayList<byte[]>();
+    private final NativeWrappingTransformer transformer = new NativeWrappingTransformer();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        final File file = this.jar.length() == 0 ?
+            new File(Benchmark.class.getProtectionDomain().getCodeSource().getLocation().toURI()) : new File(this.jar);
+        final JarFile jarFile = new JarFile(file);
+        try
+        {
+            for (final Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements();)
+            {
+                final JarEntry entry = entries.nextElement();
+                if (!entry.getName().endsWith(".class"))
+                    continue;
+                final String name = entry.getName().substring(0, entry.getName().length() - ".class".length());
+                final byte[] bytes = TransformBenchmark.read(jarFile.getInputStream(entry));
+                try
+                {
+                    TransformBenchmark.fullPass(name, bytes);
+                }
+                catch (final RuntimeException e)
+                {
+                    // ASM 3 cannot read some newer class files, e.g. with method handle constants
+                    continue;
+                }
+                this.names.add(name);
+                this.classes.add(bytes);
+            }
+        }
+        finally
+        {
+            jarFile.close();
+        }
+    }
+
+    @Benchmark
+    public void transform(final Blackhole blackhole) throws Exception
+    {
+        for (int i = 0; i < this.classes.size(); i++)
+            blackhole.consume(this.transformer.transform(null, this.names.get(i), null, null, this.classes.get(i)));
+    }
+
+    @Benchmark
+    public void fullPass(final Blackhole blackhole)
+    {
+        for (int i = 0; i < this.classes.size(); i++)
+            blackhole.consume(TransformBenchmark.fullPass(this.names.get(i), this.classes.get(i)));
+    }
+
+    private static byte[] fullPass(final String name, final byte[] bytes)
+    {
+        final ClassReader reader = new ClassReader(bytes);
+        final ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        final NativeWrappingClassAdapter adapter = new NativeWrappingClassAdapter(writer, Type.getType('L' + name + ';'));
+        reader.accept(adapter, 0);
+        return adapter.foundNativeMethod() ? writer.toByteArray() : null;
+    }
+
+    private static byte[] read(final InputStream in) throws Exception
+    {
+        try
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer))
+                out.write(buffer, 0, read);
+            return out.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package org.synth.intercept;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.logging.Logger;
+
+/**
+ * Loads the {@link NativeInterceptorAgent} into the running VM through the attach API. Only the
+ * current process is attached to, identified by its PID, and the agent jar is the one this library
+ * was loaded from, so no other VM on the host is contacted.
+ *
+ * The attach API is used reflectively. When it is not on the class path (e.g. a JDK 6-8 process
+ * started without tools.jar), it is loaded in-process from the tools.jar of the running JDK. When
+ * the library was not loaded from a jar (e.g. from a directory of classes during development), a
+ * temporary agent jar holding only the manifest is created, since the agent classes are already on
+ * the class path.
+ *
+ * A VM cannot always attach to itself: the attach API may be missing from the running VM (e.g. a
+ * JRE, or a JDK 6-8 without tools.jar), and from Java 9 attaching to the current process is refused
+ * unless the VM was started with -Djdk.attach.allowAttachSelf=true. In either case the agent is
+ * loaded by a short-lived helper VM, started from the same Java home with this library on its class
+ * path, which attaches to the current process and exits.
+ */
+final class AgentAttacher
+{
+    /**
+     * Log for various logging events.
+     */
+    private static final Logger LOG = Logger.getLogger(AgentAttacher.class.getPackage().getName());
+
+    /**
+     * The class of the attach API used to attach to a VM.
+     */
+    private static final String VIRTUAL_MACHINE_CLASS = "com.sun.tools.attach.VirtualMachine";
+
+    /**
+     * How long the helper VM may take to attach the agent before it is killed.
+     */
+    private static final long HELPER_TIMEOUT_MILLIS = 60 * 1000L;
+
+    /**
+     * How long to sleep between checks whether the helper VM exited.
+     */
+    private static final long HELPER_POLL_MILLIS = 20L;
+
+    private AgentAttacher()
+    {
+    }
+
+    /**
+     * Attach the agent to the current VM.
+     *
+     * @throws IllegalStateException When the agent cannot be attached.
+     */
+    static void attach()
+    {
+        final String pid = AgentAttacher.pid();
+        final String agentJar = AgentAttacher.agentJar();
+        final Class<?> virtualMachine;
+        final Object vm;
+        try
+        {
+            virtualMachine = AgentAttacher.attachApi();
+            vm = virtualMachine.getMethod("attach", String.class).invoke(null, pid);
+        }
+        catch (final Exception e)
+        {
+            final Throwable cause = e instanceof InvocationTargetException ? ((InvocationTargetException)e).getTargetException() : e;
+            AgentAttacher.LOG.fine("Unable to attach to VM " + pid + " from itself, attaching from a helper VM: " + cause);
+            AgentAttacher.attachFromHelper(pid, agentJar);
+            return;
+        }
+        AgentAttacher.loadAgent(virtualMachine, vm, pid, agentJar);
+    }
+
+    /**
+     * Attach the agent to a VM from this VM, which is how the helper VM attaches to its parent.
+     *
+     * @param args The PID of the VM and the path of the agent jar.
+     */
+    public static void main(final String[] args)
+    {
+        if (args.length != 2)
+        {
+            System.err.println("Usage: " + AgentAttacher.class.getName() + " <pid> <agent jar>");
+            System.exit(2);
+        }
+        try
+        {
+            final Class<?> virtualMachine = AgentAttacher.attachApi();
+            final Object vm = virtualMachine.getMethod("attach", String.class).invoke(null, args[0]);
+            AgentAttacher.loadAgent(virtualMachine, vm, args[0], args[1]);
+        }
+        catch (final Throwable t)
+        {
+            t.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Load the agent into an attached VM, and detach from it.
+     */
+    private static void loadAgent(final Class<?> virtualMachine, final Object vm, final String pid, final String agentJar)
+    {
+        try
+        {
+            try
+            {
+                virtualMachine.getMethod("loadAgent", String.class).invoke(vm, agentJar);
+            }
+            finally
+            {
+                virtualMachine.getMethod("detach").invoke(vm);
+            }
+        }
+        catch (final InvocationTargetException e)
+        {
+            throw new IllegalStateException("Error while attaching agent to running VM " + pid +
+                                            " (start the VM with -javaagent:" + agentJar + " instead)", e.getTargetException());
+        }
+        catch (final Exception e)
+        {
+            throw new IllegalStateException("Error while attaching agent to running VM " + pid, e);
+        }
+        AgentAttacher.LOG.fine("Attached agent " + agentJar + " to VM " + pid);
+    }
+
+    /**
+     * Attach the agent to the current VM from a helper VM, started from the same Java home with
+     * this library on its class path. The agent is loaded once the helper exits successfully.
+     */
+    private static void attachFromHelper(final String pid, final String agentJar)
+    {
+        final String javaHome = System.getProperty("java.home");
+        File java = new File(javaHome, "bin/java");
+        if (!java.isFile())
+            java = new File(javaHome, "bin/java.exe");
+        final ProcessBuilder builder = new ProcessBuilder(java.getAbsolutePath(), "-cp", AgentAttacher.libraryPath(),
+                                                          AgentAttacher.class.getName(), pid, agentJar);
+        builder.redirectErrorStream(true);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final int status;
+        try
+        {
+            final Process helper = builder.start();
+            helper.getOutputStream().close();
+            if (!AgentAttacher.waitFor(helper, output))
+            {
+                helper.destroy();
+                throw new IllegalStateException("Helper VM did not attach agent to running VM " + pid + " within " +
+                                                AgentAttacher.HELPER_TIMEOUT_MILLIS / 1000 + "s (start the VM with -javaagent:" +
+                                                agentJar + " instead):\n" + output);
+            }
+            status = helper.exitValue();
+        }
+        catch (final IOException e)
+        {
+            throw new IllegalStateException("Unable to start a helper VM to attach to VM " + pid +
+                                            " (start the VM with -javaagent:" + agentJar + " instead)", e);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while attaching agent to running VM " + pid);
+        }
+        if (status != 0)
+            throw new IllegalStateException("Helper VM failed to attach agent to running VM " + pid + " (start the VM with -javaagent:" +
+                                            agentJar + " instead):\n" + output);
+        AgentAttacher.LOG.fine("Attached agent " + agentJar + " to VM " + pid + " from a helper VM");
+    }
+
+    /**
+     * Wait for a helper VM to exit, for at most {@link #HELPER_TIMEOUT_MILLIS}, collecting its output
+     * meanwhile so that it never blocks writing to a full pipe.
+     *
+     * @return Whether the helper exited in time.
+     */
+    private static boolean waitFor(final Process helper, final ByteArrayOutputStream output) throws IOException, InterruptedException
+    {
+        final InputStream in = helper.getInputStream();
+        final byte[] buffer = new byte[4096];
+        final long deadline = System.currentTimeMillis() + AgentAttacher.HELPER_TIMEOUT_MILLIS;
+        try
+        {
+            while (true)
+            {
+                int available;
+                while ((available = in.available()) > 0)
+                    output.write(buffer, 0, in.read(buffer, 0, Math.min(available, buffer.length)));
+                try
+                {
+                    helper.exitValue();
+                }
+                catch (final IllegalThreadStateException e)
+                {
+                    if (System.currentTimeMillis() >= deadline)
+                        return false;
+                    Thread.sleep(AgentAttacher.HELPER_POLL_MILLIS);
+                    continue;
+                }
+                int n;
+                while ((n = in.read(buffer)) != -1)
+                    output.write(buffer, 0, n);
+                return true;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Get the class path entry this library was loaded from, which is a jar or a directory.
+     */
+    private static String libraryPath()
+    {
+        final CodeSource source = AgentAttacher.class.getProtectionDomain().getCodeSource();
+        if (source == null || source.getLocation() == null)
+            throw new IllegalStateException("Unable to locate this library to start a helper VM");
+        try
+        {
+            return new File(source.getLocation().toURI()).getAbsolutePath();
+        }
+        catch (final URISyntaxException e)
+        {
+            throw new IllegalStateException("Unable to locate this library from " + source.getLocation(), e);
+        }
+        catch (final IllegalArgumentException e)
+        {
+            throw new IllegalStateException("Unable to locate this library from " + source.getLocation(), e);
+        }
+    }
+
+    /**
+     * Get the PID of the current process. The name of the runtime MXBean is "pid@hostname" on all
+     * the VMs that support the attach API.
+     */
+    private static String pid()
+    {
+        final String name = ManagementFactory.getRuntimeMXBean().getName();
+        final int idx = name.indexOf('@');
+        if (idx <= 0)
+            throw new IllegalStateException("Unable to determine the PID of the running VM from " + name);
+        return name.substring(0, idx);
+    }
+
+    /**
+     * Find the jar this library was loaded from, or create an agent jar when it was not loaded
+     * from a jar.
+     */
+    private static String agentJar()
+    {
+        final CodeSource source = NativeInterceptorAgent.class.getProtectionDomain().getCodeSource();
+        if (source != null && source.getLocation() != null)
+        {
+            try
+            {
+                final File file = new File(source.getLocation().toURI());
+                if (file.isFile())
+                    return file.getAbsolutePath();
+            }
+            catch (final URISyntaxException e)
+            {
+                AgentAttacher.LOG.fine("Unable to locate agent jar from " + source.getLocation() + ": " + e);
+            }
+            catch (final IllegalArgumentException e)
+            {
+                AgentAttacher.LOG.fine("Unable to locate agent jar from " + source.getLocation() + ": " + e);
+            }
+        }
+        try
+        {
+            return AgentAttacher.createAgentJar().getAbsolutePath();
+        }
+        catch (final IOException e)
+        {
+            throw new IllegalStateException("Unable to create agent jar", e);
+        }
+    }
+
+    /**
+     * Create a temporary jar containing only the agent manifest.
+     */
+    private static File createAgentJar() throws IOException
+    {
+        final Manifest manifest = new Manifest();
+        final Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("Agent-Class", NativeInterceptorAgent.class.getName());
+        attributes.putValue("Can-Redefine-Classes", "true");
+        attributes.putValue("Can-Retransform-Classes", "true");
+        attributes.putValue("Can-Set-Native-Method-Prefix", "true");
+        final File jar = File.createTempFile("native-interceptor-agent", ".jar");
+        jar.deleteOnExit();
+        final JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+        out.close();
+        return jar;
+    }
+
+    /**
+     * Load the attach API, from the class path when it is there, or otherwise from the tools.jar
+     * of the running JDK.
+     */
+    private static Class<?> attachApi()
+    {
+        try
+        {
+            return Class.forName(AgentAttacher.VIRTUAL_MACHINE_CLASS);
+        }
+        catch (final ClassNotFoundException e)
+        {
+            AgentAttacher.LOG.fine("Attach API not on the class path, loading it from tools.jar");
+        }
+        final String javaHome = System.getProperty("java.home");
+        for (final File tools : new File[] { new File(javaHome, "../lib/tools.jar"), new File(javaHome, "lib/tools.jar") })
+        {
+            if (!tools.isFile())
+                continue;
+            try
+            {
+                final ClassLoader loader = new URLClassLoader(new URL[] { tools.toURI().toURL() },
+                                                              ClassLoader.getSystemClassLoader());
+                return Class.forName(AgentAttacher.VIRTUAL_MACHINE_CLASS, true, loader);
+            }
+            catch (final Exception e)
+            {
+                throw new IllegalStateException("Unable to load the attach API from " + tools, e);
+            }
+        }
+        throw new IllegalStateException("The attach API is not available in this VM (start the VM with -javaagent instead)");
+    }
+}
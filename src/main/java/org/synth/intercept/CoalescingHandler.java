@@ -0,0 +1,234 @@
+package org.synth.intercept;
+
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A handler that coalesces concurrent invocations of a slow native method with equal arguments,
+ * such as a cold lookup or a lazy initialization in a native library, into a single invocation of
+ * the native method. The first thread to make an invocation calls the native method (see
+ * {@link NativeMethod#invokeNative(Object,Object[])}); threads making an equal invocation while it
+ * is in flight wait for it, and return its result or throw its exception. Nothing is remembered
+ * once the invocation completes, and invocations with different arguments never wait for each
+ * other, since each in-flight invocation has its own latch. An equal invocation made by the thread
+ * already making it, when the native method calls back into itself, is not coalesced.
+ *
+ * Invocations are equal under the same rules as {@link MemoizingHandler}: the arguments are
+ * compared by value, and for instance methods the receiver by identity. Array results are copied
+ * for each waiting thread. A thrown exception is rethrown as the same instance in every thread.
+ *
+ * Either every intercepted method of the class is coalesced, or only the given methods, with the
+ * others calling their native methods directly. {@link NativeInterceptor#coalesce(Method)}
+ * selects methods one at a time.
+ */
+public class CoalescingHandler extends PrimitiveInvocationHandler
+{
+    /**
+     * The coalesced methods, or null when every method is coalesced.
+     */
+    private final Set<Method> methods;
+
+    /**
+     * The invocations in flight for each method.
+     */
+    private final ConcurrentMap<NativeMethod,ConcurrentMap<MemoizingHandler.Key,Flight>> flights =
+        new ConcurrentHashMap<NativeMethod,ConcurrentMap<MemoizingHandler.Key,Flight>>();
+
+    /**
+     * The number of invocations that waited for an equal invocation in flight.
+     */
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Create a handler that coalesces every intercepted method.
+     */
+    public CoalescingHandler()
+    {
+        this.methods = null;
+    }
+
+    /**
+     * Create a handler that coalesces only the given methods.
+     *
+     * @param methods The methods to coalesce.
+     * @throws IllegalArgumentException When any method is null.
+     */
+    public CoalescingHandler(final Method... methods)
+    {
+        this.methods = new CopyOnWriteArraySet<Method>();
+        for (final Method method : methods)
+            this.coalesce(method);
+    }
+
+    /**
+     * Start coalescing another method.
+     *
+     * @param method The method.
+     * @throws IllegalArgumentException When the method is null.
+     * @throws IllegalStateException When the handler already coalesces every method.
+     */
+    public void coalesce(final Method method)
+    {
+        if (method == null)
+            throw new IllegalArgumentException("Cannot coalesce null method");
+        if (this.methods == null)
+            throw new IllegalStateException("Every method is already coalesced");
+        this.methods.add(method);
+    }
+
+    @Override
+    public Object invokeObject(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        if (!this.isCoalesced(method))
+            return this.load(proxy, method, args);
+        final MemoizingHandler.Key key = new MemoizingHandler.Key(proxy, args);
+        final ConcurrentMap<MemoizingHandler.Key,Flight> flights = this.flights(method);
+        final Flight flight = new Flight();
+        final Flight leader = flights.putIfAbsent(key, flight);
+        if (leader != null && leader.thread == Thread.currentThread())
+        {
+            // the native method re-entered itself with equal arguments, so waiting would deadlock.
+            return this.load(proxy, method, args);
+        }
+        if (leader != null)
+        {
+            this.coalesced.incrementAndGet();
+            return leader.await();
+        }
+        Object value = null;
+        Throwable thrown = null;
+        try
+        {
+            value = this.load(proxy, method, args);
+            return value;
+        }
+        catch (final Throwable t)
+        {
+            thrown = t;
+            throw t;
+        }
+        finally
+        {
+            // later invocations start a new flight, and the waiting ones are released.
+            flights.remove(key, flight);
+            flight.complete(value == null ? null : MemoizingHandler.copy(value), thrown);
+        }
+    }
+
+    /**
+     * Make an invocation once it is not coalesced with another. By default this calls the
+     * original native method.
+     *
+     * @param proxy The instance the method was invoked on, or the declaring class for static methods.
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @return The value to return, boxed for primitive return types.
+     * @throws Throwable Whatever the native method throws.
+     */
+    protected Object load(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        return method.invokeNative(proxy, args.box(method.getArgTypes()));
+    }
+
+    /**
+     * Determine whether the invocations of a method are coalesced.
+     *
+     * @param method The intercepted method.
+     * @return Whether to coalesce its invocations.
+     */
+    protected boolean isCoalesced(final NativeMethod method)
+    {
+        return this.methods == null || this.methods.contains(method.getMethod());
+    }
+
+    /**
+     * Determine whether every intercepted method is coalesced, rather than only selected ones.
+     */
+    boolean isCoalescingEvery()
+    {
+        return this.methods == null;
+    }
+
+    /**
+     * Getter for the number of invocations that waited for an equal invocation in flight rather
+     * than calling the native method.
+     *
+     * @return The number of coalesced invocations.
+     */
+    public long getCoalescedCount()
+    {
+        return this.coalesced.get();
+    }
+
+    /**
+     * Get the invocations in flight for a method, creating the map on first use.
+     */
+    private ConcurrentMap<MemoizingHandler.Key,Flight> flights(final NativeMethod method)
+    {
+        ConcurrentMap<MemoizingHandler.Key,Flight> flights = this.flights.get(method);
+        if (flights == null)
+        {
+            final ConcurrentMap<MemoizingHandler.Key,Flight> created = new ConcurrentHashMap<MemoizingHandler.Key,Flight>();
+            flights = this.flights.putIfAbsent(method, created);
+            if (flights == null)
+                flights = created;
+        }
+        return flights;
+    }
+
+    /**
+     * An invocation in flight, which the equal invocations made meanwhile wait for.
+     */
+    private static final class Flight
+    {
+        /**
+         * The thread making the invocation.
+         */
+        final Thread thread = Thread.currentThread();
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Object value;
+        private Throwable thrown;
+
+        /**
+         * Release the waiting threads with the outcome of the invocation.
+         */
+        void complete(final Object value, final Throwable thrown)
+        {
+            this.value = value;
+            this.thrown = thrown;
+            this.done.countDown();
+        }
+
+        /**
+         * Wait for the invocation to complete. Native methods cannot be interrupted, so neither
+         * can waiting for one; the interrupt is kept for the caller.
+         */
+        Object await() throws Throwable
+        {
+            boolean interrupted = false;
+            while (true)
+            {
+                try
+                {
+                    this.done.await();
+                    break;
+                }
+                catch (final InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (this.thrown != null)
+                throw this.thrown;
+            return this.value == null ? null : MemoizingHandler.copy(this.value);
+        }
+    }
+}
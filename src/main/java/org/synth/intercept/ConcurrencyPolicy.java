@@ -0,0 +1,730 @@
+package org.synth.intercept;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Controls how many threads may call the intercepted methods of a native library at once, and on
+ * which threads, so that handlers for libraries that are not thread-safe, or that degrade past a
+ * number of concurrent callers, do not each need their own locking. A policy is applied to a class
+ * or to single methods with {@link NativeInterceptor#constrain(Class,ConcurrencyPolicy)}, and then
+ * governs every invocation of their handlers. When a handler declines an invocation, the original
+ * native method is called (see {@link NativeMethod#invokeNative(Object,Object[])}) under the same
+ * policy, rather than by the intercepted method after the policy has let go; without passthrough
+ * (see {@link NativeInterceptorAgent#isPassthrough()}) the invocation throws an
+ * {@link UnsatisfiedLinkError} instead, as it would without a policy. Methods without a handler
+ * call their native methods directly and are not governed.
+ *
+ * A policy shared by several methods or classes governs their invocations together: a single
+ * confined thread serializes every method it is applied to. Invocations made from within an
+ * invocation the policy already governs, such as a native method calling back into Java, run
+ * directly rather than waiting for the policy again.
+ *
+ * Each policy measures how many invocations are waiting, and how long they waited, so that
+ * contention on a native library can be seen. Waiting cannot be interrupted, since the native
+ * method cannot be either; an interrupt is kept for the caller.
+ *
+ * The policies that run invocations on threads of their own are owned by their creator, who stops
+ * the threads with {@link #shutdown()} once no method is governed by the policy any more.
+ */
+public abstract class ConcurrencyPolicy
+{
+    /**
+     * The policy governing the invocation running in each thread, if any.
+     */
+    private static final ThreadLocal<ConcurrencyPolicy> CURRENT = new ThreadLocal<ConcurrencyPolicy>();
+
+    /**
+     * The number of threads started for policies, to name them.
+     */
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    /**
+     * The number of invocations waiting.
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * The largest number of invocations that have waited at once.
+     */
+    private final AtomicInteger peakQueued = new AtomicInteger();
+
+    /**
+     * The number of invocations that have run.
+     */
+    private final AtomicLong calls = new AtomicLong();
+
+    /**
+     * The total time invocations have waited, in nanoseconds.
+     */
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * The number of invocations rejected.
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    ConcurrencyPolicy()
+    {
+    }
+
+    /**
+     * Create a policy allowing a number of concurrent invocations, which wait as long as it takes
+     * for their turn.
+     *
+     * @param permits The largest number of concurrent invocations.
+     * @return The policy.
+     * @throws IllegalArgumentException When the number of permits is not positive.
+     */
+    public static ConcurrencyPolicy limit(final int permits)
+    {
+        return new Limit(permits, -1);
+    }
+
+    /**
+     * Create a policy allowing a number of concurrent invocations. Invocations are let through in
+     * the order they arrive, and an invocation still waiting after the timeout throws a
+     * {@link RejectedExecutionException}.
+     *
+     * @param permits The largest number of concurrent invocations.
+     * @param timeout How long an invocation waits for its turn.
+     * @param unit The unit of the timeout.
+     * @return The policy.
+     * @throws IllegalArgumentException When the number of permits is not positive, the timeout is
+     *         negative or the unit is null.
+     */
+    public static ConcurrencyPolicy limit(final int permits, final long timeout, final TimeUnit unit)
+    {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Invalid timeout " + timeout);
+        if (unit == null)
+            throw new IllegalArgumentException("Invalid time unit (null)");
+        return new Limit(permits, unit.toNanos(timeout));
+    }
+
+    /**
+     * Create a policy confining invocations to a single dedicated daemon thread, which makes them
+     * one at a time in the order they arrive. Callers hand invocations to the thread through a
+     * lock-free queue and park until they complete. The thread runs until the policy is
+     * {@link #shutdown() shut down}.
+     *
+     * @return The policy.
+     */
+    public static ConcurrencyPolicy confined()
+    {
+        final Confined confined = new Confined();
+        confined.thread.start();
+        return confined;
+    }
+
+    /**
+     * Create a policy running invocations on a dedicated pool of daemon threads, with a bounded
+     * queue of invocations waiting for a thread. An invocation arriving when the queue is full
+     * throws a {@link RejectedExecutionException}. The threads run until the policy is
+     * {@link #shutdown() shut down}.
+     *
+     * @param threads The number of threads.
+     * @param queueCapacity The largest number of invocations waiting for a thread.
+     * @return The policy.
+     * @throws IllegalArgumentException When either number is not positive.
+     */
+    public static ConcurrencyPolicy executor(final int threads, final int queueCapacity)
+    {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Invalid number of threads " + threads);
+        if (queueCapacity <= 0)
+            throw new IllegalArgumentException("Invalid queue capacity " + queueCapacity);
+        return new Pooled(threads, queueCapacity);
+    }
+
+    /**
+     * Stop the threads this policy runs invocations on, once the invocations already handed to
+     * them complete. Later invocations throw a {@link RejectedExecutionException}. Policies that
+     * run invocations in the calling thread have no threads to stop, and keep working.
+     */
+    public void shutdown()
+    {
+    }
+
+    /**
+     * Getter for the number of invocations currently waiting for their turn.
+     *
+     * @return The queue depth.
+     */
+    public int getQueueDepth()
+    {
+        return this.queued.get();
+    }
+
+    /**
+     * Getter for the largest number of invocations that have waited at once.
+     *
+     * @return The peak queue depth.
+     */
+    public int getPeakQueueDepth()
+    {
+        return this.peakQueued.get();
+    }
+
+    /**
+     * Getter for the number of invocations that have run, after waiting for their turn.
+     *
+     * @return The number of invocations.
+     */
+    public long getCallCount()
+    {
+        return this.calls.get();
+    }
+
+    /**
+     * Getter for the total time invocations have waited for their turn. Dividing it by
+     * {@link #getCallCount()} gives the mean wait.
+     *
+     * @param unit The unit to return the time in.
+     * @return The total wait.
+     */
+    public long getWaitTime(final TimeUnit unit)
+    {
+        return unit.convert(this.waitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Getter for the number of invocations rejected, having waited too long or found the queue
+     * full.
+     *
+     * @return The number of rejected invocations.
+     */
+    public long getRejectedCount()
+    {
+        return this.rejected.get();
+    }
+
+    /**
+     * Make an invocation under this policy.
+     *
+     * @param method The intercepted method.
+     * @param call The invocation.
+     * @return The value returned by the invocation.
+     * @throws Throwable Whatever the invocation throws, or a {@link RejectedExecutionException}.
+     */
+    final Object execute(final NativeMethod method, final Call call) throws Throwable
+    {
+        if (ConcurrencyPolicy.CURRENT.get() == this)
+            return call.call();
+        return this.submit(method, call);
+    }
+
+    /**
+     * Make an invocation that this policy does not govern yet, running it with
+     * {@link #run(Call)} once it is allowed.
+     */
+    abstract Object submit(NativeMethod method, Call call) throws Throwable;
+
+    /**
+     * Count an invocation starting to wait.
+     *
+     * @return The time it started waiting, to pass to {@link #dequeue(long)}.
+     */
+    final long enqueue()
+    {
+        final int queued = this.queued.incrementAndGet();
+        int peak = this.peakQueued.get();
+        while (queued > peak && !this.peakQueued.compareAndSet(peak, queued))
+            peak = this.peakQueued.get();
+        return System.nanoTime();
+    }
+
+    /**
+     * Count an invocation done waiting, about to run.
+     *
+     * @param start The value returned by {@link #enqueue()}.
+     */
+    final void dequeue(final long start)
+    {
+        this.queued.decrementAndGet();
+        this.calls.incrementAndGet();
+        this.waitNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Count an invocation done waiting, and rejected.
+     *
+     * @param method The intercepted method.
+     * @param reason Why the invocation was rejected.
+     * @return The exception to throw.
+     */
+    final RejectedExecutionException reject(final NativeMethod method, final String reason)
+    {
+        this.queued.decrementAndGet();
+        this.rejected.incrementAndGet();
+        return new RejectedExecutionException(reason + " for " + method);
+    }
+
+    /**
+     * Run an invocation, as governed by this policy.
+     */
+    final Object run(final Call call) throws Throwable
+    {
+        final ConcurrencyPolicy previous = ConcurrencyPolicy.CURRENT.get();
+        ConcurrencyPolicy.CURRENT.set(this);
+        try
+        {
+            return call.call();
+        }
+        finally
+        {
+            ConcurrencyPolicy.CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Call the original native method of an invocation that its handler declined, or throw as the
+     * intercepted method would when passthrough is disabled.
+     *
+     * @throws UnsatisfiedLinkError When passthrough is disabled.
+     */
+    static Object proceed(final NativeMethod method, final Object proxy, final Object[] args) throws Throwable
+    {
+        if (!NativeInterceptorAgent.isPassthrough())
+            throw new UnsatisfiedLinkError(method.toString());
+        return method.invokeNative(proxy, args);
+    }
+
+    /**
+     * Create a factory of daemon threads.
+     *
+     * @param prefix The prefix of the thread names, followed by a number.
+     * @return The factory.
+     */
+    static ThreadFactory daemonThreads(final String prefix)
+    {
+        return new ThreadFactory() {
+            public Thread newThread(final Runnable runnable)
+            {
+                final Thread thread = new Thread(runnable, prefix + ConcurrencyPolicy.THREADS.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Decorate a handler to make its invocations under a policy.
+     *
+     * @param handler The handler, or null.
+     * @param policy The policy, or null when the method is not governed by one.
+     * @param method The method the handler is linked to.
+     * @return The decorated handler, or the handler itself when there is nothing to decorate.
+     */
+    static InvocationHandler constrain(final InvocationHandler handler, final ConcurrencyPolicy policy, final NativeMethod method)
+    {
+        return handler == null || policy == null ? handler : new Constrained(handler, policy, method);
+    }
+
+    /**
+     * Decorate a handler for {@link DispatchMode#PRIMITIVE} dispatch to make its invocations
+     * under a policy.
+     *
+     * @param handler The handler, or null.
+     * @param policy The policy, or null when the method is not governed by one.
+     * @return The decorated handler, or the handler itself when there is nothing to decorate.
+     */
+    static PrimitiveInvocationHandler constrain(final PrimitiveInvocationHandler handler, final ConcurrencyPolicy policy)
+    {
+        return handler == null || policy == null ? handler : new ConstrainedPrimitive(handler, policy);
+    }
+
+    /**
+     * An invocation made under a policy.
+     */
+    interface Call
+    {
+        Object call() throws Throwable;
+    }
+
+    /**
+     * Allows a number of concurrent invocations, with a fair semaphore.
+     */
+    private static final class Limit extends ConcurrencyPolicy
+    {
+        private final Semaphore permits;
+        private final long timeout;
+
+        /**
+         * @param timeout The timeout in nanoseconds, or -1 to wait as long as it takes.
+         */
+        Limit(final int permits, final long timeout)
+        {
+            if (permits <= 0)
+                throw new IllegalArgumentException("Invalid number of permits " + permits);
+            this.permits = new Semaphore(permits, true);
+            this.timeout = timeout;
+        }
+
+        @Override
+        Object submit(final NativeMethod method, final Call call) throws Throwable
+        {
+            final long start = this.enqueue();
+            if (!this.acquire(start))
+                throw this.reject(method, "Timed out waiting to call");
+            try
+            {
+                this.dequeue(start);
+                return this.run(call);
+            }
+            finally
+            {
+                this.permits.release();
+            }
+        }
+
+        /**
+         * Wait for a permit, uninterruptibly.
+         *
+         * @return Whether a permit was acquired before the timeout.
+         */
+        private boolean acquire(final long start)
+        {
+            if (this.timeout < 0)
+            {
+                this.permits.acquireUninterruptibly();
+                return true;
+            }
+            boolean interrupted = false;
+            try
+            {
+                while (true)
+                {
+                    try
+                    {
+                        return this.permits.tryAcquire(Math.max(0, start + this.timeout - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    }
+                    catch (final InterruptedException e)
+                    {
+                        interrupted = true;
+                    }
+                }
+            }
+            finally
+            {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Confines invocations to a single dedicated thread.
+     */
+    private static final class Confined extends ConcurrencyPolicy implements Runnable
+    {
+        private final Queue<Task> queue = new ConcurrentLinkedQueue<Task>();
+        private final Thread thread = ConcurrencyPolicy.daemonThreads("native-confined-").newThread(this);
+        private volatile boolean stopped;
+
+        @Override
+        Object submit(final NativeMethod method, final Call call) throws Throwable
+        {
+            final Task task = new Task(this, call, this.enqueue());
+            this.queue.offer(task);
+            // unless the thread has taken the task, it may have stopped without seeing it
+            if (this.stopped && this.queue.remove(task))
+                throw this.reject(method, "Policy shut down");
+            LockSupport.unpark(this.thread);
+            return task.await();
+        }
+
+        @Override
+        public void shutdown()
+        {
+            this.stopped = true;
+            LockSupport.unpark(this.thread);
+        }
+
+        public void run()
+        {
+            while (true)
+            {
+                // read before polling, so that a task queued before the policy was shut down is run
+                final boolean stopped = this.stopped;
+                final Task task = this.queue.poll();
+                if (task != null)
+                    task.run();
+                else if (stopped)
+                    return;
+                else
+                {
+                    // an interrupt would stop the thread from parking
+                    Thread.interrupted();
+                    LockSupport.park(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs invocations on a dedicated pool of threads.
+     */
+    private static final class Pooled extends ConcurrencyPolicy
+    {
+        private final ThreadPoolExecutor executor;
+
+        Pooled(final int threads, final int queueCapacity)
+        {
+            this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), ConcurrencyPolicy.daemonThreads("native-pool-"));
+        }
+
+        @Override
+        Object submit(final NativeMethod method, final Call call) throws Throwable
+        {
+            final Task task = new Task(this, call, this.enqueue());
+            try
+            {
+                this.executor.execute(task);
+            }
+            catch (final RejectedExecutionException e)
+            {
+                throw this.reject(method, this.executor.isShutdown() ? "Policy shut down" : "Queue full");
+            }
+            return task.await();
+        }
+
+        @Override
+        public void shutdown()
+        {
+            this.executor.shutdown();
+        }
+    }
+
+    /**
+     * An invocation handed to another thread, which the caller parks waiting for.
+     */
+    private static final class Task implements Runnable
+    {
+        private final ConcurrencyPolicy policy;
+        private final Call call;
+        private final long start;
+        private final Thread caller = Thread.currentThread();
+        private Object value;
+        private Throwable thrown;
+        private volatile boolean done;
+
+        Task(final ConcurrencyPolicy policy, final Call call, final long start)
+        {
+            this.policy = policy;
+            this.call = call;
+            this.start = start;
+        }
+
+        public void run()
+        {
+            this.policy.dequeue(this.start);
+            try
+            {
+                this.value = this.policy.run(this.call);
+            }
+            catch (final Throwable t)
+            {
+                this.thrown = t;
+            }
+            finally
+            {
+                this.done = true;
+                LockSupport.unpark(this.caller);
+            }
+        }
+
+        /**
+         * Wait for the invocation to complete, uninterruptibly.
+         */
+        Object await() throws Throwable
+        {
+            boolean interrupted = false;
+            while (!this.done)
+            {
+                LockSupport.park(this);
+                if (Thread.interrupted())
+                    interrupted = true;
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (this.thrown != null)
+                throw this.thrown;
+            return this.value;
+        }
+    }
+
+    /**
+     * Makes the invocations of an {@link InvocationHandler} under a policy.
+     */
+    private static final class Constrained implements InvocationHandler
+    {
+        private final InvocationHandler handler;
+        private final ConcurrencyPolicy policy;
+        private final NativeMethod method;
+
+        Constrained(final InvocationHandler handler, final ConcurrencyPolicy policy, final NativeMethod method)
+        {
+            this.handler = handler;
+            this.policy = policy;
+            this.method = method;
+        }
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            return this.policy.execute(this.method, new Call() {
+                public Object call() throws Throwable
+                {
+                    final Object value = Constrained.this.handler.invoke(proxy, method, args);
+                    return value == NativeInvocationHandler.PROCEED ? ConcurrencyPolicy.proceed(Constrained.this.method, proxy, args) : value;
+                }
+            });
+        }
+    }
+
+    /**
+     * Makes the invocations of a {@link PrimitiveInvocationHandler} under a policy. Every typed
+     * invoke method is overridden, so that an invocation is governed once whichever method the
+     * generated code calls. Values are boxed to pass them between threads.
+     */
+    private static final class ConstrainedPrimitive extends PrimitiveInvocationHandler
+    {
+        private final PrimitiveInvocationHandler handler;
+        private final ConcurrencyPolicy policy;
+
+        ConstrainedPrimitive(final PrimitiveInvocationHandler handler, final ConcurrencyPolicy policy)
+        {
+            this.handler = handler;
+            this.policy = policy;
+        }
+
+        @Override
+        public Object invokeObject(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            return this.execute(proxy, method, args);
+        }
+
+        @Override
+        public void invokeVoid(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            this.execute(proxy, method, args);
+        }
+
+        @Override
+        public boolean invokeBoolean(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            return ((Boolean)this.execute(proxy, method, args)).booleanValue();
+        }
+
+        @Override
+        public byte invokeByte(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            return ((Byte)this.execute(proxy, method, args)).byteValue();
+        }
+
+        @Override
+        public char invokeChar(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            return ((Character)this.execute(proxy, method, args)).charValue();
+        }
+
+        @Override
+        public short invokeShort(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            return ((Short)this.execute(proxy, method, args)).shortValue();
+        }
+
+        @Override
+        public int invokeInt(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            return ((Integer)this.execute(proxy, method, args)).intValue();
+        }
+
+        @Override
+        public long invokeLong(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            return ((Long)this.execute(proxy, method, args)).longValue();
+        }
+
+        @Override
+        public float invokeFloat(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            return ((Float)this.execute(proxy, method, args)).floatValue();
+        }
+
+        @Override
+        public double invokeDouble(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            return ((Double)this.execute(proxy, method, args)).doubleValue();
+        }
+
+        /**
+         * Make an invocation under the policy, through the typed invoke method for the return
+         * type of the method, calling the native method when the handler declines.
+         */
+        private Object execute(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final PrimitiveInvocationHandler handler = this.handler;
+            return this.policy.execute(method, new Call() {
+                public Object call() throws Throwable
+                {
+                    try
+                    {
+                        final Object value = ConstrainedPrimitive.invoke(handler, proxy, method, args);
+                        if (value != NativeInvocationHandler.PROCEED)
+                            return value;
+                    }
+                    catch (final Throwable t)
+                    {
+                        if (InvocationMetrics.isFailure(t))
+                            throw t;
+                    }
+                    return ConcurrencyPolicy.proceed(method, proxy, args.box(method.getArgTypes()));
+                }
+            });
+        }
+
+        /**
+         * Invoke the typed invoke method of a handler for the return type of the method.
+         */
+        private static Object invoke(final PrimitiveInvocationHandler handler, final Object proxy, final NativeMethod method,
+                                     final NativeFrame args) throws Throwable
+        {
+            final Class<?> type = method.getMethod().getReturnType();
+            if (!type.isPrimitive())
+                return handler.invokeObject(proxy, method, args);
+            if (type == void.class)
+            {
+                handler.invokeVoid(proxy, method, args);
+                return null;
+            }
+            if (type == int.class)
+                return Integer.valueOf(handler.invokeInt(proxy, method, args));
+            if (type == long.class)
+                return Long.valueOf(handler.invokeLong(proxy, method, args));
+            if (type == double.class)
+                return Double.valueOf(handler.invokeDouble(proxy, method, args));
+            if (type == boolean.class)
+                return Boolean.valueOf(handler.invokeBoolean(proxy, method, args));
+            if (type == float.class)
+                return Float.valueOf(handler.invokeFloat(proxy, method, args));
+            if (type == byte.class)
+                return Byte.valueOf(handler.invokeByte(proxy, method, args));
+            if (type == char.class)
+                return Character.valueOf(handler.invokeChar(proxy, method, args));
+            return Short.valueOf(handler.invokeShort(proxy, method, args));
+        }
+    }
+}
@@ -12,6 +12,12 @@ public class Constants
      */
     public static final String NATIVE_METHOD_PREFIX = "wrapped_$$_";
 
+    /**
+     * The prefix of the synthetic static fields added to hold the {@link NativeMethod} for each
+     * wrapped native method.
+     */
+    public static final String NATIVE_METHOD_FIELD_PREFIX = "nativeMethod$$_";
+
     // Cached Type object for various classes used in bytecode generation.
 
     /**
@@ -19,6 +25,11 @@ public class Constants
      */
     public static final Type CLASS_TYPE = Type.getType(Class.class);
 
+    /**
+     * Type for the {@link Object} class.
+     */
+    public static final Type OBJECT_TYPE = Type.getType(Object.class);
+
     /**
      * Type for the {@link Throwable} class.
      */
@@ -44,6 +55,31 @@ public class Constants
      */
     public static final Type HANDLER_TYPE = Type.getType(NativeInvocationHandler.class);
 
+    /**
+     * Type for the {@link NativeMethod} linked to handlers by generated bytecode.
+     */
+    public static final Type NATIVE_METHOD_TYPE = Type.getType(NativeMethod.class);
+
+    /**
+     * Type for the {@link java.lang.reflect.InvocationHandler} interface implemented by handlers.
+     */
+    public static final Type INVOCATION_HANDLER_TYPE = Type.getType(java.lang.reflect.InvocationHandler.class);
+
+    /**
+     * Type for the {@link PrimitiveInvocationHandler} invoked by generated bytecode.
+     */
+    public static final Type PRIMITIVE_HANDLER_TYPE = Type.getType(PrimitiveInvocationHandler.class);
+
+    /**
+     * Type for the {@link NativeFrame} used to pass arguments without boxing.
+     */
+    public static final Type NATIVE_FRAME_TYPE = Type.getType(NativeFrame.class);
+
+    /**
+     * Type for the {@link NativeEvents} that generated bytecode publishes native invocations to.
+     */
+    public static final Type NATIVE_EVENTS_TYPE = Type.getType(NativeEvents.class);
+
     // Type and descriptor constants to reference the annotations added by bytecode generators
 
     /**
@@ -56,6 +92,11 @@ public class Constants
      */
     public static final Type HAS_INTERCEPTED_NATIVES_TYPE = Type.getType(HasInterceptedNatives.class);
 
+    /**
+     * Descriptor for the {@link InterceptedAtLoad} annotation.
+     */
+    public static final String INTERCEPTED_AT_LOAD_DESCRIPTOR = Type.getDescriptor(InterceptedAtLoad.class);
+
     /**
      * Descriptor for the {@link HasNatives} annotation.
      */
@@ -86,6 +127,21 @@ public class Constants
      */
     public static final Type WAS_NATIVE_TYPE = Type.getType(WasNative.class);
 
+    /**
+     * Get the name of the synthetic static field that holds the {@link NativeMethod} for a wrapped
+     * native method. The descriptor is included so that overloaded methods get distinct fields,
+     * with the characters that are illegal in field names replaced.
+     *
+     * @param name The name of the native method.
+     * @param desc The descriptor of the native method.
+     * @return The field name.
+     */
+    public static String nativeMethodField(final String name, final String desc)
+    {
+        return Constants.NATIVE_METHOD_FIELD_PREFIX + name + '$' +
+            desc.replace('/', '$').replace(';', '_').replace('[', '@');
+    }
+
     /**
      * An array of Type references for the wrapper types of the Java primitives keyed by the
      * {@link Type#getSort()}.
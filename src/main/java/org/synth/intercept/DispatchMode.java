@@ -0,0 +1,33 @@
+package org.synth.intercept;
+
+import java.lang.reflect.InvocationHandler;
+
+/**
+ * The strategies available to the {@link NativeInterceptingMethodAdapter} for generating the code
+ * that dispatches an intercepted method to its {@link InvocationHandler}.
+ */
+public enum DispatchMode
+{
+    /**
+     * Call one of the shared static handle methods on {@link NativeInvocationHandler}, which looks
+     * up the handler for each invocation. Every intercepted method in the VM shares the same few
+     * entry points.
+     */
+    STATIC,
+
+    /**
+     * Look up the {@link NativeMethod} for the call site and invoke the handler linked to it
+     * directly from the intercepted method. The handler is relinked whenever the registry changes,
+     * and since each intercepted method has its own invocation of the handler, the JIT can profile
+     * and inline the handler at each call site.
+     */
+    LINKED,
+
+    /**
+     * Link each call site in the same way as {@link #LINKED}, but pass the arguments to a
+     * {@link PrimitiveInvocationHandler} in a {@link NativeFrame} and call the invoke method for
+     * the return type, so that primitive arguments and return values are never boxed. Handlers
+     * that only implement {@link InvocationHandler} are adapted, with boxing.
+     */
+    PRIMITIVE
+}
@@ -0,0 +1,189 @@
+package org.synth.intercept;
+
+/**
+ * A {@link ClassnameFilter} that matches class names against a set of glob patterns. The patterns
+ * are compiled once into a trie over the internal class name, so matching a class name walks the
+ * trie without allocating.
+ *
+ * Patterns may use dots or slashes between packages, e.g. <code>com.acme.**</code> or
+ * <code>com/acme/**</code>. In a pattern:
+ * <ul>
+ * <li><code>**</code> matches any sequence of characters, including package separators, so
+ * <code>com.acme.**</code> matches every class in <code>com.acme</code> and its subpackages.</li>
+ * <li><code>*</code> matches any sequence of characters within a package or class name, so
+ * <code>com.acme.*</code> only matches the classes directly in <code>com.acme</code>.</li>
+ * <li>anything else matches itself, so <code>com.acme.Native</code> matches a single class (but
+ * not its nested classes, which need <code>com.acme.Native$*</code>).</li>
+ * </ul>
+ */
+public final class GlobClassnameFilter implements ClassnameFilter
+{
+    /**
+     * The root of the trie.
+     */
+    private final Node root = new Node();
+
+    /**
+     * Compile a filter from glob patterns.
+     *
+     * @param patterns The patterns.
+     * @throws IllegalArgumentException When a pattern is null or empty.
+     */
+    public GlobClassnameFilter(final String... patterns)
+    {
+        for (final String pattern : patterns)
+            this.add(pattern);
+    }
+
+    /**
+     * Parse a filter from a list of glob patterns separated by the given character.
+     *
+     * @param patterns The patterns, e.g. <code>com.acme.**:org.example.*</code>.
+     * @param separator The character separating the patterns.
+     * @return The filter.
+     * @throws IllegalArgumentException When any pattern is empty.
+     */
+    public static GlobClassnameFilter parse(final String patterns, final char separator)
+    {
+        final GlobClassnameFilter filter = new GlobClassnameFilter();
+        int start = 0;
+        for (int end = patterns.indexOf(separator); end != -1; end = patterns.indexOf(separator, start))
+        {
+            filter.add(patterns.substring(start, end));
+            start = end + 1;
+        }
+        filter.add(patterns.substring(start));
+        return filter;
+    }
+
+    /**
+     * Add a pattern to the trie.
+     */
+    private void add(final String pattern)
+    {
+        if (pattern == null || pattern.length() == 0)
+            throw new IllegalArgumentException("Cannot filter classes with an empty pattern");
+        Node node = this.root;
+        for (int i = 0; i < pattern.length(); i++)
+        {
+            final char c = pattern.charAt(i);
+            if (c == '*' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '*')
+            {
+                if (node.deep == null)
+                    node.deep = new Node();
+                node = node.deep;
+                i++;
+            }
+            else if (c == '*')
+            {
+                if (node.star == null)
+                    node.star = new Node();
+                node = node.star;
+            }
+            else
+                node = node.child(c == '.' ? '/' : c);
+        }
+        node.terminal = true;
+    }
+
+    /**
+     * Determine whether the class name matches any of the patterns.
+     *
+     * @param classname The class name, in internal form (e.g. java/lang/String).
+     * @return Whether it matches.
+     */
+    @Override
+    public boolean matches(final String classname)
+    {
+        return classname != null && GlobClassnameFilter.matches(this.root, classname, 0);
+    }
+
+    /**
+     * Match the rest of a class name from a node of the trie.
+     */
+    private static boolean matches(final Node node, final String classname, final int start)
+    {
+        final int length = classname.length();
+        if (node.deep != null)
+            for (int i = start; i <= length; i++)
+                if (GlobClassnameFilter.matches(node.deep, classname, i))
+                    return true;
+        if (node.star != null)
+            for (int i = start; i <= length; i++)
+            {
+                if (GlobClassnameFilter.matches(node.star, classname, i))
+                    return true;
+                if (i < length && classname.charAt(i) == '/')
+                    break;
+            }
+        if (start == length)
+            return node.terminal;
+        final Node child = node.find(classname.charAt(start));
+        return child != null && GlobClassnameFilter.matches(child, classname, start + 1);
+    }
+
+    /**
+     * A node of the trie. Literal characters lead to child nodes, while the wildcards lead to the
+     * {@link #star} and {@link #deep} nodes.
+     */
+    private static final class Node
+    {
+        /**
+         * The literal characters leading to the children, in the same order as the children.
+         */
+        private char[] keys = new char[0];
+
+        /**
+         * The children reached by each literal character.
+         */
+        private Node[] children = new Node[0];
+
+        /**
+         * The node reached by a <code>*</code> wildcard, or null.
+         */
+        private Node star;
+
+        /**
+         * The node reached by a <code>**</code> wildcard, or null.
+         */
+        private Node deep;
+
+        /**
+         * Whether a pattern ends at this node.
+         */
+        private boolean terminal;
+
+        /**
+         * Find the child for a literal character.
+         *
+         * @return The child, or null when there is none.
+         */
+        Node find(final char c)
+        {
+            for (int i = 0; i < this.keys.length; i++)
+                if (this.keys[i] == c)
+                    return this.children[i];
+            return null;
+        }
+
+        /**
+         * Get the child for a literal character, adding it when there is none.
+         */
+        Node child(final char c)
+        {
+            final Node found = this.find(c);
+            if (found != null)
+                return found;
+            final int n = this.keys.length;
+            final char[] keys = new char[n + 1];
+            final Node[] children = new Node[n + 1];
+            System.arraycopy(this.keys, 0, keys, 0, n);
+            System.arraycopy(this.children, 0, children, 0, n);
+            keys[n] = c;
+            children[n] = new Node();
+            this.keys = keys;
+            this.children = children;
+            return children[n];
+        }
+    }
+}
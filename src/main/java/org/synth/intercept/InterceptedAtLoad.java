@@ -0,0 +1,18 @@
+package org.synth.intercept;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * A marker annotation added during bytecode instrumentation to signal classes whose native
+ * methods were wrapped and intercepted in a single pass when the class was loaded, because they
+ * matched the eager filter of the {@link NativeInterceptorAgent}. Such classes are never
+ * retransformed; handlers are simply registered and unregistered.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface InterceptedAtLoad
+{
+}
\ No newline at end of file
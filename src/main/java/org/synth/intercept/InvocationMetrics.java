@@ -0,0 +1,497 @@
+package org.synth.intercept;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records the invocations of a single intercepted method: how many there were, how many threw,
+ * and a histogram of how long they took. Recording never allocates or locks. The counts are kept
+ * in stripes chosen by the recording thread, so threads calling the same method mostly update
+ * different memory, and each stripe is only created once a thread records into it.
+ *
+ * Reading the clock costs more than the rest of the recording put together, so only one in every
+ * {@link #SAMPLE_INTERVAL} invocations on each stripe is timed. Every invocation is counted.
+ *
+ * The histogram is log-linear: durations below {@link #LINEAR_BUCKETS} nanoseconds each have their
+ * own bucket, and every power of two above that is split into {@link #SUB_BUCKETS} equal buckets,
+ * so a duration is known to within a quarter of its magnitude. Durations beyond the last bucket
+ * (about 18 minutes) are counted in the last bucket.
+ *
+ * Methods are metered by decorating the handler they are linked to (see {@link #meter(InvocationHandler,InvocationMetrics)}),
+ * so methods that are not metered pay nothing.
+ */
+final class InvocationMetrics
+{
+    /**
+     * The number of sub-buckets each power of two is split into.
+     */
+    private static final int SUB_BUCKETS = 4;
+
+    /**
+     * The number of durations, from zero, with a bucket of their own.
+     */
+    static final int LINEAR_BUCKETS = 2 * InvocationMetrics.SUB_BUCKETS;
+
+    /**
+     * The largest power of two with buckets of its own.
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    /**
+     * The number of buckets in the histogram.
+     */
+    static final int BUCKETS = InvocationMetrics.LINEAR_BUCKETS +
+        (InvocationMetrics.MAX_EXPONENT - 2) * InvocationMetrics.SUB_BUCKETS;
+
+    /**
+     * The slot of each stripe counting the invocations.
+     */
+    private static final int COUNT = InvocationMetrics.BUCKETS;
+
+    /**
+     * The slot of each stripe counting the invocations that threw.
+     */
+    private static final int ERRORS = InvocationMetrics.BUCKETS + 1;
+
+    /**
+     * The slot of each stripe holding the total duration of the timed invocations.
+     */
+    private static final int TOTAL = InvocationMetrics.BUCKETS + 2;
+
+    /**
+     * The slot of each stripe holding the longest duration of the timed invocations.
+     */
+    private static final int MAX = InvocationMetrics.BUCKETS + 3;
+
+    /**
+     * One in this many invocations is timed. This must be a power of two.
+     */
+    static final int SAMPLE_INTERVAL = 16;
+
+    /**
+     * Returned by {@link #start()} when the invocation is not timed.
+     */
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
+    /**
+     * The number of stripes: the number of processors rounded up to a power of two, at most 16.
+     */
+    private static final int STRIPES =
+        Integer.highestOneBit(Math.min(16, 2 * Runtime.getRuntime().availableProcessors() - 1));
+
+    /**
+     * The stripes, each holding the histogram buckets followed by the {@link #COUNT},
+     * {@link #ERRORS}, {@link #TOTAL} and {@link #MAX} slots.
+     */
+    private final AtomicReferenceArray<AtomicLongArray> stripes =
+        new AtomicReferenceArray<AtomicLongArray>(InvocationMetrics.STRIPES);
+
+    /**
+     * Count the start of an invocation.
+     *
+     * @return The time the invocation started, to pass to {@link #stop(long,boolean)}, or a
+     *         value telling it that the invocation is not timed.
+     */
+    long start()
+    {
+        final long count = this.stripe().incrementAndGet(InvocationMetrics.COUNT);
+        return (count & (InvocationMetrics.SAMPLE_INTERVAL - 1)) == 1 ? System.nanoTime() : InvocationMetrics.NOT_TIMED;
+    }
+
+    /**
+     * Record the end of an invocation.
+     *
+     * @param start The value returned by {@link #start()}.
+     * @param failed Whether the invocation threw.
+     */
+    void stop(final long start, final boolean failed)
+    {
+        if (start == InvocationMetrics.NOT_TIMED && !failed)
+            return;
+        final AtomicLongArray stripe = this.stripe();
+        if (failed)
+            stripe.incrementAndGet(InvocationMetrics.ERRORS);
+        if (start != InvocationMetrics.NOT_TIMED)
+        {
+            final long nanos = System.nanoTime() - start;
+            stripe.incrementAndGet(InvocationMetrics.bucket(nanos));
+            stripe.addAndGet(InvocationMetrics.TOTAL, nanos);
+            long max = stripe.get(InvocationMetrics.MAX);
+            while (nanos > max && !stripe.compareAndSet(InvocationMetrics.MAX, max, nanos))
+                max = stripe.get(InvocationMetrics.MAX);
+        }
+    }
+
+    /**
+     * Take a snapshot of the invocations recorded so far. Invocations recorded while the snapshot
+     * is taken may or may not be included.
+     *
+     * @param method The name of the method, for the snapshot.
+     * @return The snapshot.
+     */
+    InvocationStatistics snapshot(final String method)
+    {
+        final long[] histogram = new long[InvocationMetrics.BUCKETS];
+        long invocations = 0;
+        long errors = 0;
+        long total = 0;
+        long max = 0;
+        for (int i = 0; i < this.stripes.length(); i++)
+        {
+            final AtomicLongArray stripe = this.stripes.get(i);
+            if (stripe == null)
+                continue;
+            for (int j = 0; j < histogram.length; j++)
+                histogram[j] += stripe.get(j);
+            invocations += stripe.get(InvocationMetrics.COUNT);
+            errors += stripe.get(InvocationMetrics.ERRORS);
+            total += stripe.get(InvocationMetrics.TOTAL);
+            max = Math.max(max, stripe.get(InvocationMetrics.MAX));
+        }
+        return new InvocationStatistics(method, invocations, errors, histogram, total, max);
+    }
+
+    /**
+     * Discard the invocations recorded so far. Invocations recorded while the metrics are reset
+     * may or may not be discarded.
+     */
+    void reset()
+    {
+        for (int i = 0; i < this.stripes.length(); i++)
+            this.stripes.set(i, null);
+    }
+
+    /**
+     * Get the stripe for the current thread, creating it on first use.
+     */
+    private AtomicLongArray stripe()
+    {
+        // spread the sequential thread ids over the stripes
+        final int index = (int)((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 40) & (InvocationMetrics.STRIPES - 1);
+        final AtomicLongArray stripe = this.stripes.get(index);
+        if (stripe != null)
+            return stripe;
+        this.stripes.compareAndSet(index, null, new AtomicLongArray(InvocationMetrics.MAX + 1));
+        return this.stripes.get(index);
+    }
+
+    /**
+     * Get the bucket of the histogram that counts a duration.
+     *
+     * @param nanos The duration.
+     * @return The index of the bucket.
+     */
+    static int bucket(final long nanos)
+    {
+        if (nanos < InvocationMetrics.LINEAR_BUCKETS)
+            return nanos < 0 ? 0 : (int)nanos;
+        final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > InvocationMetrics.MAX_EXPONENT)
+            return InvocationMetrics.BUCKETS - 1;
+        final int sub = (int)(nanos >>> (exponent - 2)) & (InvocationMetrics.SUB_BUCKETS - 1);
+        return InvocationMetrics.LINEAR_BUCKETS + (exponent - 3) * InvocationMetrics.SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Get the longest duration counted by a bucket of the histogram.
+     *
+     * @param bucket The index of the bucket.
+     * @return The duration, in nanoseconds.
+     */
+    static long upperBound(final int bucket)
+    {
+        if (bucket < InvocationMetrics.LINEAR_BUCKETS)
+            return bucket;
+        if (bucket == InvocationMetrics.BUCKETS - 1)
+            return Long.MAX_VALUE;
+        final int exponent = (bucket - InvocationMetrics.LINEAR_BUCKETS) / InvocationMetrics.SUB_BUCKETS + 3;
+        final long sub = (bucket - InvocationMetrics.LINEAR_BUCKETS) % InvocationMetrics.SUB_BUCKETS;
+        return ((InvocationMetrics.SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+    }
+
+    /**
+     * Decorate a handler to record its invocations.
+     *
+     * @param handler The handler, or null.
+     * @param metrics The metrics to record into, or null when the method is not metered.
+     * @return The decorated handler, or the handler itself when there is nothing to decorate.
+     */
+    static InvocationHandler meter(final InvocationHandler handler, final InvocationMetrics metrics)
+    {
+        return handler == null || metrics == null ? handler : new Metered(handler, metrics);
+    }
+
+    /**
+     * Decorate a handler for {@link DispatchMode#PRIMITIVE} dispatch to record its invocations.
+     *
+     * @param handler The handler, or null.
+     * @param metrics The metrics to record into, or null when the method is not metered.
+     * @return The decorated handler, or the handler itself when there is nothing to decorate.
+     */
+    static PrimitiveInvocationHandler meter(final PrimitiveInvocationHandler handler, final InvocationMetrics metrics)
+    {
+        return handler == null || metrics == null ? handler : new MeteredPrimitive(handler, metrics);
+    }
+
+    /**
+     * Determine whether a throwable means that the invocation failed, rather than that the
+     * handler declined it.
+     */
+    static boolean isFailure(final Throwable t)
+    {
+        return t != PrimitiveInvocationHandler.DECLINED;
+    }
+
+    /**
+     * Records the invocations of an {@link InvocationHandler}.
+     */
+    private static final class Metered implements InvocationHandler
+    {
+        private final InvocationHandler handler;
+        private final InvocationMetrics metrics;
+
+        Metered(final InvocationHandler handler, final InvocationMetrics metrics)
+        {
+            this.handler = handler;
+            this.metrics = metrics;
+        }
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            final long start = this.metrics.start();
+            boolean failed = false;
+            try
+            {
+                return this.handler.invoke(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                failed = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                this.metrics.stop(start, failed);
+            }
+        }
+    }
+
+    /**
+     * Records the invocations of a {@link PrimitiveInvocationHandler}. Every typed invoke method
+     * is overridden, so that an invocation is recorded once whichever method the generated code
+     * calls.
+     */
+    private static final class MeteredPrimitive extends PrimitiveInvocationHandler
+    {
+        private final PrimitiveInvocationHandler handler;
+        private final InvocationMetrics metrics;
+
+        MeteredPrimitive(final PrimitiveInvocationHandler handler, final InvocationMetrics metrics)
+        {
+            this.handler = handler;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Object invokeObject(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final long start = this.metrics.start();
+            boolean failed = false;
+            try
+            {
+                return this.handler.invokeObject(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                failed = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                this.metrics.stop(start, failed);
+            }
+        }
+
+        @Override
+        public void invokeVoid(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final long start = this.metrics.start();
+            boolean failed = false;
+            try
+            {
+                this.handler.invokeVoid(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                failed = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                this.metrics.stop(start, failed);
+            }
+        }
+
+        @Override
+        public boolean invokeBoolean(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final long start = this.metrics.start();
+            boolean failed = false;
+            try
+            {
+                return this.handler.invokeBoolean(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                failed = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                this.metrics.stop(start, failed);
+            }
+        }
+
+        @Override
+        public byte invokeByte(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final long start = this.metrics.start();
+            boolean failed = false;
+            try
+            {
+                return this.handler.invokeByte(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                failed = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                this.metrics.stop(start, failed);
+            }
+        }
+
+        @Override
+        public char invokeChar(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final long start = this.metrics.start();
+            boolean failed = false;
+            try
+            {
+                return this.handler.invokeChar(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                failed = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                this.metrics.stop(start, failed);
+            }
+        }
+
+        @Override
+        public short invokeShort(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final long start = this.metrics.start();
+            boolean failed = false;
+            try
+            {
+                return this.handler.invokeShort(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                failed = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                this.metrics.stop(start, failed);
+            }
+        }
+
+        @Override
+        public int invokeInt(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final long start = this.metrics.start();
+            boolean failed = false;
+            try
+            {
+                return this.handler.invokeInt(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                failed = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                this.metrics.stop(start, failed);
+            }
+        }
+
+        @Override
+        public long invokeLong(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final long start = this.metrics.start();
+            boolean failed = false;
+            try
+            {
+                return this.handler.invokeLong(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                failed = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                this.metrics.stop(start, failed);
+            }
+        }
+
+        @Override
+        public float invokeFloat(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final long start = this.metrics.start();
+            boolean failed = false;
+            try
+            {
+                return this.handler.invokeFloat(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                failed = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                this.metrics.stop(start, failed);
+            }
+        }
+
+        @Override
+        public double invokeDouble(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final long start = this.metrics.start();
+            boolean failed = false;
+            try
+            {
+                return this.handler.invokeDouble(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                failed = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                this.metrics.stop(start, failed);
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.synth.intercept;
+
+/**
+ * A snapshot of the invocations of an intercepted method recorded by {@link NativeMethodMetrics}.
+ * Every invocation is counted, but only a regular sample of them is timed, so the durations
+ * describe the sample. Percentiles are taken from a log-linear histogram of the sample and
+ * reported as the longest duration of the bucket they fall in, which is within a quarter of the
+ * actual duration; the mean and the longest duration are exact for the sample.
+ *
+ * The getters make this an open type, so snapshots are exposed through JMX as composite data.
+ */
+public final class InvocationStatistics
+{
+    /**
+     * The method, as returned by {@link java.lang.reflect.Method#toString()}.
+     */
+    private final String method;
+
+    /**
+     * The number of timed invocations counted by each bucket of the histogram.
+     */
+    private final long[] histogram;
+
+    /**
+     * The number of timed invocations.
+     */
+    private final long timed;
+
+    /**
+     * The number of invocations.
+     */
+    private final long invocations;
+
+    /**
+     * The number of invocations that threw.
+     */
+    private final long errors;
+
+    /**
+     * The total duration of the timed invocations, in nanoseconds.
+     */
+    private final long totalNanos;
+
+    /**
+     * The longest duration of the timed invocations, in nanoseconds.
+     */
+    private final long maxNanos;
+
+    InvocationStatistics(final String method, final long invocations, final long errors, final long[] histogram, final long totalNanos,
+                         final long maxNanos)
+    {
+        long timed = 0;
+        for (final long count : histogram)
+            timed += count;
+        this.method = method;
+        this.invocations = invocations;
+        this.errors = errors;
+        this.histogram = histogram;
+        this.timed = timed;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /**
+     * Getter for the method.
+     *
+     * @return The method, as returned by {@link java.lang.reflect.Method#toString()}.
+     */
+    public String getMethod()
+    {
+        return this.method;
+    }
+
+    /**
+     * Getter for the number of invocations.
+     *
+     * @return The number of invocations.
+     */
+    public long getInvocations()
+    {
+        return this.invocations;
+    }
+
+    /**
+     * Getter for the number of invocations that threw. A handler declining an invocation does not
+     * count as an error.
+     *
+     * @return The number of invocations that threw.
+     */
+    public long getErrors()
+    {
+        return this.errors;
+    }
+
+    /**
+     * Getter for the number of invocations that were timed.
+     *
+     * @return The number of timed invocations.
+     */
+    public long getTimedInvocations()
+    {
+        return this.timed;
+    }
+
+    /**
+     * Getter for the total duration of the timed invocations.
+     *
+     * @return The total duration, in nanoseconds.
+     */
+    public long getTotalNanos()
+    {
+        return this.totalNanos;
+    }
+
+    /**
+     * Get the mean duration of the invocations.
+     *
+     * @return The mean duration in nanoseconds, or 0 when no invocation was timed.
+     */
+    public long getMeanNanos()
+    {
+        return this.timed == 0 ? 0 : this.totalNanos / this.timed;
+    }
+
+    /**
+     * Get the median duration of the invocations.
+     *
+     * @return The median duration in nanoseconds.
+     * @see #getPercentileNanos(double)
+     */
+    public long getMedianNanos()
+    {
+        return this.getPercentileNanos(50);
+    }
+
+    /**
+     * Get the 99th percentile of the duration of the invocations.
+     *
+     * @return The 99th percentile in nanoseconds.
+     * @see #getPercentileNanos(double)
+     */
+    public long getP99Nanos()
+    {
+        return this.getPercentileNanos(99);
+    }
+
+    /**
+     * Get the longest duration of the timed invocations. Since only a sample is timed, a longer
+     * invocation may have gone untimed.
+     *
+     * @return The longest timed duration in nanoseconds, or 0 when no invocation was timed.
+     */
+    public long getMaxNanos()
+    {
+        return this.maxNanos;
+    }
+
+    /**
+     * Get a percentile of the duration of the invocations.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     * @return The longest duration of the histogram bucket holding the percentile, but no more
+     *         than {@link #getMaxNanos()}, in nanoseconds, or 0 when no invocation was timed.
+     * @throws IllegalArgumentException When the percentile is out of range.
+     */
+    public long getPercentileNanos(final double percentile)
+    {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Invalid percentile " + percentile);
+        if (this.timed == 0)
+            return 0;
+        final long rank = Math.max(1, (long)Math.ceil(this.timed * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < this.histogram.length; i++)
+        {
+            seen += this.histogram[i];
+            if (seen >= rank)
+                return Math.min(InvocationMetrics.upperBound(i), this.maxNanos);
+        }
+        return this.maxNanos;
+    }
+
+    /**
+     * Get the histogram of the durations of the timed invocations.
+     *
+     * @return A copy of the number of timed invocations counted by each bucket.
+     * @see #getBucketUpperBound(int)
+     */
+    public long[] getHistogram()
+    {
+        return this.histogram.clone();
+    }
+
+    /**
+     * Get the longest duration counted by a bucket of the histogram.
+     *
+     * @param bucket The index of the bucket.
+     * @return The duration, in nanoseconds.
+     * @throws IndexOutOfBoundsException When there is no such bucket.
+     */
+    public static long getBucketUpperBound(final int bucket)
+    {
+        if (bucket < 0 || bucket >= InvocationMetrics.BUCKETS)
+            throw new IndexOutOfBoundsException("No histogram bucket " + bucket);
+        return InvocationMetrics.upperBound(bucket);
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.method + ": " + this.invocations + " invocations, " + this.errors + " errors, mean " +
+            this.getMeanNanos() + "ns, median " + this.getMedianNanos() + "ns, p99 " + this.getP99Nanos() + "ns";
+    }
+}
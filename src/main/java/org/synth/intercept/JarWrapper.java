@@ -0,0 +1,295 @@
+package org.synth.intercept;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.logging.Logger;
+
+/**
+ * A build time tool that wraps the native methods of the classes in a jar ahead of time, writing
+ * a pre-instrumented copy of the jar. This moves the cost of the wrapping transformation out of
+ * class loading: the {@link NativeWrappingTransformer} recognises the wrapped native methods by
+ * their prefix and leaves those classes alone.
+ *
+ * The agent is still needed at runtime, since the VM only links the prefixed native methods to
+ * their native code once the prefix is registered through
+ * {@link java.lang.instrument.Instrumentation#setNativeMethodPrefix(java.lang.instrument.ClassFileTransformer,String)
+ * setNativeMethodPrefix}. The classes are transformed in parallel; the output jar keeps the order
+ * of the input entries.
+ *
+ * Usage: <code>java -cp native-interceptor.jar org.synth.intercept.JarWrapper [-threads n] in.jar
+ * out.jar [in.jar out.jar ...]</code>
+ */
+public final class JarWrapper
+{
+    /**
+     * Log for various logging events.
+     */
+    private static final Logger LOG = Logger.getLogger(JarWrapper.class.getPackage().getName());
+
+    /**
+     * The suffix of class file entries.
+     */
+    private static final String CLASS_SUFFIX = ".class";
+
+    /**
+     * The number of threads transforming classes.
+     */
+    private final int threads;
+
+    /**
+     * Create a tool that transforms classes with one thread per available processor.
+     */
+    public JarWrapper()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a tool that transforms classes with the given number of threads.
+     *
+     * @param threads The number of threads.
+     * @throws IllegalArgumentException When the number of threads is not positive.
+     */
+    public JarWrapper(final int threads)
+    {
+        if (threads < 1)
+            throw new IllegalArgumentException("Cannot wrap jars with " + threads + " threads");
+        this.threads = threads;
+    }
+
+    /**
+     * Write a copy of a jar with the native methods of its classes wrapped. Classes excluded by
+     * the agent's default exclusion filter are copied unchanged. Since the copy no longer matches
+     * any signature of the original, signature files are left out when a class is wrapped.
+     *
+     * @param in The jar to read.
+     * @param out The jar to write. It must not be the same file as the input.
+     * @return The number of classes wrapped.
+     * @throws IOException When reading or writing the jars fails, or a class cannot be
+     *             transformed.
+     */
+    public int wrap(final File in, final File out) throws IOException
+    {
+        if (in.getCanonicalFile().equals(out.getCanonicalFile()))
+            throw new IOException("Cannot wrap jar " + in + " in place");
+        final List<JarEntry> entries = new ArrayList<JarEntry>();
+        final List<byte[]> contents = new ArrayList<byte[]>();
+        final List<Future<byte[]>> wrapped = new ArrayList<Future<byte[]>>();
+        final ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+        try
+        {
+            // read the entries in order, handing the classes that need wrapping to the executor
+            final JarFile jar = new JarFile(in);
+            try
+            {
+                for (final Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();)
+                {
+                    final JarEntry entry = e.nextElement();
+                    final byte[] bytes = JarWrapper.read(jar.getInputStream(entry));
+                    entries.add(entry);
+                    contents.add(bytes);
+                    wrapped.add(JarWrapper.needsWrapping(entry, bytes) ? executor.submit(new Wrap(entry, bytes)) : null);
+                }
+            }
+            finally
+            {
+                jar.close();
+            }
+            // collect the wrapped classes before writing, so the signature files can be dropped
+            int count = 0;
+            for (int i = 0; i < entries.size(); i++)
+            {
+                if (wrapped.get(i) == null)
+                    continue;
+                final byte[] bytes = JarWrapper.get(entries.get(i), wrapped.get(i));
+                if (bytes == null)
+                    continue;
+                contents.set(i, bytes);
+                count++;
+            }
+            final JarOutputStream jarOut = new JarOutputStream(new FileOutputStream(out));
+            try
+            {
+                for (int i = 0; i < entries.size(); i++)
+                {
+                    final JarEntry entry = entries.get(i);
+                    if (count > 0 && JarWrapper.isSignature(entry.getName()))
+                    {
+                        JarWrapper.LOG.warning("Removing signature " + entry.getName() + " from wrapped jar " + out);
+                        continue;
+                    }
+                    final JarEntry copy = new JarEntry(entry.getName());
+                    copy.setTime(entry.getTime());
+                    jarOut.putNextEntry(copy);
+                    jarOut.write(contents.get(i));
+                    jarOut.closeEntry();
+                }
+            }
+            finally
+            {
+                jarOut.close();
+            }
+            JarWrapper.LOG.fine("Wrapped " + count + " classes from " + in + " into " + out);
+            return count;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The command line entry point.
+     *
+     * @param args The options, followed by pairs of input and output jars.
+     */
+    public static void main(final String[] args)
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int i = 0;
+        try
+        {
+            if (args.length > 1 && "-threads".equals(args[0]))
+            {
+                threads = Integer.parseInt(args[1]);
+                i = 2;
+            }
+        }
+        catch (final NumberFormatException e)
+        {
+            JarWrapper.usage();
+        }
+        if (args.length == i || (args.length - i) % 2 != 0)
+            JarWrapper.usage();
+        final JarWrapper wrapper = new JarWrapper(threads);
+        for (; i < args.length; i += 2)
+        {
+            try
+            {
+                final int count = wrapper.wrap(new File(args[i]), new File(args[i + 1]));
+                System.out.println("Wrapped " + count + " classes from " + args[i] + " into " + args[i + 1]);
+            }
+            catch (final IOException e)
+            {
+                System.err.println("Unable to wrap " + args[i] + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Print the command line usage and exit.
+     */
+    private static void usage()
+    {
+        System.err.println("Usage: java " + JarWrapper.class.getName() + " [-threads n] in.jar out.jar [in.jar out.jar ...]");
+        System.exit(2);
+    }
+
+    /**
+     * Determine whether a jar entry is a class that needs its native methods wrapped.
+     */
+    private static boolean needsWrapping(final JarEntry entry, final byte[] bytes)
+    {
+        final String name = entry.getName();
+        if (entry.isDirectory() || !name.endsWith(JarWrapper.CLASS_SUFFIX))
+            return false;
+        return !NativeInterceptorAgent.isExcluded(JarWrapper.className(entry)) &&
+            NativeMethodScanner.mayHaveUnwrappedNatives(bytes);
+    }
+
+    /**
+     * Get the internal name of the class in a jar entry.
+     */
+    private static String className(final JarEntry entry)
+    {
+        return entry.getName().substring(0, entry.getName().length() - JarWrapper.CLASS_SUFFIX.length());
+    }
+
+    /**
+     * Determine whether a jar entry is part of a jar signature.
+     */
+    private static boolean isSignature(final String name)
+    {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) != -1)
+            return false;
+        final String upper = name.toUpperCase();
+        return upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC");
+    }
+
+    /**
+     * Wait for a class to be wrapped.
+     */
+    private static byte[] get(final JarEntry entry, final Future<byte[]> wrapped) throws IOException
+    {
+        try
+        {
+            return wrapped.get();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while wrapping " + entry.getName());
+        }
+        catch (final ExecutionException e)
+        {
+            final IOException error = new IOException("Unable to wrap " + entry.getName() + ": " + e.getCause());
+            error.initCause(e.getCause());
+            throw error;
+        }
+    }
+
+    /**
+     * Read all of a stream.
+     */
+    private static byte[] read(final InputStream in) throws IOException
+    {
+        try
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer))
+                out.write(buffer, 0, read);
+            return out.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Wraps a single class.
+     */
+    private static final class Wrap implements Callable<byte[]>
+    {
+        private final JarEntry entry;
+        private final byte[] bytes;
+
+        Wrap(final JarEntry entry, final byte[] bytes)
+        {
+            this.entry = entry;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public byte[] call()
+        {
+            return NativeWrappingTransformer.wrap(JarWrapper.className(this.entry), this.bytes);
+        }
+    }
+}
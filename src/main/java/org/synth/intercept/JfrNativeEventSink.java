@@ -0,0 +1,428 @@
+package org.synth.intercept;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+
+/**
+ * Publishes the events of {@link NativeEvents} to Java Flight Recorder. This is the only class
+ * linked against the JFR API, and it is left out of builds where that API is not available. It
+ * is loaded by name, so the rest of the library works without it.
+ *
+ * Whether each event is wanted is checked whenever a recording starts or stops, so an event
+ * enabled on a recording that is already running is only published once a recording next starts
+ * or stops.
+ */
+final class JfrNativeEventSink implements NativeEventSink, FlightRecorderListener
+{
+    /**
+     * The type of the native invocation event, once registered.
+     */
+    private EventType nativeInvocation;
+
+    /**
+     * The type of the handler dispatch event, once registered.
+     */
+    private EventType handlerDispatch;
+
+    @Override
+    public void install()
+    {
+        FlightRecorder.register(NativeInvocationEvent.class);
+        FlightRecorder.register(HandlerDispatchEvent.class);
+        this.nativeInvocation = EventType.getEventType(NativeInvocationEvent.class);
+        this.handlerDispatch = EventType.getEventType(HandlerDispatchEvent.class);
+        FlightRecorder.addListener(this);
+        this.update();
+    }
+
+    @Override
+    public void recorderInitialized(final FlightRecorder recorder)
+    {
+        this.update();
+    }
+
+    @Override
+    public void recordingStateChanged(final Recording recording)
+    {
+        this.update();
+    }
+
+    /**
+     * Tell {@link NativeEvents} which events the running recordings want.
+     */
+    private void update()
+    {
+        NativeEvents.update(this.nativeInvocation.isEnabled(), this.handlerDispatch.isEnabled());
+    }
+
+    @Override
+    public Object beginNative()
+    {
+        final NativeInvocationEvent event = new NativeInvocationEvent();
+        if (!event.isEnabled())
+            return null;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endNative(final Object event, final NativeMethod method)
+    {
+        final NativeInvocationEvent invocation = (NativeInvocationEvent)event;
+        invocation.end();
+        if (invocation.shouldCommit())
+        {
+            invocation.declaringClass = method.getDeclaringClass();
+            invocation.method = method.getName();
+            invocation.commit();
+        }
+    }
+
+    @Override
+    public InvocationHandler trace(final InvocationHandler handler, final NativeMethod method)
+    {
+        return new Traced(handler, method);
+    }
+
+    @Override
+    public PrimitiveInvocationHandler trace(final PrimitiveInvocationHandler handler, final NativeMethod method)
+    {
+        return new TracedPrimitive(handler, method);
+    }
+
+    /**
+     * Start a handler dispatch event.
+     *
+     * @return The event, or null when the event is not wanted.
+     */
+    static HandlerDispatchEvent begin()
+    {
+        final HandlerDispatchEvent event = new HandlerDispatchEvent();
+        if (!event.isEnabled())
+            return null;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End a handler dispatch event, publishing it.
+     *
+     * @param event The event returned by {@link #begin()}, or null.
+     * @param method The method dispatched to the handler.
+     * @param handler The handler.
+     * @param thrown Whether the handler threw.
+     */
+    static void end(final HandlerDispatchEvent event, final NativeMethod method, final Object handler, final boolean thrown)
+    {
+        if (event == null)
+            return;
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.declaringClass = method.getDeclaringClass();
+            event.method = method.getName();
+            event.handler = handler.getClass();
+            event.thrown = thrown;
+            event.commit();
+        }
+    }
+
+    /**
+     * A native method called by an intercepted method.
+     */
+    @Name("org.synth.intercept.NativeInvocation")
+    @Label("Native Invocation")
+    @Category({ "Java Application", "Native Interceptor" })
+    @Description("A native method called by an intercepted method without a handler, or whose handler declined")
+    static final class NativeInvocationEvent extends Event
+    {
+        @Label("Declaring Class")
+        Class<?> declaringClass;
+
+        @Label("Method")
+        String method;
+    }
+
+    /**
+     * An intercepted method dispatched to its handler.
+     */
+    @Name("org.synth.intercept.HandlerDispatch")
+    @Label("Handler Dispatch")
+    @Category({ "Java Application", "Native Interceptor" })
+    @Description("An intercepted native method dispatched to its handler")
+    static final class HandlerDispatchEvent extends Event
+    {
+        @Label("Declaring Class")
+        Class<?> declaringClass;
+
+        @Label("Method")
+        String method;
+
+        @Label("Handler")
+        Class<?> handler;
+
+        @Label("Thrown")
+        boolean thrown;
+    }
+
+    /**
+     * Publishes the dispatches to an {@link InvocationHandler}.
+     */
+    private static final class Traced implements InvocationHandler
+    {
+        private final InvocationHandler handler;
+        private final NativeMethod method;
+
+        Traced(final InvocationHandler handler, final NativeMethod method)
+        {
+            this.handler = handler;
+            this.method = method;
+        }
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            final HandlerDispatchEvent event = JfrNativeEventSink.begin();
+            boolean thrown = false;
+            try
+            {
+                return this.handler.invoke(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                thrown = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                JfrNativeEventSink.end(event, this.method, this.handler, thrown);
+            }
+        }
+    }
+
+    /**
+     * Publishes the dispatches to a {@link PrimitiveInvocationHandler}. Every typed invoke method
+     * is overridden, so that a dispatch is published once whichever method the generated code
+     * calls.
+     */
+    private static final class TracedPrimitive extends PrimitiveInvocationHandler
+    {
+        private final PrimitiveInvocationHandler handler;
+        private final NativeMethod method;
+
+        TracedPrimitive(final PrimitiveInvocationHandler handler, final NativeMethod method)
+        {
+            this.handler = handler;
+            this.method = method;
+        }
+
+        @Override
+        public Object invokeObject(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final HandlerDispatchEvent event = JfrNativeEventSink.begin();
+            boolean thrown = false;
+            try
+            {
+                return this.handler.invokeObject(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                thrown = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                JfrNativeEventSink.end(event, this.method, this.handler, thrown);
+            }
+        }
+
+        @Override
+        public void invokeVoid(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final HandlerDispatchEvent event = JfrNativeEventSink.begin();
+            boolean thrown = false;
+            try
+            {
+                this.handler.invokeVoid(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                thrown = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                JfrNativeEventSink.end(event, this.method, this.handler, thrown);
+            }
+        }
+
+        @Override
+        public boolean invokeBoolean(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final HandlerDispatchEvent event = JfrNativeEventSink.begin();
+            boolean thrown = false;
+            try
+            {
+                return this.handler.invokeBoolean(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                thrown = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                JfrNativeEventSink.end(event, this.method, this.handler, thrown);
+            }
+        }
+
+        @Override
+        public byte invokeByte(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final HandlerDispatchEvent event = JfrNativeEventSink.begin();
+            boolean thrown = false;
+            try
+            {
+                return this.handler.invokeByte(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                thrown = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                JfrNativeEventSink.end(event, this.method, this.handler, thrown);
+            }
+        }
+
+        @Override
+        public char invokeChar(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final HandlerDispatchEvent event = JfrNativeEventSink.begin();
+            boolean thrown = false;
+            try
+            {
+                return this.handler.invokeChar(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                thrown = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                JfrNativeEventSink.end(event, this.method, this.handler, thrown);
+            }
+        }
+
+        @Override
+        public short invokeShort(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final HandlerDispatchEvent event = JfrNativeEventSink.begin();
+            boolean thrown = false;
+            try
+            {
+                return this.handler.invokeShort(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                thrown = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                JfrNativeEventSink.end(event, this.method, this.handler, thrown);
+            }
+        }
+
+        @Override
+        public int invokeInt(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final HandlerDispatchEvent event = JfrNativeEventSink.begin();
+            boolean thrown = false;
+            try
+            {
+                return this.handler.invokeInt(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                thrown = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                JfrNativeEventSink.end(event, this.method, this.handler, thrown);
+            }
+        }
+
+        @Override
+        public long invokeLong(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final HandlerDispatchEvent event = JfrNativeEventSink.begin();
+            boolean thrown = false;
+            try
+            {
+                return this.handler.invokeLong(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                thrown = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                JfrNativeEventSink.end(event, this.method, this.handler, thrown);
+            }
+        }
+
+        @Override
+        public float invokeFloat(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final HandlerDispatchEvent event = JfrNativeEventSink.begin();
+            boolean thrown = false;
+            try
+            {
+                return this.handler.invokeFloat(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                thrown = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                JfrNativeEventSink.end(event, this.method, this.handler, thrown);
+            }
+        }
+
+        @Override
+        public double invokeDouble(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final HandlerDispatchEvent event = JfrNativeEventSink.begin();
+            boolean thrown = false;
+            try
+            {
+                return this.handler.invokeDouble(proxy, method, args);
+            }
+            catch (final Throwable t)
+            {
+                thrown = InvocationMetrics.isFailure(t);
+                throw t;
+            }
+            finally
+            {
+                JfrNativeEventSink.end(event, this.method, this.handler, thrown);
+            }
+        }
+    }
+}
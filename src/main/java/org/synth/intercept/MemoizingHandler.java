@@ -0,0 +1,405 @@
+package org.synth.intercept;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A handler that memoizes the results of pure native methods, such as hashes, checksums or table
+ * lookups, so that a method called again with the same arguments returns the remembered result
+ * without calling the native method. Register it for a class through {@link NativeInterceptor}
+ * like any other handler. On a miss the original native method is called (see
+ * {@link NativeMethod#invokeNative(Object,Object[])}) and its result remembered, so passthrough
+ * does not need to be enabled.
+ *
+ * Each method has its own least recently used cache, bounded by the total weight of its entries.
+ * Every entry weighs 1 unless {@link #weigh(NativeMethod,Object)} is overridden, so by default the
+ * bound is the number of entries. Entries can also expire a fixed time after they are added.
+ *
+ * Results are keyed by the arguments and, for instance methods, the identity of the receiver.
+ * Primitive arguments are compared by value and kept unboxed when the class is intercepted in
+ * {@link DispatchMode#PRIMITIVE} mode; reference arguments are compared with
+ * {@link Object#equals(Object)}, and arrays by their contents. Array arguments and results are
+ * copied, so callers changing them later do not change what is remembered. Exceptions are not
+ * remembered.
+ */
+public class MemoizingHandler extends PrimitiveInvocationHandler
+{
+    /**
+     * The value remembered for a method that returned null.
+     */
+    private static final Object NULL = new Object();
+
+    /**
+     * The largest total weight of the entries remembered for each method.
+     */
+    private final long maximumWeight;
+
+    /**
+     * How long entries are remembered, in nanoseconds, or 0 to remember them until evicted.
+     */
+    private final long timeToLive;
+
+    /**
+     * The cache of each memoized method.
+     */
+    private final ConcurrentMap<NativeMethod,Memo> memos = new ConcurrentHashMap<NativeMethod,Memo>();
+
+    /**
+     * The number of invocations answered from the caches.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of invocations that called the native method.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The number of entries evicted or expired.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create a handler whose entries are remembered until they are evicted.
+     *
+     * @param maximumWeight The largest total weight of the entries remembered for each method.
+     * @throws IllegalArgumentException When the weight is not positive.
+     */
+    public MemoizingHandler(final long maximumWeight)
+    {
+        this(maximumWeight, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Create a handler whose entries expire.
+     *
+     * @param maximumWeight The largest total weight of the entries remembered for each method.
+     * @param timeToLive How long entries are remembered after they are added, or 0 to remember
+     *            them until they are evicted.
+     * @param unit The unit of the time to live.
+     * @throws IllegalArgumentException When the weight is not positive, the time to live is
+     *         negative or the unit is null.
+     */
+    public MemoizingHandler(final long maximumWeight, final long timeToLive, final TimeUnit unit)
+    {
+        if (maximumWeight <= 0)
+            throw new IllegalArgumentException("Invalid maximum weight " + maximumWeight);
+        if (timeToLive < 0)
+            throw new IllegalArgumentException("Invalid time to live " + timeToLive);
+        if (unit == null)
+            throw new IllegalArgumentException("Invalid time unit (null)");
+        this.maximumWeight = maximumWeight;
+        this.timeToLive = unit.toNanos(timeToLive);
+    }
+
+    @Override
+    public Object invokeObject(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        if (!this.isMemoized(method))
+            return this.load(proxy, method, args);
+        final Key key = new Key(proxy, args);
+        final Memo memo = this.memo(method);
+        final long now = this.timeToLive == 0 ? 0 : System.nanoTime();
+        Object value = memo.get(key, now);
+        if (value == Memo.EXPIRED)
+        {
+            this.evictions.incrementAndGet();
+            value = null;
+        }
+        if (value != null)
+        {
+            this.hits.incrementAndGet();
+            return value == MemoizingHandler.NULL ? null : MemoizingHandler.copy(value);
+        }
+        this.misses.incrementAndGet();
+        value = this.load(proxy, method, args);
+        final Object remembered = value == null ? MemoizingHandler.NULL : MemoizingHandler.copy(value);
+        this.evictions.addAndGet(memo.put(key, remembered, this.weigh(method, value), now));
+        return value;
+    }
+
+    /**
+     * Compute the result of an invocation that is not remembered. By default this calls the
+     * original native method.
+     *
+     * @param proxy The instance the method was invoked on, or the declaring class for static methods.
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @return The value to return, boxed for primitive return types.
+     * @throws Throwable Whatever the native method throws.
+     */
+    protected Object load(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        return method.invokeNative(proxy, args.box(method.getArgTypes()));
+    }
+
+    /**
+     * Determine whether the results of a method are memoized. Methods that are not memoized call
+     * {@link #load(Object,NativeMethod,NativeFrame)} on every invocation. By default every method
+     * returning a value is memoized.
+     *
+     * @param method The intercepted method.
+     * @return Whether to memoize its results.
+     */
+    protected boolean isMemoized(final NativeMethod method)
+    {
+        return method.getMethod().getReturnType() != void.class;
+    }
+
+    /**
+     * Get the weight of a result, which counts towards the maximum weight of its method. By
+     * default every result weighs 1. A result heavier than the maximum weight is not remembered.
+     *
+     * @param method The intercepted method.
+     * @param value The value returned by the method.
+     * @return The weight, which is at least 0.
+     */
+    protected long weigh(final NativeMethod method, final Object value)
+    {
+        return 1;
+    }
+
+    /**
+     * Getter for the number of invocations answered from the caches.
+     *
+     * @return The number of hits.
+     */
+    public long getHitCount()
+    {
+        return this.hits.get();
+    }
+
+    /**
+     * Getter for the number of memoized invocations that called the native method.
+     *
+     * @return The number of misses.
+     */
+    public long getMissCount()
+    {
+        return this.misses.get();
+    }
+
+    /**
+     * Getter for the number of entries evicted to respect the maximum weight, or because they
+     * expired.
+     *
+     * @return The number of evictions.
+     */
+    public long getEvictionCount()
+    {
+        return this.evictions.get();
+    }
+
+    /**
+     * Get the number of entries currently remembered, across all methods.
+     *
+     * @return The number of entries, including any that expired but were not evicted yet.
+     */
+    public int size()
+    {
+        int size = 0;
+        for (final Memo memo : this.memos.values())
+            size += memo.size();
+        return size;
+    }
+
+    /**
+     * Forget every remembered result. This is not counted as evictions.
+     */
+    public void invalidateAll()
+    {
+        for (final Memo memo : this.memos.values())
+            memo.clear();
+    }
+
+    /**
+     * Get the cache of a method, creating it on first use.
+     */
+    private Memo memo(final NativeMethod method)
+    {
+        Memo memo = this.memos.get(method);
+        if (memo == null)
+        {
+            final Memo created = new Memo(this.maximumWeight, this.timeToLive);
+            memo = this.memos.putIfAbsent(method, created);
+            if (memo == null)
+                memo = created;
+        }
+        return memo;
+    }
+
+    /**
+     * Copy a value that is an array, so that the copy cannot be changed by whoever holds the
+     * original.
+     */
+    static Object copy(final Object value)
+    {
+        if (!value.getClass().isArray())
+            return value;
+        if (value instanceof Object[])
+            return ((Object[])value).clone();
+        if (value instanceof byte[])
+            return ((byte[])value).clone();
+        if (value instanceof int[])
+            return ((int[])value).clone();
+        if (value instanceof long[])
+            return ((long[])value).clone();
+        if (value instanceof char[])
+            return ((char[])value).clone();
+        if (value instanceof short[])
+            return ((short[])value).clone();
+        if (value instanceof boolean[])
+            return ((boolean[])value).clone();
+        if (value instanceof float[])
+            return ((float[])value).clone();
+        return ((double[])value).clone();
+    }
+
+    /**
+     * The arguments of an invocation, and its receiver, as a cache key.
+     */
+    static final class Key
+    {
+        private final Object receiver;
+        private final long[] primitives;
+        private final Object[] references;
+        private final int hash;
+
+        Key(final Object receiver, final NativeFrame args)
+        {
+            final long[] primitives = args.getPrimitives();
+            final Object[] references = args.getReferences();
+            this.receiver = receiver;
+            this.primitives = primitives == null ? null : primitives.clone();
+            if (references == null)
+                this.references = null;
+            else
+            {
+                this.references = new Object[references.length];
+                for (int i = 0; i < references.length; i++)
+                    this.references[i] = references[i] == null ? null : MemoizingHandler.copy(references[i]);
+            }
+            this.hash = 31 * (31 * System.identityHashCode(receiver) + Arrays.hashCode(this.primitives)) +
+                Arrays.deepHashCode(this.references);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (!(o instanceof Key))
+                return false;
+            final Key other = (Key)o;
+            return this.hash == other.hash && this.receiver == other.receiver &&
+                Arrays.equals(this.primitives, other.primitives) && Arrays.deepEquals(this.references, other.references);
+        }
+    }
+
+    /**
+     * A remembered result.
+     */
+    private static final class Remembered
+    {
+        final Object value;
+        final long weight;
+        final long expires;
+
+        Remembered(final Object value, final long weight, final long expires)
+        {
+            this.value = value;
+            this.weight = weight;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * The least recently used cache of a single method. Access is synchronized on the cache.
+     */
+    private static final class Memo extends LinkedHashMap<Key,Remembered>
+    {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Returned by {@link #get(Key,long)} for an entry that expired and was evicted.
+         */
+        static final Object EXPIRED = new Object();
+
+        private final long maximumWeight;
+        private final long timeToLive;
+        private long weight;
+
+        Memo(final long maximumWeight, final long timeToLive)
+        {
+            super(16, 0.75f, true);
+            this.maximumWeight = maximumWeight;
+            this.timeToLive = timeToLive;
+        }
+
+        /**
+         * Get a remembered value, evicting it when it has expired.
+         *
+         * @return The value, {@link #EXPIRED} when it has just been evicted, or null when none is
+         *         remembered.
+         */
+        synchronized Object get(final Key key, final long now)
+        {
+            final Remembered entry = super.get(key);
+            if (entry == null)
+                return null;
+            if (this.timeToLive != 0 && now - entry.expires >= 0)
+            {
+                this.remove(key);
+                this.weight -= entry.weight;
+                return Memo.EXPIRED;
+            }
+            return entry.value;
+        }
+
+        /**
+         * Remember a value, evicting the least recently used entries to make room for it.
+         *
+         * @return The number of entries evicted.
+         */
+        synchronized int put(final Key key, final Object value, final long weight, final long now)
+        {
+            if (weight > this.maximumWeight)
+                return 0;
+            final Remembered previous = super.put(key, new Remembered(value, weight, now + this.timeToLive));
+            if (previous != null)
+                this.weight -= previous.weight;
+            this.weight += weight;
+            int evicted = 0;
+            for (final Iterator<Remembered> entries = this.values().iterator(); this.weight > this.maximumWeight;)
+            {
+                final Remembered eldest = entries.next();
+                entries.remove();
+                this.weight -= eldest.weight;
+                evicted++;
+            }
+            return evicted;
+        }
+
+        @Override
+        public synchronized int size()
+        {
+            return super.size();
+        }
+
+        @Override
+        public synchronized void clear()
+        {
+            super.clear();
+            this.weight = 0;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.synth.intercept;
+
+import java.lang.reflect.InvocationHandler;
+
+/**
+ * Receives the events published through {@link NativeEvents}. The implementation for Java Flight
+ * Recorder is only compiled when the JFR API is available, so the rest of the library refers to it
+ * through this interface.
+ */
+interface NativeEventSink
+{
+    /**
+     * Start publishing events, telling {@link NativeEvents} whenever the events that are wanted
+     * change.
+     */
+    void install();
+
+    /**
+     * Start a native invocation event.
+     *
+     * @return The event, to pass to {@link #endNative(Object,NativeMethod)}, or null when native
+     *         invocations are not recorded.
+     */
+    Object beginNative();
+
+    /**
+     * End a native invocation event, publishing it.
+     *
+     * @param event The event returned by {@link #beginNative()}.
+     * @param method The method whose native method was invoked.
+     */
+    void endNative(Object event, NativeMethod method);
+
+    /**
+     * Decorate a handler to publish an event for each dispatch.
+     *
+     * @param handler The handler, which is not null.
+     * @param method The method dispatched to the handler.
+     * @return The decorated handler.
+     */
+    InvocationHandler trace(InvocationHandler handler, NativeMethod method);
+
+    /**
+     * Decorate a handler for {@link DispatchMode#PRIMITIVE} dispatch to publish an event for each
+     * dispatch.
+     *
+     * @param handler The handler, which is not null.
+     * @param method The method dispatched to the handler.
+     * @return The decorated handler.
+     */
+    PrimitiveInvocationHandler trace(PrimitiveInvocationHandler handler, NativeMethod method);
+}
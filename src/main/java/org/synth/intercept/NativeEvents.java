@@ -0,0 +1,162 @@
+package org.synth.intercept;
+
+import java.lang.reflect.InvocationHandler;
+import java.util.logging.Logger;
+
+/**
+ * Publishes profiling events for intercepted methods to Java Flight Recorder, so that the time
+ * spent in native methods and in their handlers shows up in recordings next to the events of the
+ * VM. There are two events:
+ * <ul>
+ * <li><code>org.synth.intercept.NativeInvocation</code>: a native method called by an intercepted
+ * method, because no handler is registered or the handler declined. This covers classes
+ * intercepted with passthrough (see {@link NativeInterceptorAgent#setPassthrough(boolean)}), which
+ * includes every class intercepted at load.</li>
+ * <li><code>org.synth.intercept.HandlerDispatch</code>: an intercepted method dispatched to its
+ * handler.</li>
+ * </ul>
+ * Each event records the declaring class, the method and the duration.
+ *
+ * Nothing is published until {@link #enable()} is called (or the agent is given the
+ * {@value NativeInterceptorAgent#JFR_OPTION} option), and then only for the events enabled in a
+ * running recording. While the native invocation event is not wanted, calling a native method
+ * costs one extra read of {@link #NATIVE_INVOCATIONS}. While the dispatch event is not wanted,
+ * the handlers are linked undecorated, so dispatch costs nothing extra.
+ */
+public final class NativeEvents
+{
+    /**
+     * Log for various logging events.
+     */
+    private static final Logger LOG = Logger.getLogger(NativeEvents.class.getPackage().getName());
+
+    /**
+     * The name of the class publishing the events to Java Flight Recorder.
+     */
+    private static final String JFR_SINK = "org.synth.intercept.JfrNativeEventSink";
+
+    /**
+     * Whether native invocation events are wanted. This is read by generated code before calling
+     * a native method, and is only public for that reason.
+     */
+    public static volatile boolean NATIVE_INVOCATIONS = false;
+
+    /**
+     * Whether handler dispatch events are wanted.
+     */
+    private static volatile boolean HANDLER_DISPATCHES = false;
+
+    /**
+     * The sink the events are published to, or null when they are not published.
+     */
+    private static volatile NativeEventSink SINK;
+
+    private NativeEvents()
+    {
+    }
+
+    /**
+     * Start publishing events to Java Flight Recorder.
+     *
+     * @return Whether events are published, which is false when Java Flight Recorder is not
+     *         available in this VM, or the library was built without it.
+     */
+    public static synchronized boolean enable()
+    {
+        if (NativeEvents.SINK != null)
+            return true;
+        final NativeEventSink sink;
+        try
+        {
+            sink = (NativeEventSink)Class.forName(NativeEvents.JFR_SINK).getDeclaredConstructor().newInstance();
+        }
+        catch (final Throwable t)
+        {
+            // the sink itself, or the JFR classes it links against, are missing
+            NativeEvents.LOG.warning("Java Flight Recorder is not available, not publishing events: " + t);
+            return false;
+        }
+        NativeEvents.SINK = sink;
+        sink.install();
+        return true;
+    }
+
+    /**
+     * Determine whether events are published.
+     *
+     * @return Whether {@link #enable()} succeeded.
+     */
+    public static boolean isEnabled()
+    {
+        return NativeEvents.SINK != null;
+    }
+
+    /**
+     * Start a native invocation event. This is called by generated code when
+     * {@link #NATIVE_INVOCATIONS} is set.
+     *
+     * @return The event, to pass to {@link #endNative(Object,NativeMethod)}, or null.
+     */
+    public static Object beginNative()
+    {
+        final NativeEventSink sink = NativeEvents.SINK;
+        return sink == null ? null : sink.beginNative();
+    }
+
+    /**
+     * End a native invocation event, whether the native method returned or threw.
+     *
+     * @param event The value returned by {@link #beginNative()}.
+     * @param method The method whose native method was invoked.
+     */
+    public static void endNative(final Object event, final NativeMethod method)
+    {
+        final NativeEventSink sink = NativeEvents.SINK;
+        if (event != null && sink != null)
+            sink.endNative(event, method);
+    }
+
+    /**
+     * Decorate the handler linked to a method to publish dispatch events, when they are wanted.
+     *
+     * @param handler The handler, or null.
+     * @param method The method.
+     * @return The decorated handler, or the handler itself when there is nothing to decorate.
+     */
+    static InvocationHandler trace(final InvocationHandler handler, final NativeMethod method)
+    {
+        final NativeEventSink sink = NativeEvents.SINK;
+        return handler == null || sink == null || !NativeEvents.HANDLER_DISPATCHES ? handler : sink.trace(handler, method);
+    }
+
+    /**
+     * Decorate the handler linked to a method for {@link DispatchMode#PRIMITIVE} dispatch to
+     * publish dispatch events, when they are wanted.
+     *
+     * @param handler The handler, or null.
+     * @param method The method.
+     * @return The decorated handler, or the handler itself when there is nothing to decorate.
+     */
+    static PrimitiveInvocationHandler trace(final PrimitiveInvocationHandler handler, final NativeMethod method)
+    {
+        final NativeEventSink sink = NativeEvents.SINK;
+        return handler == null || sink == null || !NativeEvents.HANDLER_DISPATCHES ? handler : sink.trace(handler, method);
+    }
+
+    /**
+     * Called by the sink when the events wanted by the running recordings change. When the
+     * dispatch event is switched on or off, every method is relinked.
+     *
+     * @param nativeInvocations Whether native invocation events are wanted.
+     * @param handlerDispatches Whether handler dispatch events are wanted.
+     */
+    static synchronized void update(final boolean nativeInvocations, final boolean handlerDispatches)
+    {
+        NativeEvents.NATIVE_INVOCATIONS = nativeInvocations;
+        if (NativeEvents.HANDLER_DISPATCHES == handlerDispatches)
+            return;
+        NativeEvents.HANDLER_DISPATCHES = handlerDispatches;
+        // every intercepted class is a subclass of Object
+        NativeMethodCache.relink(Object.class);
+    }
+}
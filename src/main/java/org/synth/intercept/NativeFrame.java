@@ -0,0 +1,243 @@
+package org.synth.intercept;
+
+/**
+ * The arguments passed to an intercepted method, held in typed slots so that primitive arguments
+ * are not boxed. Slots are indexed by the position of the argument in the method signature.
+ * Primitive values share a single long slot per argument and references a single Object slot, and
+ * the storage for each kind is only allocated when the method takes an argument of that kind.
+ *
+ * Frames are created by code generated in {@link DispatchMode#PRIMITIVE} mode and passed to a
+ * {@link PrimitiveInvocationHandler}. A frame is only valid for the duration of the invocation it
+ * was created for.
+ */
+public final class NativeFrame
+{
+    /**
+     * The frame passed for methods without arguments. It has no slots, so it can be shared.
+     */
+    public static final NativeFrame EMPTY = new NativeFrame(0);
+
+    /**
+     * The number of arguments.
+     */
+    private final int size;
+
+    /**
+     * The primitive arguments, with floats and doubles stored as their raw bits.
+     */
+    private long[] primitives;
+
+    /**
+     * The reference arguments.
+     */
+    private Object[] references;
+
+    /**
+     * Create a new frame.
+     *
+     * @param size The number of arguments.
+     */
+    public NativeFrame(final int size)
+    {
+        this.size = size;
+    }
+
+    /**
+     * Getter for the number of arguments.
+     *
+     * @return The number of arguments.
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    public boolean getBoolean(final int index)
+    {
+        return this.primitives[index] != 0;
+    }
+
+    public byte getByte(final int index)
+    {
+        return (byte)this.primitives[index];
+    }
+
+    public char getChar(final int index)
+    {
+        return (char)this.primitives[index];
+    }
+
+    public short getShort(final int index)
+    {
+        return (short)this.primitives[index];
+    }
+
+    public int getInt(final int index)
+    {
+        return (int)this.primitives[index];
+    }
+
+    public long getLong(final int index)
+    {
+        return this.primitives[index];
+    }
+
+    public float getFloat(final int index)
+    {
+        return Float.intBitsToFloat((int)this.primitives[index]);
+    }
+
+    public double getDouble(final int index)
+    {
+        return Double.longBitsToDouble(this.primitives[index]);
+    }
+
+    public Object getObject(final int index)
+    {
+        return this.references[index];
+    }
+
+    public void setBoolean(final int index, final boolean value)
+    {
+        this.primitives()[index] = value ? 1 : 0;
+    }
+
+    public void setByte(final int index, final byte value)
+    {
+        this.primitives()[index] = value;
+    }
+
+    public void setChar(final int index, final char value)
+    {
+        this.primitives()[index] = value;
+    }
+
+    public void setShort(final int index, final short value)
+    {
+        this.primitives()[index] = value;
+    }
+
+    public void setInt(final int index, final int value)
+    {
+        this.primitives()[index] = value;
+    }
+
+    public void setLong(final int index, final long value)
+    {
+        this.primitives()[index] = value;
+    }
+
+    public void setFloat(final int index, final float value)
+    {
+        this.primitives()[index] = Float.floatToRawIntBits(value);
+    }
+
+    public void setDouble(final int index, final double value)
+    {
+        this.primitives()[index] = Double.doubleToRawLongBits(value);
+    }
+
+    public void setObject(final int index, final Object value)
+    {
+        if (this.references == null)
+            this.references = new Object[this.size];
+        this.references[index] = value;
+    }
+
+    /**
+     * Box the arguments into an array, for handlers that only implement
+     * {@link java.lang.reflect.InvocationHandler}.
+     *
+     * @param types The parameter types of the method.
+     * @return The boxed arguments.
+     */
+    Object[] box(final Class<?>[] types)
+    {
+        final Object[] args = new Object[this.size];
+        for (int i = 0; i < this.size; i++)
+        {
+            final Class<?> type = types[i];
+            if (!type.isPrimitive())
+                args[i] = this.references[i];
+            else if (type == boolean.class)
+                args[i] = Boolean.valueOf(this.getBoolean(i));
+            else if (type == byte.class)
+                args[i] = Byte.valueOf(this.getByte(i));
+            else if (type == char.class)
+                args[i] = Character.valueOf(this.getChar(i));
+            else if (type == short.class)
+                args[i] = Short.valueOf(this.getShort(i));
+            else if (type == int.class)
+                args[i] = Integer.valueOf(this.getInt(i));
+            else if (type == long.class)
+                args[i] = Long.valueOf(this.getLong(i));
+            else if (type == float.class)
+                args[i] = Float.valueOf(this.getFloat(i));
+            else
+                args[i] = Double.valueOf(this.getDouble(i));
+        }
+        return args;
+    }
+
+    /**
+     * Create a frame from boxed arguments, for invocations that arrive through
+     * {@link java.lang.reflect.InvocationHandler}.
+     *
+     * @param types The parameter types of the method.
+     * @param args The boxed arguments, or null when there are none.
+     * @return The frame.
+     */
+    static NativeFrame unbox(final Class<?>[] types, final Object[] args)
+    {
+        if (types.length == 0)
+            return NativeFrame.EMPTY;
+        final NativeFrame frame = new NativeFrame(types.length);
+        for (int i = 0; i < types.length; i++)
+        {
+            final Class<?> type = types[i];
+            if (!type.isPrimitive())
+                frame.setObject(i, args[i]);
+            else if (type == boolean.class)
+                frame.setBoolean(i, ((Boolean)args[i]).booleanValue());
+            else if (type == char.class)
+                frame.setChar(i, ((Character)args[i]).charValue());
+            else if (type == float.class)
+                frame.setFloat(i, ((Float)args[i]).floatValue());
+            else if (type == double.class)
+                frame.setDouble(i, ((Double)args[i]).doubleValue());
+            else
+                frame.setLong(i, ((Number)args[i]).longValue());
+        }
+        return frame;
+    }
+
+    /**
+     * Getter for the primitive storage, without copying it.
+     *
+     * @return The primitive arguments, or null when the method takes none.
+     */
+    long[] getPrimitives()
+    {
+        return this.primitives;
+    }
+
+    /**
+     * Getter for the reference storage, without copying it.
+     *
+     * @return The reference arguments, or null when the method takes none.
+     */
+    Object[] getReferences()
+    {
+        return this.references;
+    }
+
+    /**
+     * Get the primitive storage, allocating it on first use.
+     */
+    private long[] primitives()
+    {
+        if (this.primitives == null)
+            this.primitives = new long[this.size];
+        return this.primitives;
+    }
+}
@@ -1,7 +1,11 @@
 package org.synth.intercept;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodAdapter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
@@ -27,6 +31,29 @@ public class NativeInterceptingClassAdapter extends ClassAdapter
      */
     private final Type type;
 
+    /**
+     * The strategy used to dispatch intercepted methods to their handlers.
+     */
+    private final DispatchMode mode;
+
+    /**
+     * Whether intercepted methods call the original native method when they are not handled.
+     */
+    private final boolean passthrough;
+
+    /**
+     * The methods to intercept, as returned by {@link NativeMethodSelection#get(Class)}, or null
+     * to intercept all the wrapped methods.
+     */
+    private final Set<String> selected;
+
+    /**
+     * The names of the synthetic fields added by the {@link NativeWrappingClassAdapter} to hold the
+     * {@link NativeMethod} for each wrapped method. Fields are visited before methods, so this is
+     * complete by the time any method is transformed.
+     */
+    private final Set<String> nativeMethodFields = new HashSet<String>();
+
     /**
      * A boolean to indicate whether the class needs to be transformed. This allows the
      * {@link NativeInterceptingTransformer} to return null to indicate that no transformation
@@ -35,15 +62,63 @@ public class NativeInterceptingClassAdapter extends ClassAdapter
     private boolean intercepted = false;
 
     /**
-     * Create a new class adapter.
+     * Create a new class adapter that uses {@link DispatchMode#STATIC} dispatch.
      *
      * @param cv The underlying visitor to adapt.
      * @param type The type of the class being transformed.
      */
     public NativeInterceptingClassAdapter(final ClassVisitor cv, final Type type)
+    {
+        this(cv, type, DispatchMode.STATIC);
+    }
+
+    /**
+     * Create a new class adapter.
+     *
+     * @param cv The underlying visitor to adapt.
+     * @param type The type of the class being transformed.
+     * @param mode The strategy used to dispatch intercepted methods to their handlers.
+     */
+    public NativeInterceptingClassAdapter(final ClassVisitor cv, final Type type, final DispatchMode mode)
+    {
+        this(cv, type, mode, false);
+    }
+
+    /**
+     * Create a new class adapter.
+     *
+     * @param cv The underlying visitor to adapt.
+     * @param type The type of the class being transformed.
+     * @param mode The strategy used to dispatch intercepted methods to their handlers.
+     * @param passthrough Whether intercepted methods call the original native method when there
+     *        is no handler or the handler declines.
+     */
+    public NativeInterceptingClassAdapter(final ClassVisitor cv, final Type type, final DispatchMode mode,
+                                          final boolean passthrough)
+    {
+        this(cv, type, mode, passthrough, null);
+    }
+
+    /**
+     * Create a new class adapter that only intercepts some of the wrapped methods. The remaining
+     * methods are left calling their native methods directly.
+     *
+     * @param cv The underlying visitor to adapt.
+     * @param type The type of the class being transformed.
+     * @param mode The strategy used to dispatch intercepted methods to their handlers.
+     * @param passthrough Whether intercepted methods call the original native method when there
+     *        is no handler or the handler declines.
+     * @param selected The name and descriptor of each method to intercept (e.g.
+     *        <code>theNativeMethod(I)V</code>), or null to intercept all of them.
+     */
+    public NativeInterceptingClassAdapter(final ClassVisitor cv, final Type type, final DispatchMode mode,
+                                          final boolean passthrough, final Set<String> selected)
     {
         super(cv);
         this.type = type;
+        this.mode = mode;
+        this.passthrough = passthrough;
+        this.selected = selected;
     }
 
     /**
@@ -58,14 +133,50 @@ public class NativeInterceptingClassAdapter extends ClassAdapter
     }
 
     /**
-     * Wrapper around the method visiting to add the custom adapter layer.
+     * Record the synthetic fields that hold the {@link NativeMethod} for each wrapped method.
+     */
+    @Override
+    public FieldVisitor visitField(final int access, final String name, final String desc, final String signature,
+                                   final Object value)
+    {
+        if (name.startsWith(Constants.NATIVE_METHOD_FIELD_PREFIX))
+            this.nativeMethodFields.add(name);
+        return super.visitField(access, name, desc, signature, value);
+    }
+
+    /**
+     * Wrapper around the method visiting to add the custom adapter layer to the selected methods.
+     * Every other method is returned the underlying visitor directly, so that when it is a
+     * {@link org.objectweb.asm.ClassWriter} sharing the constant pool of the reader, the method
+     * body is copied verbatim rather than being parsed and emitted again.
+     *
+     * Only methods with a synthetic {@link NativeMethod} field are wrappers. Classes wrapped by an
+     * earlier version of this library have no such fields, so every method of those is adapted
+     * and left for the {@link WasNative} annotation to identify.
      */
     @Override
     public MethodVisitor visitMethod(final int access, final String name, final String desc, final String signature,
                                      final String[] exceptions)
     {
+        if (this.selected != null && !NativeMethodSelection.isSelected(this.selected, name, desc))
+            return super.visitMethod(access, name, desc, signature, exceptions);
+        if (!this.nativeMethodFields.isEmpty() && !this.hasNativeMethodField(Constants.nativeMethodField(name, desc)))
+            return super.visitMethod(access, name, desc, signature, exceptions);
         return new NativeInterceptingMethodAdapter(super.visitMethod(access, name, desc, signature, exceptions),
-                                                   this, this.type, access, name, desc, exceptions);
+                                                   this, this.type, this.mode, this.passthrough, access, name, desc,
+                                                   exceptions);
+    }
+
+    /**
+     * Determine whether the class has a synthetic field to hold the {@link NativeMethod} for the
+     * given method. Classes wrapped by an earlier version of this library will not.
+     *
+     * @param field The field name, as returned by {@link Constants#nativeMethodField(String,String)}.
+     * @return Whether the field exists.
+     */
+    boolean hasNativeMethodField(final String field)
+    {
+        return this.nativeMethodFields.contains(field);
     }
 
     /**
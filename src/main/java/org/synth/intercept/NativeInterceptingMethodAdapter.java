@@ -58,6 +58,44 @@ import org.objectweb.asm.commons.Method;
  *         throw new IllegalStateException("Unexpected exception thrown in interceptor", t);
  *     }
  * }
+ * </code>
+ * When the class was wrapped with a synthetic static field to cache the {@link NativeMethod} for
+ * each wrapped method, the argument types and method name are not pushed. Instead the handler is
+ * passed the cached method:
+ * <code>
+ *     return (Object[])NativeInvocationHandler.handle(this, TheClass.nativeMethod$$_theNativeMethod$..., new Object[] { i, j, k });
+ * </code>
+ * When generating code in {@link DispatchMode#LINKED} mode, the call to the handler method is
+ * replaced by a direct invocation of the handler linked to the method, so the body of the try
+ * block is equivalent to:
+ * <code>
+ *     NativeMethod m = NativeInvocationHandler.link(TheClass.class, "theNativeMethod", "(IFLjava/lang/String;)[Ljava/lang/Object;");
+ *     return (Object[])m.checkReturn(m.handler(this).invoke(this, m.getMethod(), new Object[] { i, j, k }));
+ * </code>
+ * With passthrough enabled, the original native method is called instead of the handler when no
+ * handler is found, and when the handler returns {@link NativeInvocationHandler#PROCEED}:
+ * <code>
+ *     InvocationHandler h = m.findHandler(this);
+ *     if (h == null)
+ *         return this.wrapped_$$_theNativeMethod(i, j, k);
+ *     Object result = h.invoke(this, m.getMethod(), new Object[] { i, j, k });
+ *     if (result == NativeInvocationHandler.PROCEED)
+ *         return this.wrapped_$$_theNativeMethod(i, j, k);
+ *     return (Object[])m.checkReturn(result);
+ * </code>
+ * The original native method is called directly unless {@link NativeEvents} publishes native
+ * invocation events, in which case the call is timed as if by:
+ * <code>
+ *     Object e = NativeEvents.beginNative();
+ *     try
+ *     {
+ *         return this.wrapped_$$_theNativeMethod(i, j, k);
+ *     }
+ *     finally
+ *     {
+ *         NativeEvents.endNative(e, m);
+ *     }
+ * </code>
  */
 public class NativeInterceptingMethodAdapter extends GeneratorAdapter
 {
@@ -123,6 +161,182 @@ public class NativeInterceptingMethodAdapter extends GeneratorAdapter
             Method.getMethod("void handleStaticVoid(Class,String,Class[],Object[])");
     };
 
+    /**
+     * An array of {@link Method} caches for the typed {@link PrimitiveInvocationHandler} methods.
+     * The index of the array is the {@link Type#getSort()} of the return type.
+     */
+    private static final Method[] PRIMITIVE_HANDLERS = new Method[11];
+    static
+    {
+        final String args = "(Object,org.synth.intercept.NativeMethod,org.synth.intercept.NativeFrame)";
+        NativeInterceptingMethodAdapter.PRIMITIVE_HANDLERS[Type.OBJECT] = Method.getMethod("Object invokeObject" + args);
+        NativeInterceptingMethodAdapter.PRIMITIVE_HANDLERS[Type.ARRAY] =
+            NativeInterceptingMethodAdapter.PRIMITIVE_HANDLERS[Type.OBJECT];
+        NativeInterceptingMethodAdapter.PRIMITIVE_HANDLERS[Type.BOOLEAN] = Method.getMethod("boolean invokeBoolean" + args);
+        NativeInterceptingMethodAdapter.PRIMITIVE_HANDLERS[Type.BYTE] = Method.getMethod("byte invokeByte" + args);
+        NativeInterceptingMethodAdapter.PRIMITIVE_HANDLERS[Type.CHAR] = Method.getMethod("char invokeChar" + args);
+        NativeInterceptingMethodAdapter.PRIMITIVE_HANDLERS[Type.DOUBLE] = Method.getMethod("double invokeDouble" + args);
+        NativeInterceptingMethodAdapter.PRIMITIVE_HANDLERS[Type.FLOAT] = Method.getMethod("float invokeFloat" + args);
+        NativeInterceptingMethodAdapter.PRIMITIVE_HANDLERS[Type.INT] = Method.getMethod("int invokeInt" + args);
+        NativeInterceptingMethodAdapter.PRIMITIVE_HANDLERS[Type.LONG] = Method.getMethod("long invokeLong" + args);
+        NativeInterceptingMethodAdapter.PRIMITIVE_HANDLERS[Type.SHORT] = Method.getMethod("short invokeShort" + args);
+        NativeInterceptingMethodAdapter.PRIMITIVE_HANDLERS[Type.VOID] = Method.getMethod("void invokeVoid" + args);
+    }
+
+    /**
+     * An array of {@link Method} caches for the {@link NativeFrame} setters. The index of the array
+     * is the {@link Type#getSort()} of the argument type.
+     */
+    private static final Method[] FRAME_SETTERS = new Method[11];
+    static
+    {
+        NativeInterceptingMethodAdapter.FRAME_SETTERS[Type.OBJECT] = Method.getMethod("void setObject(int,Object)");
+        NativeInterceptingMethodAdapter.FRAME_SETTERS[Type.ARRAY] =
+            NativeInterceptingMethodAdapter.FRAME_SETTERS[Type.OBJECT];
+        NativeInterceptingMethodAdapter.FRAME_SETTERS[Type.BOOLEAN] = Method.getMethod("void setBoolean(int,boolean)");
+        NativeInterceptingMethodAdapter.FRAME_SETTERS[Type.BYTE] = Method.getMethod("void setByte(int,byte)");
+        NativeInterceptingMethodAdapter.FRAME_SETTERS[Type.CHAR] = Method.getMethod("void setChar(int,char)");
+        NativeInterceptingMethodAdapter.FRAME_SETTERS[Type.DOUBLE] = Method.getMethod("void setDouble(int,double)");
+        NativeInterceptingMethodAdapter.FRAME_SETTERS[Type.FLOAT] = Method.getMethod("void setFloat(int,float)");
+        NativeInterceptingMethodAdapter.FRAME_SETTERS[Type.INT] = Method.getMethod("void setInt(int,int)");
+        NativeInterceptingMethodAdapter.FRAME_SETTERS[Type.LONG] = Method.getMethod("void setLong(int,long)");
+        NativeInterceptingMethodAdapter.FRAME_SETTERS[Type.SHORT] = Method.getMethod("void setShort(int,short)");
+    }
+
+    /**
+     * The {@link NativeMethod} method that gets the handler for an instance method in
+     * {@link DispatchMode#PRIMITIVE} mode.
+     */
+    private static final Method INSTANCE_PRIMITIVE_HANDLER =
+        Method.getMethod("org.synth.intercept.PrimitiveInvocationHandler primitiveHandler(Object)");
+
+    /**
+     * The {@link NativeMethod} method that gets the handler for a static method in
+     * {@link DispatchMode#PRIMITIVE} mode.
+     */
+    private static final Method STATIC_PRIMITIVE_HANDLER =
+        Method.getMethod("org.synth.intercept.PrimitiveInvocationHandler primitiveHandler()");
+
+    /**
+     * The {@link NativeFrame} constructor.
+     */
+    private static final Method FRAME_CONSTRUCTOR = Method.getMethod("void <init>(int)");
+
+    /**
+     * The {@link NativeInvocationHandler} method that finds the {@link NativeMethod} for a call site
+     * in {@link DispatchMode#LINKED} mode.
+     */
+    private static final Method LINK =
+        Method.getMethod("org.synth.intercept.NativeMethod link(Class,String,String)");
+
+    /**
+     * The {@link NativeInvocationHandler} method that dispatches an instance method given its
+     * {@link NativeMethod}.
+     */
+    private static final Method HANDLE =
+        Method.getMethod("Object handle(Object,org.synth.intercept.NativeMethod,Object[])");
+
+    /**
+     * The {@link NativeInvocationHandler} method that dispatches a static method given its
+     * {@link NativeMethod}.
+     */
+    private static final Method HANDLE_STATIC =
+        Method.getMethod("Object handleStatic(org.synth.intercept.NativeMethod,Object[])");
+
+    /**
+     * The {@link NativeInvocationHandler} method that dispatches an instance method with
+     * passthrough enabled.
+     */
+    private static final Method HANDLE_OR_PROCEED =
+        Method.getMethod("Object handleOrProceed(Object,org.synth.intercept.NativeMethod,Object[])");
+
+    /**
+     * The {@link NativeInvocationHandler} method that dispatches a static method with passthrough
+     * enabled.
+     */
+    private static final Method HANDLE_STATIC_OR_PROCEED =
+        Method.getMethod("Object handleStaticOrProceed(org.synth.intercept.NativeMethod,Object[])");
+
+    /**
+     * The {@link NativeMethod} method that determines whether an instance method has a handler.
+     */
+    private static final Method INSTANCE_IS_HANDLED = Method.getMethod("boolean isHandled(Object)");
+
+    /**
+     * The {@link NativeMethod} method that determines whether a static method has a handler.
+     */
+    private static final Method STATIC_IS_HANDLED = Method.getMethod("boolean isHandled()");
+
+    /**
+     * The {@link NativeMethod} method that finds the handler for an instance method with
+     * passthrough enabled.
+     */
+    private static final Method INSTANCE_FIND_HANDLER =
+        Method.getMethod("java.lang.reflect.InvocationHandler findHandler(Object)");
+
+    /**
+     * The {@link NativeMethod} method that finds the handler for a static method with passthrough
+     * enabled.
+     */
+    private static final Method STATIC_FIND_HANDLER =
+        Method.getMethod("java.lang.reflect.InvocationHandler findHandler()");
+
+    /**
+     * The {@link NativeMethod} method that finds the handler for an instance method in
+     * {@link DispatchMode#PRIMITIVE} mode with passthrough enabled.
+     */
+    private static final Method INSTANCE_FIND_PRIMITIVE_HANDLER =
+        Method.getMethod("org.synth.intercept.PrimitiveInvocationHandler findPrimitiveHandler(Object)");
+
+    /**
+     * The {@link NativeMethod} method that finds the handler for a static method in
+     * {@link DispatchMode#PRIMITIVE} mode with passthrough enabled.
+     */
+    private static final Method STATIC_FIND_PRIMITIVE_HANDLER =
+        Method.getMethod("org.synth.intercept.PrimitiveInvocationHandler findPrimitiveHandler()");
+
+    /**
+     * The {@link NativeMethod} method that gets the handler for an instance method.
+     */
+    private static final Method INSTANCE_HANDLER =
+        Method.getMethod("java.lang.reflect.InvocationHandler handler(Object)");
+
+    /**
+     * The {@link NativeMethod} method that gets the handler for a static method.
+     */
+    private static final Method STATIC_HANDLER =
+        Method.getMethod("java.lang.reflect.InvocationHandler handler()");
+
+    /**
+     * The {@link NativeMethod} method that gets the reflected method passed to the handler.
+     */
+    private static final Method GET_METHOD =
+        Method.getMethod("java.lang.reflect.Method getMethod()");
+
+    /**
+     * The {@link NativeMethod} method that checks the value returned by the handler.
+     */
+    private static final Method CHECK_RETURN =
+        Method.getMethod("Object checkReturn(Object)");
+
+    /**
+     * The {@link java.lang.reflect.InvocationHandler#invoke(Object,java.lang.reflect.Method,Object[])}
+     * method.
+     */
+    private static final Method INVOKE =
+        Method.getMethod("Object invoke(Object,java.lang.reflect.Method,Object[])");
+
+    /**
+     * The {@link NativeEvents} method that starts a native invocation event.
+     */
+    private static final Method BEGIN_NATIVE = Method.getMethod("Object beginNative()");
+
+    /**
+     * The {@link NativeEvents} method that ends a native invocation event.
+     */
+    private static final Method END_NATIVE =
+        Method.getMethod("void endNative(Object,org.synth.intercept.NativeMethod)");
+
     /**
      * The parent {@link ClassAdapter} that created this adapter. This is used to indicate when
      * the method is actually transformed. This allows the {@link ClassFileTransformer} to return
@@ -140,11 +354,37 @@ public class NativeInterceptingMethodAdapter extends GeneratorAdapter
      */
     private final Type type;
 
+    /**
+     * The strategy used to dispatch the intercepted method to its handler.
+     */
+    private final DispatchMode mode;
+
+    /**
+     * Whether the original native method is called when there is no handler or the handler
+     * declines.
+     */
+    private final boolean passthrough;
+
+    /**
+     * The label of the code that calls the original native method, when passthrough is enabled.
+     */
+    private final Label lpassthrough;
+
     /**
      * The name of this method.
      */
     private final String name;
 
+    /**
+     * The descriptor of this method.
+     */
+    private final String desc;
+
+    /**
+     * The name of the synthetic static field that caches the {@link NativeMethod} for this method.
+     */
+    private final String field;
+
     /**
      * The return type for this method.
      */
@@ -172,6 +412,25 @@ public class NativeInterceptingMethodAdapter extends GeneratorAdapter
      */
     private boolean transformed = false;
 
+    /**
+     * Create a new {@link NativeInterceptingMethodAdapter} to transform a possible wrapped native
+     * method using {@link DispatchMode#STATIC} dispatch. When the method adapted is not a wrapped
+     * native method, this adapter should make no changes.
+     *
+     * @param mv The adapted {@link MethodVisitor}.
+     * @param parent The parent {@link ClassAdapter}.
+     * @param type The declaring type.
+     * @param access The modifiers on the method.
+     * @param name The name of the method.
+     * @param desc The descriptor of the method.
+     * @param exceptions The exceptions throw by this method.
+     */
+    public NativeInterceptingMethodAdapter(final MethodVisitor mv, final NativeInterceptingClassAdapter parent,
+                                           final Type type, final int access, final String name, final String desc, final String[] exceptions)
+    {
+        this(mv, parent, type, DispatchMode.STATIC, false, access, name, desc, exceptions);
+    }
+
     /**
      * Create a new {@link NativeInterceptingMethodAdapter} to transform a possible wrapped native
      * method. When the method adapted is not a wrapped native method, this adapter should make no
@@ -180,19 +439,28 @@ public class NativeInterceptingMethodAdapter extends GeneratorAdapter
      * @param mv The adapted {@link MethodVisitor}.
      * @param parent The parent {@link ClassAdapter}.
      * @param type The declaring type.
+     * @param mode The strategy used to dispatch to the handler.
+     * @param passthrough Whether to call the original native method when there is no handler or
+     *        the handler declines.
      * @param access The modifiers on the method.
      * @param name The name of the method.
      * @param desc The descriptor of the method.
      * @param exceptions The exceptions throw by this method.
      */
     public NativeInterceptingMethodAdapter(final MethodVisitor mv, final NativeInterceptingClassAdapter parent,
-                                           final Type type, final int access, final String name, final String desc, final String[] exceptions)
+                                           final Type type, final DispatchMode mode, final boolean passthrough,
+                                           final int access, final String name, final String desc, final String[] exceptions)
     {
         super(mv, access, name, desc);
         this.parent = parent;
         this.instance = (access & Opcodes.ACC_STATIC) == 0;
         this.type = type;
+        this.mode = mode;
+        this.passthrough = passthrough;
+        this.lpassthrough = passthrough ? new Label() : null;
         this.name = name;
+        this.desc = desc;
+        this.field = Constants.nativeMethodField(name, desc);
         this.returnType = Type.getReturnType(desc);
         this.argTypes = Type.getArgumentTypes(desc);
         this.exceptions = new Type[exceptions == null ? 2 : exceptions.length + 2];
@@ -228,6 +496,20 @@ public class NativeInterceptingMethodAdapter extends GeneratorAdapter
         this.parent.setIntercepted();
         // Add the @Intercepted annotation to indicate that the method is intercepted.
         super.visitAnnotation(Constants.INTERCEPTED_DESCRIPTOR, true);
+        // With passthrough in STATIC mode, skip straight to the original method when there is no
+        // handler, before the arguments are boxed.
+        if (this.passthrough && this.mode == DispatchMode.STATIC)
+        {
+            this.pushNativeMethod();
+            if (this.instance)
+            {
+                super.loadThis();
+                super.invokeVirtual(Constants.NATIVE_METHOD_TYPE, NativeInterceptingMethodAdapter.INSTANCE_IS_HANDLED);
+            }
+            else
+                super.invokeVirtual(Constants.NATIVE_METHOD_TYPE, NativeInterceptingMethodAdapter.STATIC_IS_HANDLED);
+            super.ifZCmp(GeneratorAdapter.EQ, this.lpassthrough);
+        }
         // Create the try/catch block around the intercepted invocation.
         final Label lstart = new Label();
         final Label lend = new Label();
@@ -235,58 +517,15 @@ public class NativeInterceptingMethodAdapter extends GeneratorAdapter
         super.visitTryCatchBlock(lstart, lend, lexc, Constants.THROWABLE_TYPE.getInternalName());
         // Mark the start of the try/catch block.
         super.mark(lstart);
-        // If this is an instance method, load this, otherwise load the class onto the stack.
-        if (this.instance)
-            super.loadThis();
+        // Generate the invocation of the handler, leaving the return value on the stack.
+        if (this.mode == DispatchMode.LINKED)
+            this.invokeLinkedHandler();
+        else if (this.mode == DispatchMode.PRIMITIVE)
+            this.invokePrimitiveHandler();
+        else if (this.passthrough || this.parent.hasNativeMethodField(this.field))
+            this.invokeCachedStaticHandler();
         else
-            super.visitLdcInsn(this.type);
-        // The handler method for Object takes an additional argument for the return type.
-        if (this.returnType.getSort() == Type.ARRAY || this.returnType.getSort() == Type.OBJECT)
-            super.visitLdcInsn(this.returnType);
-        // Push the name of the method onto the stack.
-        super.visitLdcInsn(this.name);
-        // Push the length of the argumentTypes array onto the stack.
-        super.push(this.argTypes.length);
-        // Create the argumentTypes array on ths stack.
-        super.newArray(Constants.CLASS_TYPE);
-        // Add each of the argument types to the argumentTypes array.
-        for (int i = 0; i < this.argTypes.length; i++)
-        {
-            // Dup the array reference onto the stack.
-            super.dup();
-            // Push the index into the array onto the stack.
-            super.push(i);
-            // Push the argumentType onto the stack.
-            switch (this.argTypes[i].getSort())
-            {
-                // Object types can simply use LDC
-                case Type.ARRAY:
-                case Type.OBJECT:
-                    super.visitLdcInsn(this.argTypes[i]);
-                    break;
-                // Primitive types need to be fetched from the static .TYPE reference on the
-                // Wrapper type
-                case Type.BOOLEAN:
-                case Type.BYTE:
-                case Type.CHAR:
-                case Type.DOUBLE:
-                case Type.FLOAT:
-                case Type.INT:
-                case Type.LONG:
-                case Type.SHORT:
-                case Type.VOID:
-                    super.getStatic(Constants.WRAPPER_TYPES[this.argTypes[i].getSort()], "TYPE", Constants.CLASS_TYPE);
-                    break;
-            }
-            // Store the argument type in the array.
-            super.visitInsn(Opcodes.AASTORE);
-        }
-        // Push an Object array onto the stack containing all arguments.
-        super.loadArgArray();
-        // Call the static handler method.
-        super.invokeStatic(Constants.HANDLER_TYPE,
-            this.instance ? NativeInterceptingMethodAdapter.INSTANCE_HANDLERS[this.returnType.getSort()] :
-                            NativeInterceptingMethodAdapter.STATIC_HANDLERS[this.returnType.getSort()]);
+            this.invokeStaticHandler();
         // Mark the end of the try/catch block.
         super.mark(lend);
         // Create the finishing label
@@ -297,6 +536,17 @@ public class NativeInterceptingMethodAdapter extends GeneratorAdapter
         super.mark(lexc);
         // Figure out which local variable to assign to the exception
         final int exceptionVarIdx = this.instance ? 1 : 0;
+        // A PRIMITIVE handler declines from a typed method by throwing the shared DECLINED error.
+        if (this.passthrough && this.mode == DispatchMode.PRIMITIVE)
+        {
+            final Label lnotdeclined = new Label();
+            super.dup();
+            super.getStatic(Constants.PRIMITIVE_HANDLER_TYPE, "DECLINED", Constants.ERROR_TYPE);
+            super.ifCmp(Constants.ERROR_TYPE, GeneratorAdapter.NE, lnotdeclined);
+            super.pop();
+            super.goTo(this.lpassthrough);
+            super.mark(lnotdeclined);
+        }
         // Store the exception
         super.visitVarInsn(Opcodes.ASTORE, exceptionVarIdx);
         // Cycle through the exceptions to see if there is an exception type that can be re-thrown
@@ -342,10 +592,357 @@ public class NativeInterceptingMethodAdapter extends GeneratorAdapter
             super.checkCast(this.returnType);
         // Return the value returned by the handler method.
         super.returnValue();
+        // Generate the call to the original native method, which the dispatch code jumps to when
+        // passthrough is enabled and the method is not handled.
+        if (this.passthrough)
+        {
+            super.mark(this.lpassthrough);
+            this.invokeNativeWithEvent(opcode, owner, name, desc);
+            if (this.instance)
+                super.loadThis();
+            super.loadArgs();
+            super.visitMethodInsn(opcode, owner, name, desc);
+            super.returnValue();
+        }
         // Give ASM the chance to compute the max stack size.
         super.visitMaxs(0, 0);
     }
 
+    /**
+     * Generate the call to the original native method that publishes a native invocation event
+     * around it, when {@link NativeEvents#NATIVE_INVOCATIONS} is set. Otherwise this falls through
+     * to the plain call that follows it.
+     */
+    private void invokeNativeWithEvent(final int opcode, final String owner, final String name, final String desc)
+    {
+        final Label lplain = new Label();
+        super.getStatic(Constants.NATIVE_EVENTS_TYPE, "NATIVE_INVOCATIONS", Type.BOOLEAN_TYPE);
+        super.ifZCmp(GeneratorAdapter.EQ, lplain);
+        // Start the event, keeping it in a local to end it after the call.
+        super.invokeStatic(Constants.NATIVE_EVENTS_TYPE, NativeInterceptingMethodAdapter.BEGIN_NATIVE);
+        final int event = super.newLocal(Constants.OBJECT_TYPE);
+        super.storeLocal(event);
+        final Label lstart = new Label();
+        final Label lend = new Label();
+        final Label lexc = new Label();
+        super.visitTryCatchBlock(lstart, lend, lexc, Constants.THROWABLE_TYPE.getInternalName());
+        super.mark(lstart);
+        if (this.instance)
+            super.loadThis();
+        super.loadArgs();
+        super.visitMethodInsn(opcode, owner, name, desc);
+        super.mark(lend);
+        // End the event and return the value returned by the native method.
+        super.loadLocal(event);
+        this.pushNativeMethod();
+        super.invokeStatic(Constants.NATIVE_EVENTS_TYPE, NativeInterceptingMethodAdapter.END_NATIVE);
+        super.returnValue();
+        // End the event and rethrow whatever the native method threw.
+        super.mark(lexc);
+        super.loadLocal(event);
+        this.pushNativeMethod();
+        super.invokeStatic(Constants.NATIVE_EVENTS_TYPE, NativeInterceptingMethodAdapter.END_NATIVE);
+        super.throwException();
+        super.mark(lplain);
+    }
+
+    /**
+     * Generate the invocation of the shared {@link NativeInvocationHandler} method for the return
+     * type of this method. This leaves the value returned by the handler method on the stack.
+     */
+    private void invokeStaticHandler()
+    {
+        // If this is an instance method, load this, otherwise load the class onto the stack.
+        if (this.instance)
+            super.loadThis();
+        else
+            super.visitLdcInsn(this.type);
+        // The handler method for Object takes an additional argument for the return type.
+        if (this.returnType.getSort() == Type.ARRAY || this.returnType.getSort() == Type.OBJECT)
+            super.visitLdcInsn(this.returnType);
+        // Push the name of the method onto the stack.
+        super.visitLdcInsn(this.name);
+        // Push the length of the argumentTypes array onto the stack.
+        super.push(this.argTypes.length);
+        // Create the argumentTypes array on ths stack.
+        super.newArray(Constants.CLASS_TYPE);
+        // Add each of the argument types to the argumentTypes array.
+        for (int i = 0; i < this.argTypes.length; i++)
+        {
+            // Dup the array reference onto the stack.
+            super.dup();
+            // Push the index into the array onto the stack.
+            super.push(i);
+            // Push the argumentType onto the stack.
+            switch (this.argTypes[i].getSort())
+            {
+                // Object types can simply use LDC
+                case Type.ARRAY:
+                case Type.OBJECT:
+                    super.visitLdcInsn(this.argTypes[i]);
+                    break;
+                // Primitive types need to be fetched from the static .TYPE reference on the
+                // Wrapper type
+                case Type.BOOLEAN:
+                case Type.BYTE:
+                case Type.CHAR:
+                case Type.DOUBLE:
+                case Type.FLOAT:
+                case Type.INT:
+                case Type.LONG:
+                case Type.SHORT:
+                case Type.VOID:
+                    super.getStatic(Constants.WRAPPER_TYPES[this.argTypes[i].getSort()], "TYPE", Constants.CLASS_TYPE);
+                    break;
+            }
+            // Store the argument type in the array.
+            super.visitInsn(Opcodes.AASTORE);
+        }
+        // Push an Object array onto the stack containing all arguments.
+        super.loadArgArray();
+        // Call the static handler method.
+        super.invokeStatic(Constants.HANDLER_TYPE,
+            this.instance ? NativeInterceptingMethodAdapter.INSTANCE_HANDLERS[this.returnType.getSort()] :
+                            NativeInterceptingMethodAdapter.STATIC_HANDLERS[this.returnType.getSort()]);
+    }
+
+    /**
+     * Generate the invocation of the shared {@link NativeInvocationHandler} method that takes the
+     * {@link NativeMethod} cached in the static field for this method. This avoids creating the
+     * array of argument types on every invocation. This leaves the value returned by the handler
+     * on the stack in the same way as {@link #invokeStaticHandler()}.
+     */
+    private void invokeCachedStaticHandler()
+    {
+        // Push the instance, if any, and the NativeMethod for this method onto the stack.
+        if (this.instance)
+            super.loadThis();
+        this.pushNativeMethod();
+        // Push an Object array onto the stack containing all arguments.
+        super.loadArgArray();
+        // Call the static handler method and convert the value it returns.
+        if (this.passthrough)
+        {
+            super.invokeStatic(Constants.HANDLER_TYPE, this.instance ?
+                NativeInterceptingMethodAdapter.HANDLE_OR_PROCEED : NativeInterceptingMethodAdapter.HANDLE_STATIC_OR_PROCEED);
+            this.proceedIfDeclined(0);
+        }
+        else
+            super.invokeStatic(Constants.HANDLER_TYPE,
+                this.instance ? NativeInterceptingMethodAdapter.HANDLE : NativeInterceptingMethodAdapter.HANDLE_STATIC);
+        this.convertReturnValue();
+    }
+
+    /**
+     * Generate the invocation of the handler linked to the {@link NativeMethod} for this method.
+     * This leaves the value returned by the handler on the stack, unboxed for primitive return
+     * types and popped for void methods, in the same way as {@link #invokeStaticHandler()}.
+     */
+    private void invokeLinkedHandler()
+    {
+        // Push the NativeMethod for this method onto the stack, three times over.
+        this.pushNativeMethod();
+        super.dup();
+        super.dup();
+        // Replace the top reference with the handler.
+        if (this.passthrough)
+            this.findHandler(NativeInterceptingMethodAdapter.INSTANCE_FIND_HANDLER,
+                             NativeInterceptingMethodAdapter.STATIC_FIND_HANDLER, 2);
+        else if (this.instance)
+        {
+            super.loadThis();
+            super.invokeVirtual(Constants.NATIVE_METHOD_TYPE, NativeInterceptingMethodAdapter.INSTANCE_HANDLER);
+        }
+        else
+            super.invokeVirtual(Constants.NATIVE_METHOD_TYPE, NativeInterceptingMethodAdapter.STATIC_HANDLER);
+        // Swap the handler below the NativeMethod and replace it with the reflected method.
+        super.swap();
+        super.invokeVirtual(Constants.NATIVE_METHOD_TYPE, NativeInterceptingMethodAdapter.GET_METHOD);
+        // Push the proxy object (this, or the class for static methods) below the reflected method.
+        if (this.instance)
+            super.loadThis();
+        else
+            super.visitLdcInsn(this.type);
+        super.swap();
+        // Push an Object array onto the stack containing all arguments.
+        super.loadArgArray();
+        // Invoke the handler directly, so that each intercepted method has its own call site.
+        super.invokeInterface(Constants.INVOCATION_HANDLER_TYPE, NativeInterceptingMethodAdapter.INVOKE);
+        if (this.passthrough)
+            this.proceedIfDeclined(1);
+        // Check the returned value against the return type using the remaining NativeMethod.
+        super.invokeVirtual(Constants.NATIVE_METHOD_TYPE, NativeInterceptingMethodAdapter.CHECK_RETURN);
+        this.convertReturnValue();
+    }
+
+    /**
+     * Generate the invocation of the typed {@link PrimitiveInvocationHandler} method for the return
+     * type of this method, passing the arguments in a {@link NativeFrame}. This leaves the value
+     * returned by the handler on the stack in the same way as {@link #invokeStaticHandler()}.
+     */
+    private void invokePrimitiveHandler()
+    {
+        final boolean reference = this.returnType.getSort() == Type.ARRAY || this.returnType.getSort() == Type.OBJECT;
+        // Push the NativeMethod for this method onto the stack, twice over, and once more to check
+        // a returned reference.
+        this.pushNativeMethod();
+        if (reference)
+            super.dup();
+        super.dup();
+        // Replace the top reference with the handler.
+        if (this.passthrough)
+            this.findHandler(NativeInterceptingMethodAdapter.INSTANCE_FIND_PRIMITIVE_HANDLER,
+                             NativeInterceptingMethodAdapter.STATIC_FIND_PRIMITIVE_HANDLER, reference ? 2 : 1);
+        else if (this.instance)
+        {
+            super.loadThis();
+            super.invokeVirtual(Constants.NATIVE_METHOD_TYPE, NativeInterceptingMethodAdapter.INSTANCE_PRIMITIVE_HANDLER);
+        }
+        else
+            super.invokeVirtual(Constants.NATIVE_METHOD_TYPE, NativeInterceptingMethodAdapter.STATIC_PRIMITIVE_HANDLER);
+        // Swap the handler below the NativeMethod and push the proxy object between them.
+        super.swap();
+        if (this.instance)
+            super.loadThis();
+        else
+            super.visitLdcInsn(this.type);
+        super.swap();
+        // Push the frame, storing each argument in its typed slot.
+        if (this.argTypes.length == 0)
+            super.getStatic(Constants.NATIVE_FRAME_TYPE, "EMPTY", Constants.NATIVE_FRAME_TYPE);
+        else
+        {
+            super.newInstance(Constants.NATIVE_FRAME_TYPE);
+            super.dup();
+            super.push(this.argTypes.length);
+            super.invokeConstructor(Constants.NATIVE_FRAME_TYPE, NativeInterceptingMethodAdapter.FRAME_CONSTRUCTOR);
+            for (int i = 0; i < this.argTypes.length; i++)
+            {
+                super.dup();
+                super.push(i);
+                super.loadArg(i);
+                super.invokeVirtual(Constants.NATIVE_FRAME_TYPE,
+                    NativeInterceptingMethodAdapter.FRAME_SETTERS[this.argTypes[i].getSort()]);
+            }
+        }
+        // Invoke the typed handler method, which returns the value unboxed.
+        super.invokeVirtual(Constants.PRIMITIVE_HANDLER_TYPE,
+            NativeInterceptingMethodAdapter.PRIMITIVE_HANDLERS[this.returnType.getSort()]);
+        // Only reference types can be declined by value; typed methods throw DECLINED instead.
+        if (reference)
+        {
+            if (this.passthrough)
+                this.proceedIfDeclined(1);
+            // Check the returned value against the return type using the remaining NativeMethod.
+            super.invokeVirtual(Constants.NATIVE_METHOD_TYPE, NativeInterceptingMethodAdapter.CHECK_RETURN);
+        }
+    }
+
+    /**
+     * Generate the code that replaces the {@link NativeMethod} on top of the stack with the handler
+     * for this method, jumping to the original method when there is none. The given number of
+     * references below the NativeMethod are discarded before the jump.
+     *
+     * @param instanceFind The method that finds the handler for an instance method.
+     * @param staticFind The method that finds the handler for a static method.
+     * @param depth The number of references below the NativeMethod on the stack.
+     */
+    private void findHandler(final Method instanceFind, final Method staticFind, final int depth)
+    {
+        if (this.instance)
+        {
+            super.loadThis();
+            super.invokeVirtual(Constants.NATIVE_METHOD_TYPE, instanceFind);
+        }
+        else
+            super.invokeVirtual(Constants.NATIVE_METHOD_TYPE, staticFind);
+        final Label lfound = new Label();
+        super.dup();
+        super.ifNonNull(lfound);
+        super.pop();
+        for (int i = 0; i < depth; i++)
+            super.pop();
+        super.goTo(this.lpassthrough);
+        super.mark(lfound);
+    }
+
+    /**
+     * Generate the code that jumps to the original method when the handler returned
+     * {@link NativeInvocationHandler#PROCEED}, leaving the value on the stack otherwise. The given
+     * number of references below the value are discarded before the jump.
+     *
+     * @param depth The number of references below the value on the stack.
+     */
+    private void proceedIfDeclined(final int depth)
+    {
+        final Label lhandled = new Label();
+        super.dup();
+        super.getStatic(Constants.HANDLER_TYPE, "PROCEED", Constants.OBJECT_TYPE);
+        super.ifCmp(Constants.OBJECT_TYPE, GeneratorAdapter.NE, lhandled);
+        super.pop();
+        for (int i = 0; i < depth; i++)
+            super.pop();
+        super.goTo(this.lpassthrough);
+        super.mark(lhandled);
+    }
+
+    /**
+     * Generate the code to push the {@link NativeMethod} for this method onto the stack. When the
+     * class has a static field for it, the field is initialized on first use, so that
+     * later invocations only load the field. Otherwise the method is looked up on every invocation.
+     */
+    private void pushNativeMethod()
+    {
+        if (this.parent.hasNativeMethodField(this.field))
+        {
+            final Label lloaded = new Label();
+            // Load the field and skip the lookup when it is already set.
+            super.getStatic(this.type, this.field, Constants.NATIVE_METHOD_TYPE);
+            super.dup();
+            super.ifNonNull(lloaded);
+            super.pop();
+            // Look up the method and store it in the field. Racing threads store the same instance.
+            this.linkNativeMethod();
+            super.dup();
+            super.putStatic(this.type, this.field, Constants.NATIVE_METHOD_TYPE);
+            super.mark(lloaded);
+        }
+        else
+            this.linkNativeMethod();
+    }
+
+    /**
+     * Generate the call that looks up the {@link NativeMethod} for this method.
+     */
+    private void linkNativeMethod()
+    {
+        super.visitLdcInsn(this.type);
+        super.visitLdcInsn(this.name);
+        super.visitLdcInsn(this.desc);
+        super.invokeStatic(Constants.HANDLER_TYPE, NativeInterceptingMethodAdapter.LINK);
+    }
+
+    /**
+     * Generate the code to convert the checked Object returned by a handler to the form that the
+     * typed {@link NativeInvocationHandler} methods would have returned it in: unboxed for
+     * primitive return types and popped for void methods.
+     */
+    private void convertReturnValue()
+    {
+        switch (this.returnType.getSort())
+        {
+            case Type.ARRAY:
+            case Type.OBJECT:
+                break;
+            case Type.VOID:
+                super.pop();
+                break;
+            default:
+                super.unbox(this.returnType);
+                break;
+        }
+    }
+
     // Since the visitMethodInsn method creates all instructions other than visitCode and visitEnd,
     // override all other visitor methods to act as a no-op when transforming;
     @Override
@@ -5,6 +5,8 @@ import java.io.StringWriter;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.logging.Logger;
 
 import org.objectweb.asm.ClassReader;
@@ -38,11 +40,28 @@ public class NativeInterceptingTransformer implements ClassFileTransformer
          * requires the wrapping transformation, only classes being re-transformed will be
          * transformed by this class. Also, consult the excluded classes list to prevent
          * instrumentation of core system libraries.
+         *
+         * Re-transformation always starts from the wrapped class bytes, so a class that is
+         * already intercepted must be transformed again to stay intercepted. Only the classes
+         * selected through NativeInterceptor are transformed.
          */
-        if (classBeingRedefined == null ||
-            classBeingRedefined.getAnnotation(HasInterceptedNatives.class) != null ||
-            NativeInterceptorAgent.isExcluded(className))
+        if (classBeingRedefined == null || NativeInterceptorAgent.isExcluded(className))
             return null;
+        final Set<String> selected = NativeMethodSelection.get(classBeingRedefined);
+        if (selected == null)
+            return null;
+        final DispatchMode mode = NativeInterceptorAgent.getDispatchMode();
+        final boolean passthrough = NativeInterceptorAgent.isPassthrough();
+        // Reuse the bytes transformed by an earlier run when they are cached.
+        final TransformCache cache = NativeInterceptorAgent.getTransformCache();
+        final String key = cache == null ? null :
+            cache.key(NativeInterceptingTransformer.transformation(mode, passthrough, selected), classfileBuffer);
+        if (key != null)
+        {
+            final byte[] cached = cache.get(key);
+            if (cached != null)
+                return cached;
+        }
         try
         {
             // Create the reader that reads from the class bytes.
@@ -52,12 +71,19 @@ public class NativeInterceptingTransformer implements ClassFileTransformer
             final ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
             // Create the adapter between the reader and writer.
             final NativeInterceptingClassAdapter adapter =
-                new NativeInterceptingClassAdapter(writer, Type.getType(classBeingRedefined));
+                new NativeInterceptingClassAdapter(writer, Type.getType(classBeingRedefined),
+                                                   mode, passthrough,
+                                                   selected == NativeMethodSelection.ALL ? null : selected);
             // Run the class through the adapter
             reader.accept(adapter, ClassReader.EXPAND_FRAMES);
             // Check to see if the transformation found any valid targets. Returning null here
             // signals that no changes were made.
-            return adapter.intercepted() ? writer.toByteArray() : null;
+            if (!adapter.intercepted())
+                return null;
+            final byte[] transformed = writer.toByteArray();
+            if (key != null)
+                cache.put(key, transformed);
+            return transformed;
         }
         catch (final Throwable t)
         {
@@ -75,4 +101,18 @@ public class NativeInterceptingTransformer implements ClassFileTransformer
                 (RuntimeException)t : new RuntimeException("Error while transforming class for intercepting", t);
         }
     }
+
+    /**
+     * Describe an intercepting transformation for {@link TransformCache} keys, including
+     * everything that changes its output.
+     */
+    private static String transformation(final DispatchMode mode, final boolean passthrough, final Set<String> selected)
+    {
+        final StringBuilder transformation = new StringBuilder("intercept ").append(mode).append(' ').append(passthrough);
+        if (selected == NativeMethodSelection.ALL)
+            return transformation.append(" all").toString();
+        for (final String method : new TreeSet<String>(selected))
+            transformation.append(' ').append(method);
+        return transformation.toString();
+    }
 }
\ No newline at end of file
@@ -2,12 +2,31 @@ package org.synth.intercept;
 
 import java.lang.instrument.UnmodifiableClassException;
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.objectweb.asm.Type;
 
 /**
  * The main interface to the Native Interceptor library.
+ *
+ * Intercepting a class normally retransforms it. Classes intercepted when they were loaded (see
+ * {@link NativeInterceptorAgent#setEagerFilter(ClassnameFilter)}) are never retransformed: the
+ * methods here only register or unregister their handlers, and while no handler is registered
+ * their methods call the native methods.
  */
 public class NativeInterceptor
 {
+    /**
+     * A log for reporting the cost of retransforming classes.
+     */
+    private static final Logger LOG = Logger.getLogger(NativeInterceptor.class.getPackage().getName());
+
     /**
      * Indicate that a class should have its native methods intercepted and delegated to the
      * supplied invocation handler. This includes methods from inherited from any superclasses of
@@ -31,7 +50,8 @@ public class NativeInterceptor
 
     /**
      * Indicate that a class should have its native methods intercepted and delegated to the
-     * supplied invocation handler.
+     * supplied invocation handler. Passing a null handler stops intercepting the class and
+     * restores its methods to call their native methods directly.
      *
      * Note: The {@link InvocationHandler} interface is intended for use in Java dynamic proxies
      *       and is not designed to handle static method invocations. However some of the native
@@ -51,36 +71,439 @@ public class NativeInterceptor
             throw new IllegalArgumentException("Cannot intercept native methods on null type");
         if (handler == null)
         {
-            NativeInvocationHandler.unregisterHandler(type);
+            NativeInterceptor.restore(type, interceptInherited);
             return;
         }
         if (type.getAnnotation(HasNatives.class) == null)
             throw new IllegalStateException("Cannot instrument class to intercept native methods...see documentation for causes");
 
+        // Retransform the class and any intercepted superclasses in a single batch.
+        final Map<Class<?>,InvocationHandler> handlers = new LinkedHashMap<Class<?>,InvocationHandler>();
+        handlers.put(type, handler);
+        if (interceptInherited)
+            for (Class<?> cls = type.getSuperclass();
+                 cls != null && !NativeInterceptorAgent.isExcluded(cls.getName().replace('.', '/'));
+                 cls = cls.getSuperclass())
+                if (cls.getAnnotation(HasNatives.class) != null)
+                    handlers.put(cls, handler);
+        NativeInterceptor.intercept(handlers);
+    }
+
+    /**
+     * Indicate that a single native method should be intercepted and delegated to the supplied
+     * invocation handler. Only the selected methods of a class are rewritten to dispatch to the
+     * handler; its other native methods continue to call their native implementations directly.
+     * Selecting further methods of the same class adds to the selection.
+     *
+     * The handler is registered for the declaring class, so it replaces any handler already
+     * registered for that class and receives every intercepted method of it.
+     *
+     * @param method The native method to intercept.
+     * @param handler The handler to delegate the intercepted method to.
+     * @throws IllegalArgumentException When the method or handler is null, or the method was not
+     *         originally native.
+     * @throws IllegalStateException When the class has not previously been transformed to wrap
+     *         its native methods.
+     * @see #intercept(Class,InvocationHandler,String,String)
+     */
+    public static void intercept(final Method method, final InvocationHandler handler) throws IllegalArgumentException, IllegalStateException
+    {
+        if (method == null)
+            throw new IllegalArgumentException("Cannot intercept null native method");
+        NativeInterceptor.intercept(method.getDeclaringClass(), handler, method.getName(), Type.getMethodDescriptor(method));
+    }
+
+    /**
+     * Coalesce concurrent invocations of a native method with equal arguments into one invocation
+     * of the native method (see {@link CoalescingHandler}). The method is intercepted as with
+     * {@link #intercept(Method,InvocationHandler)}, and coalesced by the
+     * {@link CoalescingHandler} registered for its declaring class, which is created if there is
+     * none. Coalescing further methods of the same class adds them to the same handler, and
+     * nothing is done when the registered handler already coalesces every method.
+     *
+     * @param method The native method to coalesce.
+     * @throws IllegalArgumentException When the method is null or was not originally native.
+     * @throws IllegalStateException When the class has not previously been transformed to wrap
+     *         its native methods, or a handler other than a {@link CoalescingHandler} is
+     *         registered for it.
+     */
+    public static synchronized void coalesce(final Method method) throws IllegalArgumentException, IllegalStateException
+    {
+        if (method == null)
+            throw new IllegalArgumentException("Cannot coalesce null native method");
+        new Selector<CoalescingHandler>(CoalescingHandler.class) {
+            CoalescingHandler create(final Method method)
+            {
+                return new CoalescingHandler(method);
+            }
+
+            boolean selectsEvery(final CoalescingHandler handler)
+            {
+                return handler.isCoalescingEvery();
+            }
+
+            void select(final CoalescingHandler handler, final Method method)
+            {
+                handler.coalesce(method);
+            }
+        }.select(method);
+    }
+
+    /**
+     * Offload the calls of a slow native method from virtual threads to a pool of platform
+     * threads, so that they do not pin their carriers (see {@link OffloadingHandler}). The method
+     * is intercepted as with {@link #intercept(Method,InvocationHandler)}, and offloaded by the
+     * {@link OffloadingHandler} registered for its declaring class, which is created with its own
+     * pool if there is none. Offloading further methods of the same class adds them to the same
+     * handler and pool, and nothing is done when the registered handler already offloads every
+     * method.
+     *
+     * @param method The native method to offload.
+     * @throws IllegalArgumentException When the method is null or was not originally native.
+     * @throws IllegalStateException When the class has not previously been transformed to wrap
+     *         its native methods, or a handler other than an {@link OffloadingHandler} is
+     *         registered for it.
+     */
+    public static synchronized void offload(final Method method) throws IllegalArgumentException, IllegalStateException
+    {
+        if (method == null)
+            throw new IllegalArgumentException("Cannot offload null native method");
+        new Selector<OffloadingHandler>(OffloadingHandler.class) {
+            OffloadingHandler create(final Method method)
+            {
+                return new OffloadingHandler(method);
+            }
+
+            boolean selectsEvery(final OffloadingHandler handler)
+            {
+                return handler.isOffloadingEvery();
+            }
+
+            void select(final OffloadingHandler handler, final Method method)
+            {
+                handler.offload(method);
+            }
+        }.select(method);
+    }
+
+    /**
+     * Govern the invocations of the intercepted methods declared by a class with a concurrency
+     * policy (see {@link ConcurrencyPolicy}), replacing any policy applied to them before. The
+     * policy applies to whichever handler is registered, now or later.
+     *
+     * @param type The class that declares the native methods.
+     * @param policy The policy, or null to stop governing the methods.
+     * @throws IllegalArgumentException When the type is null or declares no native methods that
+     *         have been wrapped.
+     * @see #constrain(Method,ConcurrencyPolicy)
+     */
+    public static void constrain(final Class<?> type, final ConcurrencyPolicy policy) throws IllegalArgumentException
+    {
+        if (type == null)
+            throw new IllegalArgumentException("Cannot constrain native methods on null type");
+        NativeMethodCache.constrain(type, null, policy);
+    }
+
+    /**
+     * Govern the invocations of a single intercepted method with a concurrency policy, replacing
+     * any policy applied to it before.
+     *
+     * @param method The native method.
+     * @param policy The policy, or null to stop governing the method.
+     * @throws IllegalArgumentException When the method is null or was not originally native.
+     * @see #constrain(Class,ConcurrencyPolicy)
+     */
+    public static void constrain(final Method method, final ConcurrencyPolicy policy) throws IllegalArgumentException
+    {
+        if (method == null)
+            throw new IllegalArgumentException("Cannot constrain null native method");
+        NativeMethodCache.constrain(method.getDeclaringClass(), method, policy);
+    }
+
+    /**
+     * Indicate that a single native method, identified by its name and descriptor, should be
+     * intercepted and delegated to the supplied invocation handler.
+     *
+     * @param type The class that declares the native method.
+     * @param handler The handler to delegate the intercepted method to.
+     * @param name The name of the method.
+     * @param desc The descriptor of the method (e.g. <code>(ILjava/lang/String;)V</code>).
+     * @throws IllegalArgumentException When any argument is null, or the class does not declare a
+     *         method with the given name and descriptor that was originally native.
+     * @throws IllegalStateException When the class has not previously been transformed to wrap
+     *         its native methods.
+     * @see #intercept(Method,InvocationHandler)
+     */
+    public static void intercept(final Class<?> type, final InvocationHandler handler, final String name, final String desc)
+        throws IllegalArgumentException, IllegalStateException
+    {
+        if (type == null)
+            throw new IllegalArgumentException("Cannot intercept native methods on null type");
+        if (handler == null)
+            throw new IllegalArgumentException("Cannot intercept native method with null handler");
+        if (name == null || desc == null)
+            throw new IllegalArgumentException("Cannot intercept native method without a name and descriptor");
+        if (type.getAnnotation(HasNatives.class) == null)
+            throw new IllegalStateException("Cannot instrument class to intercept native methods...see documentation for causes");
+        if (!NativeInterceptor.wasNative(type, name, desc))
+            throw new IllegalArgumentException("No native method " + type.getName() + "." + name + desc + " to intercept");
+        if (NativeInterceptor.isInterceptedAtLoad(type))
+        {
+            // every method is already intercepted, so only the handler needs to be registered.
+            NativeInvocationHandler.registerHandler(type, handler);
+            NativeMethodCache.populate(type);
+            return;
+        }
+
         try
         {
-            if (interceptInherited)
+            NativeMethodSelection.select(type, name, desc);
+            NativeInterceptorAgent.getInstrumentation().retransformClasses(type);
+            NativeInvocationHandler.registerHandler(type, handler);
+            NativeMethodCache.populate(type);
+        }
+        catch (final UnmodifiableClassException e)
+        {
+            throw new IllegalStateException("Unable to intercept native method...see documentation for details", e);
+        }
+    }
+
+    /**
+     * Intercept the native methods of many classes at once. The classes are retransformed in a
+     * single batch, so that installing handlers across many classes (e.g. at startup) causes one
+     * pause rather than one per class. Only the given classes are intercepted, not their
+     * superclasses, although instances of subclasses are handled by the handler of their nearest
+     * intercepted superclass.
+     *
+     * @param handlers The handler to delegate the native methods of each class to.
+     * @return The time taken to retransform the classes, in nanoseconds, which is zero when
+     *         every class was intercepted when it was loaded.
+     * @throws IllegalArgumentException When the map, any class or any handler is null.
+     * @throws IllegalStateException When any class has not previously been transformed to wrap its
+     *         native methods.
+     */
+    public static long intercept(final Map<Class<?>,InvocationHandler> handlers) throws IllegalArgumentException, IllegalStateException
+    {
+        if (handlers == null)
+            throw new IllegalArgumentException("Cannot intercept native methods with null handlers");
+        for (final Map.Entry<Class<?>,InvocationHandler> entry : handlers.entrySet())
+        {
+            if (entry.getKey() == null)
+                throw new IllegalArgumentException("Cannot intercept native methods on null type");
+            if (entry.getValue() == null)
+                throw new IllegalArgumentException("Cannot intercept native methods on " + entry.getKey().getName() + " with null handler");
+            if (entry.getKey().getAnnotation(HasNatives.class) == null)
+                throw new IllegalStateException("Cannot instrument class " + entry.getKey().getName() + " to intercept native methods...see documentation for causes");
+        }
+        if (handlers.isEmpty())
+            return 0;
+
+        // classes intercepted when they were loaded only need their handlers registered.
+        final List<Class<?>> retransformed = new ArrayList<Class<?>>();
+        for (final Class<?> type : handlers.keySet())
+            if (!NativeInterceptor.isInterceptedAtLoad(type))
             {
-                Class<?> cls = type;
-                while (cls != null && !NativeInterceptorAgent.isExcluded(cls.getName()))
-                {
-                    if (cls.getAnnotation(HasNatives.class) != null)
-                    {
-                        NativeInterceptorAgent.getInstrumentation().retransformClasses(cls);
-                        NativeInvocationHandler.registerHandler(cls, handler);
-                    }
-                    cls = cls.getSuperclass();
-                }
+                NativeMethodSelection.selectAll(type);
+                retransformed.add(type);
             }
-            else
+        long pause = 0;
+        if (!retransformed.isEmpty())
+        {
+            final long start = System.nanoTime();
+            try
+            {
+                NativeInterceptorAgent.getInstrumentation().retransformClasses(
+                    retransformed.toArray(new Class<?>[retransformed.size()]));
+            }
+            catch (final UnmodifiableClassException e)
+            {
+                throw new IllegalStateException("Unable to intercept native method...see documentation for details", e);
+            }
+            pause = System.nanoTime() - start;
+            NativeInterceptor.LOG.fine("Retransformed " + retransformed.size() + " classes to intercept native methods in " +
+                                       (pause / 1000000) + " ms");
+        }
+        NativeInvocationHandler.registerHandlers(new HashMap<Class<?>,InvocationHandler>(handlers));
+        for (final Class<?> type : handlers.keySet())
+            NativeMethodCache.populate(type);
+        return pause;
+    }
+
+    /**
+     * Intercept the native methods of every loaded class in the given package, or any package
+     * within it, in a single batch.
+     *
+     * @param packageName The package name (e.g. <code>com.example.natives</code>).
+     * @param handler The handler to delegate the native methods to.
+     * @return The time taken to retransform the classes, in nanoseconds.
+     * @throws IllegalArgumentException When the package name or handler is null.
+     * @see #intercept(Map)
+     */
+    public static long intercept(final String packageName, final InvocationHandler handler) throws IllegalArgumentException
+    {
+        if (packageName == null)
+            throw new IllegalArgumentException("Cannot intercept native methods in null package");
+        if (handler == null)
+            throw new IllegalArgumentException("Cannot intercept native methods with null handler");
+        final String prefix = packageName + '.';
+        final Map<Class<?>,InvocationHandler> handlers = new HashMap<Class<?>,InvocationHandler>();
+        for (final Class<?> type : NativeInterceptor.loadedClassesWithNatives())
+            if (type.getName().startsWith(prefix))
+                handlers.put(type, handler);
+        return NativeInterceptor.intercept(handlers);
+    }
+
+    /**
+     * Intercept the native methods of every class loaded by the given class loader in a single
+     * batch.
+     *
+     * @param loader The class loader that defined the classes.
+     * @param handler The handler to delegate the native methods to.
+     * @return The time taken to retransform the classes, in nanoseconds.
+     * @throws IllegalArgumentException When the class loader or handler is null.
+     * @see #intercept(Map)
+     */
+    public static long intercept(final ClassLoader loader, final InvocationHandler handler) throws IllegalArgumentException
+    {
+        if (loader == null)
+            throw new IllegalArgumentException("Cannot intercept native methods in null class loader");
+        if (handler == null)
+            throw new IllegalArgumentException("Cannot intercept native methods with null handler");
+        final Map<Class<?>,InvocationHandler> handlers = new HashMap<Class<?>,InvocationHandler>();
+        for (final Class<?> type : NativeInterceptor.loadedClassesWithNatives())
+            if (type.getClassLoader() == loader)
+                handlers.put(type, handler);
+        return NativeInterceptor.intercept(handlers);
+    }
+
+    /**
+     * Find the loaded classes that were transformed to wrap their native methods.
+     */
+    private static List<Class<?>> loadedClassesWithNatives()
+    {
+        final List<Class<?>> classes = new ArrayList<Class<?>>();
+        for (final Class<?> type : NativeInterceptorAgent.getInstrumentation().getAllLoadedClasses())
+            if (type.getAnnotation(HasNatives.class) != null)
+                classes.add(type);
+        return classes;
+    }
+
+    /**
+     * Stop intercepting a class, retransforming it back to its wrapped form so that its methods
+     * call their native methods directly again. When inherited methods were intercepted along with
+     * the class, the superclasses that share its handler are restored as well. Superclasses that
+     * have a handler of their own are left intercepted.
+     *
+     * The handler is unregistered only once the class has been restored, so that calls made while
+     * it is retransformed are still handled.
+     */
+    private static void restore(final Class<?> type, final boolean restoreInherited)
+    {
+        final InvocationHandler handler = NativeInvocationHandler.getRegisteredHandler(type);
+        final List<Class<?>> restored = new ArrayList<Class<?>>();
+        restored.add(type);
+        if (restoreInherited && handler != null)
+            for (Class<?> cls = type.getSuperclass();
+                 cls != null && !NativeInterceptorAgent.isExcluded(cls.getName().replace('.', '/'));
+                 cls = cls.getSuperclass())
+                if (NativeInvocationHandler.getRegisteredHandler(cls) == handler)
+                    restored.add(cls);
+        final List<Class<?>> intercepted = new ArrayList<Class<?>>();
+        for (final Class<?> cls : restored)
+            if (NativeMethodSelection.get(cls) != null && !NativeInterceptor.isInterceptedAtLoad(cls))
             {
-                NativeInterceptorAgent.getInstrumentation().retransformClasses(type);
-                NativeInvocationHandler.registerHandler(type, handler);
+                NativeMethodSelection.clear(cls);
+                intercepted.add(cls);
             }
+        try
+        {
+            if (!intercepted.isEmpty())
+                NativeInterceptorAgent.getInstrumentation().retransformClasses(
+                    intercepted.toArray(new Class<?>[intercepted.size()]));
         }
         catch (final UnmodifiableClassException e)
         {
-            throw new IllegalStateException("Unable to intercept native method...see documentation for details", e);
+            throw new IllegalStateException("Unable to restore native method...see documentation for details", e);
+        }
+        finally
+        {
+            for (final Class<?> cls : restored)
+                NativeInvocationHandler.unregisterHandler(cls);
+        }
+    }
+
+    /**
+     * Determine whether the given class was intercepted when it was loaded, so that switching its
+     * interception on and off only needs its handler to be registered or unregistered.
+     */
+    private static boolean isInterceptedAtLoad(final Class<?> type)
+    {
+        return type.getAnnotation(InterceptedAtLoad.class) != null;
+    }
+
+    /**
+     * Determine whether the given class declares a wrapped method with the given name and
+     * descriptor.
+     */
+    private static boolean wasNative(final Class<?> type, final String name, final String desc)
+    {
+        for (final Method method : type.getDeclaredMethods())
+            if (method.getAnnotation(WasNative.class) != null && method.getName().equals(name) &&
+                Type.getMethodDescriptor(method).equals(desc))
+                return true;
+        return false;
+    }
+
+    /**
+     * Selects methods for a kind of handler that handles either every intercepted method of a
+     * class or only the methods selected for it, such as {@link CoalescingHandler}.
+     */
+    private abstract static class Selector<H extends InvocationHandler>
+    {
+        private final Class<H> kind;
+
+        Selector(final Class<H> kind)
+        {
+            this.kind = kind;
+        }
+
+        /**
+         * Create a handler that handles only the given method.
+         */
+        abstract H create(Method method);
+
+        /**
+         * Determine whether a handler already handles every method.
+         */
+        abstract boolean selectsEvery(H handler);
+
+        /**
+         * Add a method to those a handler handles.
+         */
+        abstract void select(H handler, Method method);
+
+        /**
+         * Intercept a method with the handler of this kind registered for its declaring class,
+         * creating one if none is registered.
+         *
+         * @throws IllegalStateException When a handler of another kind is registered.
+         */
+        final void select(final Method method)
+        {
+            final InvocationHandler registered = NativeInvocationHandler.getRegisteredHandler(method.getDeclaringClass());
+            final H handler;
+            if (registered == null)
+                handler = this.create(method);
+            else if (this.kind.isInstance(registered))
+            {
+                handler = this.kind.cast(registered);
+                if (this.selectsEvery(handler))
+                    return;
+                this.select(handler, method);
+            }
+            else
+                throw new IllegalStateException("Another handler is registered for " + method.getDeclaringClass().getName());
+            NativeInterceptor.intercept(method, handler);
         }
     }
-}
\ No newline at end of file
+}
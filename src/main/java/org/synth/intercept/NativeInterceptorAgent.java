@@ -1,20 +1,14 @@
 package org.synth.intercept;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.Properties;
 import java.util.logging.Logger;
 
-import com.sun.tools.attach.AgentInitializationException;
-import com.sun.tools.attach.AgentLoadException;
-import com.sun.tools.attach.AttachNotSupportedException;
-import com.sun.tools.attach.VirtualMachine;
-import com.sun.tools.attach.VirtualMachineDescriptor;
-
 /**
  * The java agent that attaches the necessary {@link ClassFileTransformer
  * ClassFileTransformers} to instrument classes with native methods.
@@ -29,23 +23,93 @@ public class NativeInterceptorAgent
     /**
      * A saved static reference to the {@link Instrumentation} instance.
      */
-    private static Instrumentation INSTRUMENTATION;
+    private static volatile Instrumentation INSTRUMENTATION;
 
     /**
-     * The default exclusion filter.
+     * The default exclusion filter, for the packages of classes that should not be instrumented,
+     * along with any classes excluded by the {@value #EXCLUDE_OPTION} agent option.
      */
-    private static ClassnameFilter DEFAULT_EXCLUSION_FILTER = new DefaultExclusionFilter();
+    private static ClassnameFilter DEFAULT_EXCLUSION_FILTER =
+        new GlobClassnameFilter("java.**", "javax.**", "jdk.**", "com.sun.**", "sun.**", "org.w3c.**", "org.xml.**");
 
     /**
      * The exclusion filter for limiting the classes transformed.
      */
-    private static ClassnameFilter EXCLUSION_FILTER = DEFAULT_EXCLUSION_FILTER;
+    private static volatile ClassnameFilter EXCLUSION_FILTER = DEFAULT_EXCLUSION_FILTER;
+
+    /**
+     * The inclusion filter for limiting the classes transformed, or null to transform every class
+     * that is not excluded.
+     */
+    private static volatile ClassnameFilter INCLUSION_FILTER;
+
+    /**
+     * The filter for the classes to intercept when they are loaded, or null to intercept classes
+     * only when {@link NativeInterceptor} is asked to.
+     */
+    private static volatile ClassnameFilter EAGER_FILTER;
+
+    /**
+     * The agent option with the patterns of the only classes to transform.
+     */
+    public static final String INCLUDE_OPTION = "include";
+
+    /**
+     * The agent option with the patterns of classes not to transform.
+     */
+    public static final String EXCLUDE_OPTION = "exclude";
+
+    /**
+     * The agent option with the patterns of classes to intercept when they are loaded.
+     */
+    public static final String EAGER_OPTION = "eager";
+
+    /**
+     * The agent option with the name of the dispatch mode.
+     */
+    public static final String DISPATCH_OPTION = "dispatch";
+
+    /**
+     * The agent option that, when true, publishes events to Java Flight Recorder (see
+     * {@link NativeEvents}).
+     */
+    public static final String JFR_OPTION = "jfr";
+
+    /**
+     * The agent option with the path of a properties file holding further options.
+     */
+    public static final String CONFIG_OPTION = "config";
+
+    /**
+     * The strategy used to dispatch intercepted methods in classes transformed from now on.
+     */
+    private static volatile DispatchMode DISPATCH_MODE = DispatchMode.STATIC;
+
+    /**
+     * Whether classes transformed from now on call the original native method when no handler is
+     * registered or the handler declines.
+     */
+    private static volatile boolean PASSTHROUGH = false;
+
+    /**
+     * The system property naming the directory to cache transformed classes in.
+     */
+    public static final String CACHE_DIRECTORY_PROPERTY = "org.synth.intercept.cache";
+
+    /**
+     * The system property with the maximum size of the transformed class cache, in bytes.
+     */
+    public static final String CACHE_SIZE_PROPERTY = "org.synth.intercept.cache.size";
+
+    /**
+     * The default maximum size of the transformed class cache, in bytes.
+     */
+    public static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
 
     /**
-     * prefixes for classes that should not be instrumented.
+     * The cache of transformed class bytes, or null when transformed classes are not cached.
      */
-    private static final Set<String> EXCLUDED_PREFIXES =
-        new HashSet<String>(Arrays.asList("java", "javax", "com/sun", "sun", "org/w3c", "org/xml"));
+    private static volatile TransformCache TRANSFORM_CACHE;
 
     /**
      * A cache of the the Java version. Since
@@ -60,12 +124,16 @@ public class NativeInterceptorAgent
      */
     @SuppressWarnings("unused")
     private static final Class<?>[] PRELOADED_CLASSES = new Class<?>[] {
-        HasInterceptedNatives.class, HasNatives.class, WasNative.class, Intercepted.class,
+        HasInterceptedNatives.class, HasNatives.class, InterceptedAtLoad.class, WasNative.class, Intercepted.class,
         NativeInvocationHandler.class, NativeInterceptor.class,
+        NativeMethod.class, NativeMethodCache.class,
+        InvocationMetrics.class, ConcurrencyPolicy.class,
+        NativeEvents.class, NativeEventSink.class,
+        NativeMethodSelection.class, NativeMethodScanner.class, TransformCache.class,
         NativeWrappingTransformer.class, NativeInterceptingTransformer.class,
         NativeWrappingClassAdapter.class, NativeInterceptingClassAdapter.class,
         NativeWrappingMethodAdapter.class, NativeInterceptingMethodAdapter.class,
-        ClassnameFilter.class, Constants.class
+        ClassnameFilter.class, GlobClassnameFilter.class, Constants.class, DispatchMode.class
     };
 
     /**
@@ -73,14 +141,14 @@ public class NativeInterceptorAgent
      * -javaagent VM argument.
      *
      * @param agentArgs
-     *            The agent arguments (unused).
+     *            The agent options (see {@link #configure(String)}), or null.
      * @param instrumentation
      *            The instrumentation reference.
      */
     public static void premain(final String agentArgs, final Instrumentation instrumentation)
     {
         NativeInterceptorAgent.LOG.fine("Loading agent premain");
-        NativeInterceptorAgent.init(instrumentation);
+        NativeInterceptorAgent.init(agentArgs, instrumentation);
     }
 
     /**
@@ -88,27 +156,36 @@ public class NativeInterceptorAgent
      * VM.
      *
      * @param agentArgs
-     *            The agent arguments (unused).
+     *            The agent options (see {@link #configure(String)}), or null.
      * @param instrumentation
      *            The instrumentation reference.
      */
     public static void agentmain(final String agentArgs, final Instrumentation instrumentation)
     {
         NativeInterceptorAgent.LOG.fine("Loading agent agentmain");
-        NativeInterceptorAgent.init(instrumentation);
+        NativeInterceptorAgent.init(agentArgs, instrumentation);
     }
 
     /**
      * Shared init method for {@link #premain(String,Instrumentation)} and
      * {@link #agentmain(String,Instrumentation)}.
      *
+     * @param agentArgs
+     *            The agent options, or null.
      * @param instrumentation
      *            The instrumentation reference.
      */
-    private static void init(final Instrumentation instrumentation)
+    private static void init(final String agentArgs, final Instrumentation instrumentation)
     {
+        // apply the options before any classes are transformed.
+        NativeInterceptorAgent.configure(agentArgs);
         // save the instrumentation reference.
         NativeInterceptorAgent.INSTRUMENTATION = instrumentation;
+        // set up the transformed class cache before any classes are transformed.
+        final String cacheDirectory = System.getProperty(NativeInterceptorAgent.CACHE_DIRECTORY_PROPERTY);
+        if (cacheDirectory != null)
+            NativeInterceptorAgent.setTransformCache(new File(cacheDirectory),
+                Long.getLong(NativeInterceptorAgent.CACHE_SIZE_PROPERTY, NativeInterceptorAgent.DEFAULT_CACHE_SIZE).longValue());
         // create the class file transformers
         final NativeWrappingTransformer wrapper = new NativeWrappingTransformer();
         final NativeInterceptingTransformer interceptor = new NativeInterceptingTransformer();
@@ -125,6 +202,114 @@ public class NativeInterceptorAgent
         }
     }
 
+    /**
+     * Apply agent options, given as comma separated <code>name=value</code> pairs, e.g.
+     * <code>-javaagent:native-interceptor.jar=include=com.acme.**:org.example.*,exclude=com.acme.test.**</code>.
+     * The options are:
+     * <ul>
+     * <li>{@value #INCLUDE_OPTION}: glob patterns, separated by colons, of the only classes to
+     * transform (see {@link GlobClassnameFilter}). Classes that do not match are never parsed by
+     * the transformers.</li>
+     * <li>{@value #EXCLUDE_OPTION}: glob patterns, separated by colons, of classes not to
+     * transform, in addition to the default exclusions. Exclusions win over inclusions.</li>
+     * <li>{@value #EAGER_OPTION}: glob patterns, separated by colons, of classes to intercept
+     * when they are loaded (see {@link #setEagerFilter(ClassnameFilter)}).</li>
+     * <li>{@value #DISPATCH_OPTION}: the name of the {@link DispatchMode} to use.</li>
+     * <li>{@value #JFR_OPTION}: true to publish events to Java Flight Recorder (see
+     * {@link NativeEvents#enable()}).</li>
+     * <li>{@value #CONFIG_OPTION}: the path of a properties file holding any of the options
+     * above, one per property.</li>
+     * </ul>
+     *
+     * @param options The options, or null.
+     * @throws IllegalArgumentException When an option is unknown or malformed, or the config file
+     *         cannot be read.
+     */
+    static void configure(final String options)
+    {
+        if (options == null || options.trim().length() == 0)
+            return;
+        for (final String option : options.split(","))
+        {
+            final int idx = option.indexOf('=');
+            if (idx == -1)
+                throw new IllegalArgumentException("Malformed agent option " + option + ", expected name=value");
+            final String name = option.substring(0, idx).trim();
+            final String value = option.substring(idx + 1).trim();
+            if (NativeInterceptorAgent.CONFIG_OPTION.equals(name))
+                NativeInterceptorAgent.configure(NativeInterceptorAgent.loadConfig(value));
+            else
+                NativeInterceptorAgent.configure(name, value);
+        }
+    }
+
+    /**
+     * Apply the options held in a config file.
+     */
+    private static void configure(final Properties config)
+    {
+        for (final String name : config.stringPropertyNames())
+        {
+            if (NativeInterceptorAgent.CONFIG_OPTION.equals(name))
+                throw new IllegalArgumentException("Config files cannot include other config files");
+            NativeInterceptorAgent.configure(name, config.getProperty(name).trim());
+        }
+    }
+
+    /**
+     * Apply a single agent option.
+     */
+    private static void configure(final String name, final String value)
+    {
+        if (NativeInterceptorAgent.INCLUDE_OPTION.equals(name))
+            NativeInterceptorAgent.setInclusionFilter(GlobClassnameFilter.parse(value, ':'));
+        else if (NativeInterceptorAgent.EXCLUDE_OPTION.equals(name))
+        {
+            final ClassnameFilter filter = GlobClassnameFilter.parse(value, ':');
+            // also add to the default filter, so that it is kept by enable(ClassnameFilter)
+            NativeInterceptorAgent.DEFAULT_EXCLUSION_FILTER =
+                new CompoundExclusionFilter(NativeInterceptorAgent.DEFAULT_EXCLUSION_FILTER, filter);
+            NativeInterceptorAgent.EXCLUSION_FILTER =
+                new CompoundExclusionFilter(NativeInterceptorAgent.EXCLUSION_FILTER, filter);
+        }
+        else if (NativeInterceptorAgent.EAGER_OPTION.equals(name))
+            NativeInterceptorAgent.setEagerFilter(GlobClassnameFilter.parse(value, ':'));
+        else if (NativeInterceptorAgent.DISPATCH_OPTION.equals(name))
+            NativeInterceptorAgent.setDispatchMode(DispatchMode.valueOf(value));
+        else if (NativeInterceptorAgent.JFR_OPTION.equals(name))
+        {
+            if (Boolean.parseBoolean(value))
+                NativeEvents.enable();
+        }
+        else
+            throw new IllegalArgumentException("Unknown agent option " + name);
+    }
+
+    /**
+     * Load a config file of agent options.
+     */
+    private static Properties loadConfig(final String path)
+    {
+        final Properties config = new Properties();
+        try
+        {
+            final InputStream in = new FileInputStream(path);
+            try
+            {
+                config.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new IllegalArgumentException("Unable to read agent config file " + path, e);
+        }
+        return config;
+    }
+
     /**
      * Called to register the prefixed method to the original function pointer
      * from the native code.
@@ -152,7 +337,55 @@ public class NativeInterceptorAgent
     {
         if (classname == null)
             return true;
-        return EXCLUSION_FILTER.matches(classname);
+        if (NativeInterceptorAgent.EXCLUSION_FILTER.matches(classname))
+            return true;
+        final ClassnameFilter inclusionFilter = NativeInterceptorAgent.INCLUSION_FILTER;
+        return inclusionFilter != null && !inclusionFilter.matches(classname);
+    }
+
+    /**
+     * Determine whether a class should be intercepted as it is loaded.
+     *
+     * @param classname
+     *            The class name, in internal form (e.g. java/lang/Throwable).
+     * @return Whether the class matches the eager filter and is not excluded.
+     */
+    static boolean isEager(final String classname)
+    {
+        final ClassnameFilter eagerFilter = NativeInterceptorAgent.EAGER_FILTER;
+        return eagerFilter != null && eagerFilter.matches(classname) && !NativeInterceptorAgent.isExcluded(classname);
+    }
+
+    /**
+     * Intercept the classes matching a filter as they are loaded, wrapping and intercepting their
+     * native methods in a single transformation (see {@link InterceptedAtLoad}). Their methods
+     * pass through to the native methods until a handler is registered, so that
+     * {@link NativeInterceptor} switches them on and off, or swaps handlers, by registering and
+     * unregistering handlers alone, without ever retransforming them. Like the dispatch mode,
+     * this only affects classes loaded after it is set, so it is normally set with the
+     * {@value #EAGER_OPTION} agent option.
+     *
+     * @param eagerFilter
+     *            The filter for the classes to intercept when they are loaded, or null for none.
+     */
+    public static void setEagerFilter(final ClassnameFilter eagerFilter)
+    {
+        NativeInterceptorAgent.EAGER_FILTER = eagerFilter;
+    }
+
+    /**
+     * Limit the classes transformed to those matching a filter, e.g. the packages of the classes
+     * that declare the native methods to intercept. Like the exclusion filter, this only affects
+     * classes loaded after it is set, so it is normally set with the {@value #INCLUDE_OPTION}
+     * agent option.
+     *
+     * @param inclusionFilter
+     *            The filter for the only classes to transform, or null to transform every class
+     *            that is not excluded.
+     */
+    public static void setInclusionFilter(final ClassnameFilter inclusionFilter)
+    {
+        NativeInterceptorAgent.INCLUSION_FILTER = inclusionFilter;
     }
 
     public static Instrumentation getInstrumentation()
@@ -160,6 +393,82 @@ public class NativeInterceptorAgent
         return NativeInterceptorAgent.INSTRUMENTATION;
     }
 
+    /**
+     * Getter for the strategy used to dispatch intercepted methods.
+     *
+     * @return The dispatch mode.
+     */
+    public static DispatchMode getDispatchMode()
+    {
+        return NativeInterceptorAgent.DISPATCH_MODE;
+    }
+
+    /**
+     * Set the strategy used to dispatch intercepted methods. This only affects classes
+     * transformed after it is called, so it should normally be called before any classes are
+     * intercepted.
+     *
+     * @param mode The dispatch mode.
+     * @throws IllegalArgumentException When the mode is null.
+     */
+    public static void setDispatchMode(final DispatchMode mode)
+    {
+        if (mode == null)
+            throw new IllegalArgumentException("Cannot set a null dispatch mode");
+        NativeInterceptorAgent.DISPATCH_MODE = mode;
+    }
+
+    /**
+     * Getter for whether intercepted methods pass through to the original native method.
+     *
+     * @return Whether passthrough is enabled.
+     * @see #setPassthrough(boolean)
+     */
+    public static boolean isPassthrough()
+    {
+        return NativeInterceptorAgent.PASSTHROUGH;
+    }
+
+    /**
+     * Set whether intercepted methods call the original native method when no handler is
+     * registered for the class, or the handler returns {@link NativeInvocationHandler#PROCEED}.
+     * Without passthrough, such calls throw {@link UnsatisfiedLinkError}. Like the dispatch mode,
+     * this only affects classes transformed after it is called.
+     *
+     * @param passthrough Whether to enable passthrough.
+     */
+    public static void setPassthrough(final boolean passthrough)
+    {
+        NativeInterceptorAgent.PASSTHROUGH = passthrough;
+    }
+
+    /**
+     * Cache transformed class bytes in a directory, so that later runs (or other VMs sharing the
+     * directory) do not transform the same classes again. Caching can also be enabled at startup
+     * with the {@value #CACHE_DIRECTORY_PROPERTY} and {@value #CACHE_SIZE_PROPERTY} system
+     * properties. Nothing is cached when the library was not loaded from a released jar, since
+     * its version is then unknown.
+     *
+     * @param directory The cache directory, or null to stop caching.
+     * @param maxSize The maximum size of the cache, in bytes. The least recently used classes are
+     *            evicted beyond this.
+     * @throws IllegalArgumentException When the directory cannot be created.
+     */
+    public static void setTransformCache(final File directory, final long maxSize)
+    {
+        NativeInterceptorAgent.TRANSFORM_CACHE = directory == null ? null : TransformCache.create(directory, maxSize);
+    }
+
+    /**
+     * Getter for the cache of transformed class bytes.
+     *
+     * @return The cache, or null when transformed classes are not cached.
+     */
+    static TransformCache getTransformCache()
+    {
+        return NativeInterceptorAgent.TRANSFORM_CACHE;
+    }
+
     /**
      * This method will attempt to attach the agent to a running VM. It will
      * also add a callback interface to allow clients to limit the scope of the
@@ -177,61 +486,19 @@ public class NativeInterceptorAgent
     }
 
     /**
-     * This method will attempt to attach the agent to a running VM.
+     * This method will attempt to attach the agent to the running VM. Only the current process is
+     * attached to, using the jar this library was loaded from. Nothing is done when the agent is
+     * already loaded, e.g. with -javaagent.
+     *
+     * @throws IllegalStateException When the agent cannot be attached.
      */
-    public static void enable()
-    {
-        // Technically, each VM could have a different separator. This might have to change,
-        // but until it becomes necessary, this is convenient.
-        final String separator = System.getProperty("path.separator");
-        try
-        {
-            List<VirtualMachineDescriptor> vms = VirtualMachine.list();
-            for (final VirtualMachineDescriptor vmd : vms)
-            {
-                final VirtualMachine vm = VirtualMachine.attach(vmd);
-                final String classPath = (String)vm.getSystemProperties().get("java.class.path");
-                for (final String classpathElement : classPath.split(separator))
-                {
-                    if (classpathElement != null && classpathElement.indexOf("native-interceptor") != -1)
-                    {
-                        vm.loadAgent(classpathElement);
-                        break;
-                    }
-                }
-            }
-        }
-        // TODO: better error handling...
-        catch (final IOException e)
-        {
-            throw new IllegalStateException("Error while attaching agent to running VM", e);
-        }
-        catch (final AttachNotSupportedException e)
-        {
-            throw new IllegalStateException("Error while attaching agent to running VM", e);
-        }
-        catch (final AgentInitializationException e)
-        {
-            throw new IllegalStateException("Error while attaching agent to running VM", e);
-        }
-        catch (final AgentLoadException e)
-        {
-            throw new IllegalStateException("Error while attaching agent to running VM", e);
-        }
-    }
-
-    private static class DefaultExclusionFilter implements ClassnameFilter
+    public static synchronized void enable()
     {
-        public boolean matches(String classname)
-        {
-            int idx = classname.indexOf('/');
-            if (idx == -1)
-                return NativeInterceptorAgent.EXCLUDED_PREFIXES.contains(classname);
-            if (NativeInterceptorAgent.EXCLUDED_PREFIXES.contains(classname.substring(0, idx)))
-                return true;
-            idx = classname.indexOf('/', idx + 1);
-            return idx == -1 ? false : NativeInterceptorAgent.EXCLUDED_PREFIXES.contains(classname.substring(0, idx));
-        }
+        if (NativeInterceptorAgent.INSTRUMENTATION != null)
+            return;
+        AgentAttacher.attach();
+        if (NativeInterceptorAgent.INSTRUMENTATION == null)
+            throw new IllegalStateException("Agent attached, but not initialized in this class loader");
     }
 
     private static class CompoundExclusionFilter implements ClassnameFilter
@@ -2,26 +2,189 @@ package org.synth.intercept;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class NativeInvocationHandler
 {
     private static final Object[] EMPTY_ARGS = new Object[] {};
-    private static final Map<Class<?>,InvocationHandler> HANDLERS = new HashMap<Class<?>,InvocationHandler>();
+
+    /**
+     * The value a handler returns to decline an invocation. For classes intercepted with
+     * passthrough enabled, the original native method is then called with the same arguments.
+     *
+     * @see NativeInterceptorAgent#setPassthrough(boolean)
+     */
+    public static final Object PROCEED = new Object() {
+        @Override
+        public String toString()
+        {
+            return "PROCEED";
+        }
+    };
+
+    /**
+     * The registered handlers. The registry is never modified once published: registration copies
+     * it, changes the copy and publishes that, so the dispatch path can read it without locking.
+     * Registration is rare compared to dispatch, so the cost of copying is paid where it matters
+     * least.
+     */
+    private static volatile Registry REGISTRY =
+        new Registry(Collections.<Class<?>,InvocationHandler>emptyMap());
+
+    /**
+     * The lock held while the registry is changed. This serializes writers, so that no change is
+     * lost and the methods of each class are relinked in the same order the registry changed.
+     */
+    private static final Object REGISTRY_LOCK = new Object();
 
     public static void registerHandler(final Class<?> type, final InvocationHandler handler)
     {
         if (type == null)
             return;
-        NativeInvocationHandler.HANDLERS.put(type, handler);
+        synchronized (NativeInvocationHandler.REGISTRY_LOCK)
+        {
+            final Map<Class<?>,InvocationHandler> handlers =
+                new HashMap<Class<?>,InvocationHandler>(NativeInvocationHandler.REGISTRY.handlers);
+            handlers.put(type, handler);
+            NativeInvocationHandler.REGISTRY = new Registry(handlers);
+            NativeMethodCache.invalidate(type);
+            NativeMethodCache.relink(type);
+        }
+    }
+
+    /**
+     * Register several handlers at once. The registry is copied once for the whole batch rather
+     * than once per class.
+     *
+     * @param handlers The handler for each class.
+     */
+    static void registerHandlers(final Map<Class<?>,InvocationHandler> handlers)
+    {
+        synchronized (NativeInvocationHandler.REGISTRY_LOCK)
+        {
+            final Map<Class<?>,InvocationHandler> updated =
+                new HashMap<Class<?>,InvocationHandler>(NativeInvocationHandler.REGISTRY.handlers);
+            updated.putAll(handlers);
+            NativeInvocationHandler.REGISTRY = new Registry(updated);
+            for (final Class<?> type : handlers.keySet())
+            {
+                NativeMethodCache.invalidate(type);
+                NativeMethodCache.relink(type);
+            }
+        }
     }
 
     public static void unregisterHandler(final Class<?> type)
     {
         if (type == null)
             return;
-        NativeInvocationHandler.HANDLERS.remove(type);
+        synchronized (NativeInvocationHandler.REGISTRY_LOCK)
+        {
+            if (!NativeInvocationHandler.REGISTRY.handlers.containsKey(type))
+                return;
+            final Map<Class<?>,InvocationHandler> handlers =
+                new HashMap<Class<?>,InvocationHandler>(NativeInvocationHandler.REGISTRY.handlers);
+            handlers.remove(type);
+            NativeInvocationHandler.REGISTRY = new Registry(handlers);
+            NativeMethodCache.invalidate(type);
+            NativeMethodCache.relink(type);
+        }
+    }
+
+    /**
+     * Get the {@link NativeMethod} for a method declared by the given class. This is the entry
+     * point for code generated in {@link DispatchMode#LINKED} mode.
+     *
+     * @param type The class that declares the method.
+     * @param name The method name.
+     * @param desc The method descriptor.
+     * @return The method, linked to the handler registered for the declaring class.
+     */
+    public static NativeMethod link(final Class<?> type, final String name, final String desc)
+    {
+        return NativeMethodCache.link(type, name, desc);
+    }
+
+    /**
+     * Dispatch an intercepted instance method to the handler registered for the runtime class of
+     * the instance. This is the entry point for code generated in {@link DispatchMode#STATIC} mode
+     * when the class holds its {@link NativeMethod} in a static field.
+     *
+     * @param instance The instance the method was invoked on.
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @return The value returned by the handler, checked against the return type of the method.
+     * @throws Throwable Whatever the handler throws.
+     */
+    public static Object handle(final Object instance, final NativeMethod method, final Object[] args) throws Throwable
+    {
+        if (instance == null)
+            throw new IllegalArgumentException("Invalid object instance (null) passed to invocation handler");
+        final InvocationHandler handler = method.findHandler(instance);
+        if (handler == null)
+            throw new UnsatisfiedLinkError(method.toString());
+        return method.checkReturn(handler.invoke(instance, method.getMethod(), args == null ? NativeInvocationHandler.EMPTY_ARGS : args));
+    }
+
+    /**
+     * Dispatch an intercepted static method to the handler registered for the declaring class.
+     *
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @return The value returned by the handler, checked against the return type of the method.
+     * @throws Throwable Whatever the handler throws.
+     * @see #handle(Object,NativeMethod,Object[])
+     */
+    public static Object handleStatic(final NativeMethod method, final Object[] args) throws Throwable
+    {
+        final Class<?> type = method.getDeclaringClass();
+        final InvocationHandler handler = method.findHandler();
+        if (handler == null)
+            throw new UnsatisfiedLinkError(method.toString());
+        return method.checkReturn(handler.invoke(type, method.getMethod(), args == null ? NativeInvocationHandler.EMPTY_ARGS : args));
+    }
+
+    /**
+     * Dispatch an intercepted instance method in the same way as
+     * {@link #handle(Object,NativeMethod,Object[])}, but return {@link #PROCEED} rather than
+     * throwing when there is no handler. This is the entry point for code generated in
+     * {@link DispatchMode#STATIC} mode with passthrough enabled.
+     *
+     * @param instance The instance the method was invoked on.
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @return The value returned by the handler, or {@link #PROCEED}.
+     * @throws Throwable Whatever the handler throws.
+     */
+    public static Object handleOrProceed(final Object instance, final NativeMethod method, final Object[] args) throws Throwable
+    {
+        final InvocationHandler handler = method.findHandler(instance);
+        if (handler == null)
+            return NativeInvocationHandler.PROCEED;
+        final Object value = handler.invoke(instance, method.getMethod(), args == null ? NativeInvocationHandler.EMPTY_ARGS : args);
+        return value == NativeInvocationHandler.PROCEED ? value : method.checkReturn(value);
+    }
+
+    /**
+     * Dispatch an intercepted static method, returning {@link #PROCEED} when there is no handler.
+     *
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @return The value returned by the handler, or {@link #PROCEED}.
+     * @throws Throwable Whatever the handler throws.
+     * @see #handleOrProceed(Object,NativeMethod,Object[])
+     */
+    public static Object handleStaticOrProceed(final NativeMethod method, final Object[] args) throws Throwable
+    {
+        final InvocationHandler handler = method.findHandler();
+        if (handler == null)
+            return NativeInvocationHandler.PROCEED;
+        final Object value = handler.invoke(method.getDeclaringClass(), method.getMethod(), args == null ? NativeInvocationHandler.EMPTY_ARGS : args);
+        return value == NativeInvocationHandler.PROCEED ? value : method.checkReturn(value);
     }
 
     public static <T> T handleObject(final Object instance, final Class<T> returnType, final String name, final Class<?>[] argTypes, final Object[] args) throws Throwable
@@ -32,12 +195,15 @@ public class NativeInvocationHandler
             throw new IllegalArgumentException("Invalid return type (null) passed to invocation handler");
         if (name == null)
             throw new IllegalArgumentException("Invalid method name (null) passed to invocation handler");
-        final Method method =
-            NativeInvocationHandler.findMethod(instance.getClass(), name, argTypes);
-        final InvocationHandler handler = NativeInvocationHandler.HANDLERS.get(instance.getClass());
+        final NativeMethod nativeMethod = NativeMethodCache.find(instance.getClass(), name, argTypes);
+        final InvocationHandler handler = nativeMethod.findHandler(instance);
         if (handler == null)
-            throw new UnsatisfiedLinkError(method.toString());
-        return NativeInvocationHandler.typeCheck(returnType, handler.invoke(instance, method, args == null ? NativeInvocationHandler.EMPTY_ARGS : args));
+            throw new UnsatisfiedLinkError(nativeMethod.toString());
+        final Object value = handler.invoke(instance, nativeMethod.getMethod(), args == null ? NativeInvocationHandler.EMPTY_ARGS : args);
+        // this entry point is only generated without passthrough, so there is nothing to proceed to
+        if (value == NativeInvocationHandler.PROCEED)
+            throw new UnsatisfiedLinkError(nativeMethod.toString());
+        return NativeInvocationHandler.typeCheck(returnType, value);
     }
 
     public static <T> T handleStaticObject(final Class<?> type, final Class<T> returnType, final String name, final Class<?>[] argTypes, final Object[] args) throws Throwable
@@ -48,11 +214,15 @@ public class NativeInvocationHandler
             throw new IllegalArgumentException("Invalid return type (null) passed to invocation handler");
         if (name == null)
             throw new IllegalArgumentException("Invalid method name (null) passed to invocation handler");
-        final Method method = NativeInvocationHandler.findMethod(type, name, argTypes);
-        final InvocationHandler handler = NativeInvocationHandler.HANDLERS.get(type);
+        final NativeMethod nativeMethod = NativeMethodCache.find(type, name, argTypes);
+        final InvocationHandler handler = nativeMethod.findHandler(type);
         if (handler == null)
-            throw new UnsatisfiedLinkError(method.toString());
-        return NativeInvocationHandler.typeCheck(returnType, handler.invoke(type, method, args == null ? NativeInvocationHandler.EMPTY_ARGS : args));
+            throw new UnsatisfiedLinkError(nativeMethod.toString());
+        final Object value = handler.invoke(type, nativeMethod.getMethod(), args == null ? NativeInvocationHandler.EMPTY_ARGS : args);
+        // this entry point is only generated without passthrough, so there is nothing to proceed to
+        if (value == NativeInvocationHandler.PROCEED)
+            throw new UnsatisfiedLinkError(nativeMethod.toString());
+        return NativeInvocationHandler.typeCheck(returnType, value);
     }
 
     public static boolean handleBoolean(final Object instance, final String name, final Class<?>[] argTypes, final Object[] args) throws Throwable
@@ -145,8 +315,33 @@ public class NativeInvocationHandler
         NativeInvocationHandler.handleStaticObject(type, void.class, name, argTypes, args);
     }
 
+    /**
+     * Get the handler for the given class. This is the handler registered for the class itself, or
+     * failing that, for its nearest superclass with a registered handler, so that instances of
+     * subclasses are handled without registering a handler for every subclass. The result is
+     * cached per class, so after the first lookup this does not walk the hierarchy.
+     *
+     * @param type The class declaring a static method or the runtime class of a receiver.
+     * @return The handler, or null when no handler is registered for the class or its superclasses.
+     */
+    static InvocationHandler getHandler(final Class<?> type)
+    {
+        return NativeInvocationHandler.REGISTRY.get(type);
+    }
+
+    /**
+     * Get the handler registered for exactly the given class, ignoring its superclasses.
+     *
+     * @param type The class.
+     * @return The registered handler, or null.
+     */
+    static InvocationHandler getRegisteredHandler(final Class<?> type)
+    {
+        return NativeInvocationHandler.REGISTRY.handlers.get(type);
+    }
+
     @SuppressWarnings("unchecked")
-    private static final <T> T typeCheck(final Class<T> type, final Object o)
+    static final <T> T typeCheck(final Class<T> type, final Object o)
     {
         if (type == null)
             throw new IllegalArgumentException("Cannot type check null type");
@@ -181,29 +376,57 @@ public class NativeInvocationHandler
         return (T)o;
     }
 
-    private static final Method findMethod(final Class<?> type, final String name, final Class<?>[] argTypes)
+    /**
+     * A snapshot of the registered handlers, together with the handlers resolved from it for each
+     * class that has been looked up. The resolved handlers are discarded along with the snapshot
+     * when the registry changes, so they can never be stale.
+     */
+    private static final class Registry
     {
-        Class<?> search = type;
-        IllegalStateException ex = null;
-        while (search != null && !NativeInterceptorAgent.isExcluded(search.getName().replace('.', '/')))
-        {
-            try
-            {
-                if (search.getAnnotation(HasInterceptedNatives.class) != null)
-                    return search.getDeclaredMethod(name, argTypes);
-            }
-            catch (final SecurityException e)
+        /**
+         * Stands in for the absence of a handler in {@link #resolved}, which cannot hold nulls.
+         */
+        private static final InvocationHandler NONE = new InvocationHandler() {
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
             {
-                if (ex == null)
-                    ex = new IllegalStateException("Security exception thrown while determining proxied native method", e);
+                throw new UnsatisfiedLinkError(method.toString());
             }
-            catch (final NoSuchMethodException e)
+        };
+
+        /**
+         * The handlers registered for each class.
+         */
+        final Map<Class<?>,InvocationHandler> handlers;
+
+        /**
+         * The handler resolved for each class looked up, or {@link #NONE}.
+         */
+        private final ConcurrentMap<Class<?>,InvocationHandler> resolved =
+            new ConcurrentHashMap<Class<?>,InvocationHandler>();
+
+        Registry(final Map<Class<?>,InvocationHandler> handlers)
+        {
+            this.handlers = handlers;
+        }
+
+        InvocationHandler get(final Class<?> type)
+        {
+            InvocationHandler handler = this.resolved.get(type);
+            if (handler == null)
             {
-                if (ex == null)
-                    ex = new IllegalStateException("Attempt to intercept non-existent native method", e);
+                handler = Registry.NONE;
+                for (Class<?> search = type; search != null; search = search.getSuperclass())
+                {
+                    final InvocationHandler registered = this.handlers.get(search);
+                    if (registered != null)
+                    {
+                        handler = registered;
+                        break;
+                    }
+                }
+                this.resolved.putIfAbsent(type, handler);
             }
-            search = search.getSuperclass();
+            return handler == Registry.NONE ? null : handler;
         }
-        throw ex == null ? new IllegalStateException("Unable to determine native method") : ex;
     }
-}
\ No newline at end of file
+}
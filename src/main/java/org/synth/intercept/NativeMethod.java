@@ -0,0 +1,557 @@
+package org.synth.intercept;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+import org.objectweb.asm.Type;
+
+/**
+ * The resolved metadata for a method that was originally native and has been intercepted. Instances
+ * are created once per declared method by the {@link NativeMethodCache} so that the dispatch path in
+ * {@link NativeInvocationHandler} does not need to reflect on the declaring class for every call.
+ *
+ * Each instance is also linked to the {@link InvocationHandler} registered for its declaring class,
+ * which allows code generated in {@link DispatchMode#LINKED} mode to invoke the handler without
+ * consulting the registry.
+ */
+public final class NativeMethod
+{
+    /**
+     * The receiver classes linked before any subclass receiver is seen.
+     */
+    private static final Receiver[] NO_RECEIVERS = new Receiver[0];
+
+    /**
+     * The class that declares the method.
+     */
+    private final Class<?> type;
+
+    /**
+     * The name of the method.
+     */
+    private final String name;
+
+    /**
+     * The method descriptor (e.g. (ILjava/lang/String;)V), interned so that it can be compared
+     * by identity with the descriptor constants in generated code.
+     */
+    private final String desc;
+
+    /**
+     * The types of the parameters for the method.
+     */
+    private final Class<?>[] argTypes;
+
+    /**
+     * The return type of the method.
+     */
+    private final Class<?> returnType;
+
+    /**
+     * The reflected method passed to the registered handlers.
+     */
+    private final Method method;
+
+    /**
+     * The handler for the declaring class, or null when there is none. This is the handler
+     * registered for the declaring class or its nearest superclass with a handler, and is updated
+     * by {@link NativeMethodCache} whenever the registry changes.
+     */
+    private volatile InvocationHandler handler;
+
+    /**
+     * The handler registered for the declaring class, adapted for {@link DispatchMode#PRIMITIVE}
+     * dispatch, or null when there is none.
+     */
+    private volatile PrimitiveInvocationHandler primitiveHandler;
+
+    /**
+     * The metrics recording the invocations of this method, or null when it is not metered. The
+     * linked handlers are decorated to record into these metrics.
+     *
+     * @see NativeMethodMetrics
+     */
+    private volatile InvocationMetrics metrics;
+
+    /**
+     * The policy governing the invocations of this method, or null when there is none. The linked
+     * handlers are decorated to make their invocations under this policy.
+     *
+     * @see NativeInterceptor#constrain(Class,ConcurrencyPolicy)
+     */
+    private volatile ConcurrencyPolicy policy;
+
+    /**
+     * The handlers linked for receivers whose class is a subclass of the declaring class, which
+     * may have handlers of their own. A subclass is added by replacing the array the first time
+     * it is seen, and the handlers are linked again whenever this method is relinked, so that
+     * dispatching on a subclass receiver neither consults the registry nor decorates a handler.
+     */
+    private volatile Receiver[] receivers = NativeMethod.NO_RECEIVERS;
+
+    /**
+     * The original native method, once it has been looked up by
+     * {@link #invokeNative(Object,Object[])}.
+     */
+    private volatile Method nativeMethod;
+
+    /**
+     * Create a new {@link NativeMethod} from the reflected method.
+     *
+     * @param method The reflected method that was originally native.
+     */
+    NativeMethod(final Method method)
+    {
+        this.type = method.getDeclaringClass();
+        this.name = method.getName();
+        this.desc = Type.getMethodDescriptor(method).intern();
+        this.argTypes = method.getParameterTypes();
+        this.returnType = method.getReturnType();
+        this.method = method;
+    }
+
+    /**
+     * Getter for the class that declares the method.
+     *
+     * @return The declaring class.
+     */
+    public Class<?> getDeclaringClass()
+    {
+        return this.type;
+    }
+
+    /**
+     * Getter for the name of the method.
+     *
+     * @return The method name.
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * Getter for the reflected method. The same instance is returned on every call.
+     *
+     * @return The reflected method.
+     */
+    public Method getMethod()
+    {
+        return this.method;
+    }
+
+    /**
+     * Call the original native method that this method wraps, e.g. to compute a value a handler
+     * does not have. The native method is called reflectively, so this is much slower than the
+     * intercepted method declining the invocation, but the handler gets the value returned.
+     *
+     * @param proxy The instance the method was invoked on, or the declaring class for static
+     *            methods, as passed to the handler.
+     * @param args The arguments, boxed.
+     * @return The value returned by the native method, boxed for primitive return types.
+     * @throws Throwable Whatever the native method throws.
+     */
+    public Object invokeNative(final Object proxy, final Object[] args) throws Throwable
+    {
+        Method nativeMethod = this.nativeMethod;
+        if (nativeMethod == null)
+        {
+            nativeMethod = this.type.getDeclaredMethod(Constants.NATIVE_METHOD_PREFIX + this.name, this.argTypes);
+            nativeMethod.setAccessible(true);
+            this.nativeMethod = nativeMethod;
+        }
+        try
+        {
+            return nativeMethod.invoke(Modifier.isStatic(this.method.getModifiers()) ? null : proxy, args);
+        }
+        catch (final InvocationTargetException e)
+        {
+            throw e.getTargetException();
+        }
+    }
+
+    /**
+     * Get the handler to invoke for a static method.
+     *
+     * @return The handler registered for the declaring class.
+     * @throws UnsatisfiedLinkError When no handler is registered.
+     */
+    public InvocationHandler handler()
+    {
+        return this.checkHandler(this.handler);
+    }
+
+    /**
+     * Get the handler to invoke for an instance method. When the receiver is an instance of the
+     * declaring class, the linked handler is used. Otherwise the handler is looked up by the
+     * runtime class of the receiver, in the same way as {@link DispatchMode#STATIC} dispatch.
+     *
+     * @param receiver The instance the method was invoked on.
+     * @return The handler registered for the class of the receiver.
+     * @throws UnsatisfiedLinkError When no handler is registered.
+     */
+    public InvocationHandler handler(final Object receiver)
+    {
+        return this.checkHandler(this.findHandler(receiver));
+    }
+
+    /**
+     * Get the handler to invoke for a static method in {@link DispatchMode#PRIMITIVE} mode.
+     *
+     * @return The handler registered for the declaring class.
+     * @throws UnsatisfiedLinkError When no handler is registered.
+     */
+    public PrimitiveInvocationHandler primitiveHandler()
+    {
+        return this.checkHandler(this.primitiveHandler);
+    }
+
+    /**
+     * Get the handler to invoke for an instance method in {@link DispatchMode#PRIMITIVE} mode.
+     *
+     * @param receiver The instance the method was invoked on.
+     * @return The handler registered for the class of the receiver.
+     * @throws UnsatisfiedLinkError When no handler is registered.
+     * @see #handler(Object)
+     */
+    public PrimitiveInvocationHandler primitiveHandler(final Object receiver)
+    {
+        return this.checkHandler(this.findPrimitiveHandler(receiver));
+    }
+
+    /**
+     * Get the handler to invoke for a static method, if there is one. This is used instead of
+     * {@link #handler()} by code generated with passthrough enabled.
+     *
+     * @return The handler registered for the declaring class, or null.
+     */
+    public InvocationHandler findHandler()
+    {
+        return this.handler;
+    }
+
+    /**
+     * Get the handler to invoke for an instance method, if there is one.
+     *
+     * @param receiver The instance the method was invoked on.
+     * @return The handler registered for the class of the receiver, or null.
+     * @see #handler(Object)
+     */
+    public InvocationHandler findHandler(final Object receiver)
+    {
+        return this.findHandler(receiver.getClass());
+    }
+
+    /**
+     * Get the handler to invoke for the method as seen from the given class, if there is one.
+     *
+     * @param type The class of the receiver, or the class used to look up a static method.
+     * @return The handler registered for the class, or null.
+     */
+    InvocationHandler findHandler(final Class<?> type)
+    {
+        return type == this.type ? this.handler : this.receiver(type).handler;
+    }
+
+    /**
+     * Get the handler to invoke for a static method in {@link DispatchMode#PRIMITIVE} mode, if
+     * there is one.
+     *
+     * @return The handler registered for the declaring class, or null.
+     */
+    public PrimitiveInvocationHandler findPrimitiveHandler()
+    {
+        return this.primitiveHandler;
+    }
+
+    /**
+     * Get the handler to invoke for an instance method in {@link DispatchMode#PRIMITIVE} mode, if
+     * there is one.
+     *
+     * @param receiver The instance the method was invoked on.
+     * @return The handler registered for the class of the receiver, or null.
+     */
+    public PrimitiveInvocationHandler findPrimitiveHandler(final Object receiver)
+    {
+        final Class<?> type = receiver.getClass();
+        return type == this.type ? this.primitiveHandler : this.receiver(type).primitiveHandler;
+    }
+
+    /**
+     * Determine whether a static method has a handler. For a method of a class that has been
+     * linked, this is a single volatile read.
+     *
+     * @return Whether a handler is registered for the declaring class.
+     */
+    public boolean isHandled()
+    {
+        return this.handler != null;
+    }
+
+    /**
+     * Determine whether an instance method has a handler for the given receiver.
+     *
+     * @param receiver The instance the method was invoked on.
+     * @return Whether a handler is registered for the class of the receiver.
+     */
+    public boolean isHandled(final Object receiver)
+    {
+        return this.findHandler(receiver) != null;
+    }
+
+    /**
+     * Check that the value returned by a handler is valid for the return type of this method.
+     * Code generated with passthrough enabled handles {@link NativeInvocationHandler#PROCEED}
+     * before checking the value; without passthrough there is no native method to proceed to.
+     *
+     * @param value The value returned by the handler.
+     * @return The value.
+     * @throws IllegalStateException When the value cannot be returned by this method.
+     * @throws UnsatisfiedLinkError When the handler returned {@link NativeInvocationHandler#PROCEED}.
+     */
+    public Object checkReturn(final Object value)
+    {
+        if (value == NativeInvocationHandler.PROCEED)
+            throw new UnsatisfiedLinkError(this.method.toString());
+        return NativeInvocationHandler.typeCheck(this.returnType, value);
+    }
+
+    /**
+     * Throw an {@link UnsatisfiedLinkError} when there is no handler.
+     */
+    private <T> T checkHandler(final T handler)
+    {
+        if (handler == null)
+            throw new UnsatisfiedLinkError(this.method.toString());
+        return handler;
+    }
+
+    /**
+     * Link this method to the handler registered for the declaring class. When the method is
+     * governed by a concurrency policy, the handler is decorated to make its invocations under the
+     * policy, and when the method is metered, or handler dispatch events are published, to record
+     * its invocations.
+     *
+     * @param handler The handler, or null when none is registered.
+     */
+    void link(final InvocationHandler handler)
+    {
+        this.handler = this.decorate(handler, this.metrics);
+        this.primitiveHandler = this.decorate(PrimitiveInvocationHandler.adapt(handler), this.metrics);
+        this.linkReceivers();
+    }
+
+    /**
+     * Link the subclass receivers seen so far to the handlers now resolved for them. Must be
+     * called while holding the lock of {@link NativeMethodCache}.
+     */
+    void linkReceivers()
+    {
+        final Receiver[] receivers = this.receivers;
+        final Receiver[] linked = new Receiver[receivers.length];
+        for (int i = 0; i < receivers.length; i++)
+            linked[i] = this.linkReceiver(receivers[i].type, receivers[i].metrics);
+        this.receivers = linked;
+    }
+
+    /**
+     * Get the handlers linked for a subclass receiver, linking them the first time the subclass is
+     * seen. This is used on the dispatch path, so once linked it does not allocate.
+     */
+    private Receiver receiver(final Class<?> type)
+    {
+        for (final Receiver receiver : this.receivers)
+            if (receiver.type == type)
+                return receiver;
+        return NativeMethodCache.linkReceiver(this, type);
+    }
+
+    /**
+     * Add a subclass receiver, unless another thread added it first. Must be called while holding
+     * the lock of {@link NativeMethodCache}.
+     *
+     * @param type The class of the receiver.
+     * @return The handlers linked for the receiver.
+     */
+    Receiver addReceiver(final Class<?> type)
+    {
+        final Receiver[] receivers = this.receivers;
+        for (final Receiver receiver : receivers)
+            if (receiver.type == type)
+                return receiver;
+        final Receiver receiver = this.linkReceiver(type, null);
+        final Receiver[] added = Arrays.copyOf(receivers, receivers.length + 1);
+        added[receivers.length] = receiver;
+        this.receivers = added;
+        return receiver;
+    }
+
+    /**
+     * Link a subclass receiver to the handler registered for its class. Invocations on instances
+     * of a metered subclass are recorded in metrics of their own, kept while the subclass stays
+     * metered, rather than in the metrics of the declaring class.
+     */
+    private Receiver linkReceiver(final Class<?> type, final InvocationMetrics previous)
+    {
+        final InvocationMetrics metrics =
+            !NativeMethodMetrics.isEnabled(type) ? null : previous != null ? previous : new InvocationMetrics();
+        final InvocationHandler handler = NativeInvocationHandler.getHandler(type);
+        return new Receiver(type, this.decorate(handler, metrics), this.decorate(PrimitiveInvocationHandler.adapt(handler), metrics), metrics);
+    }
+
+    /**
+     * Decorate a handler for this method with its concurrency policy, metrics and events. The
+     * metrics include the time spent waiting for the policy.
+     *
+     * @param handler The handler, or null.
+     * @param metrics The metrics to record into, or null.
+     * @return The decorated handler.
+     */
+    private InvocationHandler decorate(final InvocationHandler handler, final InvocationMetrics metrics)
+    {
+        return NativeEvents.trace(InvocationMetrics.meter(ConcurrencyPolicy.constrain(handler, this.policy, this), metrics), this);
+    }
+
+    /**
+     * Decorate a handler for {@link DispatchMode#PRIMITIVE} dispatch to this method with its
+     * concurrency policy, metrics and events.
+     *
+     * @param handler The handler, or null.
+     * @param metrics The metrics to record into, or null.
+     * @return The decorated handler.
+     */
+    private PrimitiveInvocationHandler decorate(final PrimitiveInvocationHandler handler, final InvocationMetrics metrics)
+    {
+        return NativeEvents.trace(InvocationMetrics.meter(ConcurrencyPolicy.constrain(handler, this.policy), metrics), this);
+    }
+
+    /**
+     * Getter for the metrics recording the invocations of this method on instances of a metered
+     * subclass.
+     *
+     * @param type The subclass.
+     * @return The metrics, or null when none have been recorded.
+     */
+    InvocationMetrics getMetrics(final Class<?> type)
+    {
+        for (final Receiver receiver : this.receivers)
+            if (receiver.type == type)
+                return receiver.metrics;
+        return null;
+    }
+
+    /**
+     * Getter for the metrics recording the invocations of this method.
+     *
+     * @return The metrics, or null when the method is not metered.
+     */
+    InvocationMetrics getMetrics()
+    {
+        return this.metrics;
+    }
+
+    /**
+     * Setter for the metrics recording the invocations of this method. The method must be
+     * relinked for the change to take effect.
+     *
+     * @param metrics The metrics, or null to stop metering the method.
+     */
+    void setMetrics(final InvocationMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Getter for the policy governing the invocations of this method.
+     *
+     * @return The policy, or null when there is none.
+     */
+    ConcurrencyPolicy getPolicy()
+    {
+        return this.policy;
+    }
+
+    /**
+     * Setter for the policy governing the invocations of this method. The method must be relinked
+     * for the change to take effect.
+     *
+     * @param policy The policy, or null to stop governing the method.
+     */
+    void setPolicy(final ConcurrencyPolicy policy)
+    {
+        this.policy = policy;
+    }
+
+    /**
+     * Getter for the parameter types, without copying them.
+     *
+     * @return The parameter types.
+     */
+    Class<?>[] getArgTypes()
+    {
+        return this.argTypes;
+    }
+
+    /**
+     * Determine whether this method has the supplied name and descriptor. Both are normally
+     * constants from generated code, so this is usually an identity comparison.
+     *
+     * @param name The method name.
+     * @param desc The method descriptor.
+     * @return Whether the name and descriptor match.
+     */
+    boolean matches(final String name, final String desc)
+    {
+        return (this.name == name || this.name.equals(name)) && (this.desc == desc || this.desc.equals(desc));
+    }
+
+    /**
+     * Determine whether this method has the supplied name and parameter types. This is used on the
+     * dispatch path, so it must not allocate.
+     *
+     * @param name The method name.
+     * @param argTypes The parameter types, or null when there are none.
+     * @return Whether the name and parameter types match.
+     */
+    boolean matches(final String name, final Class<?>[] argTypes)
+    {
+        if (this.name != name && !this.name.equals(name))
+            return false;
+        final int length = argTypes == null ? 0 : argTypes.length;
+        if (this.argTypes.length != length)
+            return false;
+        for (int i = 0; i < length; i++)
+            if (this.argTypes[i] != argTypes[i])
+                return false;
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.method.toString();
+    }
+
+    /**
+     * The handlers linked for receivers of a subclass of the declaring class.
+     */
+    static final class Receiver
+    {
+        final Class<?> type;
+        final InvocationHandler handler;
+        final PrimitiveInvocationHandler primitiveHandler;
+        final InvocationMetrics metrics;
+
+        Receiver(final Class<?> type, final InvocationHandler handler, final PrimitiveInvocationHandler primitiveHandler,
+                 final InvocationMetrics metrics)
+        {
+            this.type = type;
+            this.handler = handler;
+            this.primitiveHandler = primitiveHandler;
+            this.metrics = metrics;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package org.synth.intercept;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A cache of the {@link NativeMethod} instances resolved for intercepted classes. Resolving an
+ * intercepted method requires walking the class hierarchy and reflecting on each class, which
+ * costs more than most of the native methods being intercepted. This cache allows the dispatch
+ * path to look up a previously resolved method without reflection, allocation or exceptions.
+ *
+ * The cache is filled when a handler is registered through {@link NativeInterceptor} and lazily on
+ * a miss. Each lookup class maps to an immutable array of methods that is replaced wholesale when
+ * it changes, so readers never need to lock.
+ *
+ * This class also keeps each declared method linked to the handler registered for its declaring
+ * class. Linking is rare, so it is serialized on {@link #LINK_LOCK}.
+ */
+final class NativeMethodCache
+{
+    /**
+     * An empty table used when a class declares no intercepted methods.
+     */
+    private static final NativeMethod[] EMPTY = new NativeMethod[0];
+
+    /**
+     * The methods declared directly by each intercepted class. There is exactly one
+     * {@link NativeMethod} instance per declared method.
+     */
+    private static final ConcurrentMap<Class<?>,NativeMethod[]> DECLARED =
+        new ConcurrentHashMap<Class<?>,NativeMethod[]>();
+
+    /**
+     * The methods resolved for each class used to look up an intercepted method. This includes
+     * methods inherited from intercepted superclasses, since instance methods are looked up using
+     * the runtime class of the receiver.
+     */
+    private static final ConcurrentMap<Class<?>,NativeMethod[]> RESOLVED =
+        new ConcurrentHashMap<Class<?>,NativeMethod[]>();
+
+    /**
+     * The lock held while linking methods to handlers. This prevents a method that is being
+     * declared from being linked to a stale handler while the registry changes.
+     */
+    private static final Object LINK_LOCK = new Object();
+
+    private NativeMethodCache()
+    {
+    }
+
+    /**
+     * Find the intercepted method with the given name and parameter types, as seen from the given
+     * class. Once a method has been resolved, this will not reflect, allocate or throw.
+     *
+     * @param type The class used to look up the method (e.g. the runtime class of the receiver).
+     * @param name The method name.
+     * @param argTypes The parameter types of the method.
+     * @return The resolved method.
+     * @throws IllegalStateException When no intercepted method can be found.
+     */
+    static NativeMethod find(final Class<?> type, final String name, final Class<?>[] argTypes)
+    {
+        final NativeMethod[] methods = NativeMethodCache.RESOLVED.get(type);
+        if (methods != null)
+            for (final NativeMethod method : methods)
+                if (method.matches(name, argTypes))
+                    return method;
+        return NativeMethodCache.resolve(type, name, argTypes);
+    }
+
+    /**
+     * Find the intercepted method declared by the given class with the given name and descriptor.
+     * Once the methods of the class have been declared, this will not reflect, allocate or throw.
+     *
+     * @param type The class that declares the method.
+     * @param name The method name.
+     * @param desc The method descriptor.
+     * @return The declared method.
+     * @throws IllegalStateException When the class does not declare the method.
+     */
+    static NativeMethod link(final Class<?> type, final String name, final String desc)
+    {
+        for (final NativeMethod method : NativeMethodCache.declared(type))
+            if (method.matches(name, desc))
+                return method;
+        throw new IllegalStateException("Attempt to intercept non-existent native method " + type.getName() + "." + name + desc);
+    }
+
+    /**
+     * Find the intercepted method for a reflected method. The reflected methods passed to handlers
+     * are those held by the {@link NativeMethod} instances, so this is normally an identity match.
+     *
+     * @param method The reflected method.
+     * @return The intercepted method.
+     * @throws IllegalStateException When the method is not an intercepted method.
+     */
+    static NativeMethod forMethod(final Method method)
+    {
+        final NativeMethod[] methods = NativeMethodCache.declared(method.getDeclaringClass());
+        for (final NativeMethod nativeMethod : methods)
+            if (nativeMethod.getMethod() == method)
+                return nativeMethod;
+        for (final NativeMethod nativeMethod : methods)
+            if (nativeMethod.getMethod().equals(method))
+                return nativeMethod;
+        throw new IllegalStateException("Attempt to intercept non-existent native method " + method);
+    }
+
+    /**
+     * Link the methods declared by the given class and its subclasses to the handlers now resolved
+     * for them, since a subclass without a handler of its own uses the handler of the class.
+     *
+     * @param type The class whose registration changed.
+     */
+    static void relink(final Class<?> type)
+    {
+        synchronized (NativeMethodCache.LINK_LOCK)
+        {
+            for (final Map.Entry<Class<?>,NativeMethod[]> entry : NativeMethodCache.DECLARED.entrySet())
+                if (type.isAssignableFrom(entry.getKey()))
+                {
+                    final InvocationHandler handler = NativeInvocationHandler.getHandler(entry.getKey());
+                    for (final NativeMethod method : entry.getValue())
+                        method.link(handler);
+                }
+                else if (entry.getKey().isAssignableFrom(type))
+                    // the methods of superclasses may be linked for receivers of the class
+                    for (final NativeMethod method : entry.getValue())
+                        method.linkReceivers();
+        }
+    }
+
+    /**
+     * Link a method for receivers of a subclass of its declaring class, the first time such a
+     * receiver is seen.
+     *
+     * @param method The method.
+     * @param type The class of the receiver.
+     * @return The handlers linked for the receiver.
+     */
+    static NativeMethod.Receiver linkReceiver(final NativeMethod method, final Class<?> type)
+    {
+        synchronized (NativeMethodCache.LINK_LOCK)
+        {
+            return method.addReceiver(type);
+        }
+    }
+
+    /**
+     * Start or stop metering the methods declared by the given class, and relink them so that
+     * their handlers record their invocations, or stop recording them.
+     *
+     * @param type The class.
+     * @param metered Whether to meter the methods.
+     * @return The methods declared by the class.
+     */
+    static NativeMethod[] meter(final Class<?> type, final boolean metered)
+    {
+        final NativeMethod[] methods = NativeMethodCache.declared(type);
+        synchronized (NativeMethodCache.LINK_LOCK)
+        {
+            for (final NativeMethod method : methods)
+            {
+                if (!metered)
+                    method.setMetrics(null);
+                else if (method.getMetrics() == null)
+                    method.setMetrics(new InvocationMetrics());
+            }
+            NativeMethodCache.relink(type);
+        }
+        return methods;
+    }
+
+    /**
+     * Apply a concurrency policy to methods declared by the given class, and relink them so that
+     * their handlers make their invocations under it.
+     *
+     * @param type The class.
+     * @param method The method to apply the policy to, or null to apply it to every method.
+     * @param policy The policy, or null to remove the policy.
+     * @throws IllegalArgumentException When the class declares no such intercepted method.
+     */
+    static void constrain(final Class<?> type, final Method method, final ConcurrencyPolicy policy)
+    {
+        final NativeMethod[] methods = NativeMethodCache.declared(type);
+        synchronized (NativeMethodCache.LINK_LOCK)
+        {
+            boolean found = false;
+            for (final NativeMethod declared : methods)
+                if (method == null || declared.getMethod().equals(method))
+                {
+                    declared.setPolicy(policy);
+                    found = true;
+                }
+            if (!found)
+                throw new IllegalArgumentException("No intercepted native method " + (method == null ? type.getName() : method.toString()));
+            NativeMethodCache.relink(type);
+        }
+    }
+
+    /**
+     * Get the classes whose declared methods have been looked up.
+     *
+     * @return The classes.
+     */
+    static Class<?>[] declaredClasses()
+    {
+        return NativeMethodCache.DECLARED.keySet().toArray(new Class<?>[0]);
+    }
+
+    /**
+     * Fill the cache with all the intercepted methods visible from the given class. This is called
+     * when a handler is registered so that the first intercepted call does not pay for resolution.
+     *
+     * @param type The intercepted class.
+     */
+    static void populate(final Class<?> type)
+    {
+        final List<NativeMethod> methods = new ArrayList<NativeMethod>();
+        Class<?> search = type;
+        while (search != null && !NativeInterceptorAgent.isExcluded(search.getName().replace('.', '/')))
+        {
+            if (search.getAnnotation(HasInterceptedNatives.class) != null)
+                for (final NativeMethod declared : NativeMethodCache.declared(search))
+                    if (!NativeMethodCache.contains(methods, declared))
+                        methods.add(declared);
+            search = search.getSuperclass();
+        }
+        NativeMethodCache.RESOLVED.put(type, methods.toArray(new NativeMethod[methods.size()]));
+    }
+
+    /**
+     * Discard any resolved methods that were looked up through, or declared by, the given class.
+     * The methods will be resolved again on the next lookup.
+     *
+     * @param type The class whose registration changed.
+     */
+    static void invalidate(final Class<?> type)
+    {
+        NativeMethodCache.RESOLVED.remove(type);
+        for (final Map.Entry<Class<?>,NativeMethod[]> entry : NativeMethodCache.RESOLVED.entrySet())
+            for (final NativeMethod method : entry.getValue())
+                if (method.getDeclaringClass() == type)
+                {
+                    NativeMethodCache.RESOLVED.remove(entry.getKey(), entry.getValue());
+                    break;
+                }
+    }
+
+    /**
+     * The slow path for {@link #find(Class,String,Class[])}. This walks the class hierarchy in the
+     * same way the original reflective lookup did, and records the result for the next lookup.
+     */
+    private static NativeMethod resolve(final Class<?> type, final String name, final Class<?>[] argTypes)
+    {
+        Class<?> search = type;
+        while (search != null && !NativeInterceptorAgent.isExcluded(search.getName().replace('.', '/')))
+        {
+            if (search.getAnnotation(HasInterceptedNatives.class) != null)
+                for (final NativeMethod method : NativeMethodCache.declared(search))
+                    if (method.matches(name, argTypes))
+                    {
+                        NativeMethodCache.add(type, method);
+                        return method;
+                    }
+            search = search.getSuperclass();
+        }
+        throw new IllegalStateException("Attempt to intercept non-existent native method " + type.getName() + "." + name);
+    }
+
+    /**
+     * Get the methods that were originally native declared directly by the given class.
+     *
+     * @param type The class.
+     * @return The methods, linked to the handler registered for the class.
+     */
+    static NativeMethod[] declared(final Class<?> type)
+    {
+        NativeMethod[] methods = NativeMethodCache.DECLARED.get(type);
+        if (methods != null)
+            return methods;
+        final List<NativeMethod> found = new ArrayList<NativeMethod>();
+        try
+        {
+            for (final Method method : type.getDeclaredMethods())
+                if (method.getAnnotation(WasNative.class) != null)
+                    found.add(new NativeMethod(method));
+        }
+        catch (final SecurityException e)
+        {
+            throw new IllegalStateException("Security exception thrown while determining proxied native method", e);
+        }
+        methods = found.isEmpty() ? NativeMethodCache.EMPTY : found.toArray(new NativeMethod[found.size()]);
+        synchronized (NativeMethodCache.LINK_LOCK)
+        {
+            final NativeMethod[] existing = NativeMethodCache.DECLARED.putIfAbsent(type, methods);
+            if (existing != null)
+                return existing;
+            final InvocationHandler handler = NativeInvocationHandler.getHandler(type);
+            for (final NativeMethod method : methods)
+                method.link(handler);
+            return methods;
+        }
+    }
+
+    /**
+     * Add a resolved method to the table for the given lookup class.
+     */
+    private static void add(final Class<?> type, final NativeMethod method)
+    {
+        while (true)
+        {
+            final NativeMethod[] methods = NativeMethodCache.RESOLVED.get(type);
+            if (methods == null)
+            {
+                if (NativeMethodCache.RESOLVED.putIfAbsent(type, new NativeMethod[] { method }) == null)
+                    return;
+                continue;
+            }
+            for (final NativeMethod existing : methods)
+                if (existing == method)
+                    return;
+            final NativeMethod[] updated = new NativeMethod[methods.length + 1];
+            System.arraycopy(methods, 0, updated, 0, methods.length);
+            updated[methods.length] = method;
+            if (NativeMethodCache.RESOLVED.replace(type, methods, updated))
+                return;
+        }
+    }
+
+    /**
+     * Determine whether a method with the same name and parameter types as the given method was
+     * already found in a subclass.
+     */
+    private static boolean contains(final List<NativeMethod> methods, final NativeMethod method)
+    {
+        for (final NativeMethod existing : methods)
+            if (existing.matches(method.getName(), method.getMethod().getParameterTypes()))
+                return true;
+        return false;
+    }
+}
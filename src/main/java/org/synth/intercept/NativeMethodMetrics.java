@@ -0,0 +1,251 @@
+package org.synth.intercept;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Per method metrics for intercepted native methods: the number of invocations, the number that
+ * threw, and a histogram of their durations. Metering is switched on and off per class at runtime,
+ * and a class that is not metered pays nothing for it: metering decorates the handlers linked to
+ * the methods of the class. Metered methods count every invocation but only time a sample of
+ * them, since reading the clock would otherwise dominate the cost of metering.
+ *
+ * The metrics measure dispatch to the registered handler, including whatever it does before and
+ * after declining an invocation. They do not cover native methods called directly: with
+ * passthrough, a native method called because no handler is registered, or called by the
+ * intercepted method after its handler declined, is not counted. {@link NativeEvents} times
+ * those passthrough calls. The native methods of classes that are wrapped but not intercepted
+ * are not instrumented at all, so neither times them.
+ *
+ * Metering a class meters the invocations on its instances, including of native methods it
+ * inherits from an intercepted superclass; those are reported as the inherited method "on" the
+ * metered class.
+ *
+ * The metrics can be read with {@link #snapshot()}, or through JMX from the MXBean registered as
+ * {@link #OBJECT_NAME} the first time a class is metered.
+ */
+public final class NativeMethodMetrics
+{
+    /**
+     * Log for various logging events.
+     */
+    private static final Logger LOG = Logger.getLogger(NativeMethodMetrics.class.getPackage().getName());
+
+    /**
+     * The name the MXBean is registered with in the platform MBean server.
+     */
+    public static final String OBJECT_NAME = "org.synth.intercept:type=NativeMethodMetrics";
+
+    /**
+     * The metered classes.
+     */
+    private static final Set<Class<?>> METERED = new CopyOnWriteArraySet<Class<?>>();
+
+    /**
+     * Whether the MXBean has been registered.
+     */
+    private static boolean REGISTERED = false;
+
+    private NativeMethodMetrics()
+    {
+    }
+
+    /**
+     * Start or stop metering the intercepted methods declared by a class. Stopping discards what
+     * was recorded for the class.
+     *
+     * @param type The intercepted class.
+     * @param enabled Whether to meter its methods.
+     * @throws IllegalArgumentException When the type is null.
+     */
+    public static void setEnabled(final Class<?> type, final boolean enabled)
+    {
+        if (type == null)
+            throw new IllegalArgumentException("Cannot meter native methods on null type");
+        if (enabled)
+        {
+            NativeMethodMetrics.registerMBean();
+            NativeMethodMetrics.METERED.add(type);
+        }
+        else
+            NativeMethodMetrics.METERED.remove(type);
+        NativeMethodCache.meter(type, enabled);
+    }
+
+    /**
+     * Determine whether the methods declared by a class are metered.
+     *
+     * @param type The class.
+     * @return Whether its methods are metered.
+     */
+    public static boolean isEnabled(final Class<?> type)
+    {
+        return NativeMethodMetrics.METERED.contains(type);
+    }
+
+    /**
+     * Take a snapshot of the methods declared by a class.
+     *
+     * @param type The class.
+     * @return A snapshot of each metered method, which is empty when the class is not metered.
+     */
+    public static List<InvocationStatistics> snapshot(final Class<?> type)
+    {
+        final List<InvocationStatistics> snapshot = new ArrayList<InvocationStatistics>();
+        if (NativeMethodMetrics.METERED.contains(type))
+            NativeMethodMetrics.snapshot(type, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Take a snapshot of all the metered methods.
+     *
+     * @return A snapshot of each metered method.
+     */
+    public static List<InvocationStatistics> snapshot()
+    {
+        final List<InvocationStatistics> snapshot = new ArrayList<InvocationStatistics>();
+        for (final Class<?> type : NativeMethodMetrics.METERED)
+            NativeMethodMetrics.snapshot(type, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Discard everything recorded so far, without changing which classes are metered.
+     */
+    public static void reset()
+    {
+        for (final Class<?> type : NativeMethodMetrics.METERED)
+        {
+            for (final NativeMethod method : NativeMethodCache.declared(type))
+            {
+                final InvocationMetrics metrics = method.getMetrics();
+                if (metrics != null)
+                    metrics.reset();
+            }
+            for (final NativeMethod method : NativeMethodMetrics.inherited(type))
+            {
+                final InvocationMetrics metrics = method.getMetrics(type);
+                if (metrics != null)
+                    metrics.reset();
+            }
+        }
+    }
+
+    /**
+     * Register the MXBean in the platform MBean server, if it is not registered already. This is
+     * done when a class is first metered, but can be called earlier to switch metering on through
+     * JMX.
+     */
+    public static synchronized void registerMBean()
+    {
+        if (NativeMethodMetrics.REGISTERED)
+            return;
+        NativeMethodMetrics.REGISTERED = true;
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName(NativeMethodMetrics.OBJECT_NAME));
+        }
+        catch (final JMException e)
+        {
+            NativeMethodMetrics.LOG.warning("Unable to register " + NativeMethodMetrics.OBJECT_NAME + ": " + e);
+        }
+    }
+
+    /**
+     * Add a snapshot of each metered method declared by a class.
+     */
+    private static void snapshot(final Class<?> type, final List<InvocationStatistics> snapshot)
+    {
+        for (final NativeMethod method : NativeMethodCache.declared(type))
+        {
+            final InvocationMetrics metrics = method.getMetrics();
+            if (metrics != null)
+                snapshot.add(metrics.snapshot(method.toString()));
+        }
+        for (final NativeMethod method : NativeMethodMetrics.inherited(type))
+        {
+            final InvocationMetrics metrics = method.getMetrics(type);
+            if (metrics != null)
+                snapshot.add(metrics.snapshot(method + " on " + type.getName()));
+        }
+    }
+
+    /**
+     * Get the intercepted methods a class inherits from its superclasses.
+     */
+    private static List<NativeMethod> inherited(final Class<?> type)
+    {
+        final List<NativeMethod> inherited = new ArrayList<NativeMethod>();
+        for (final Class<?> declaring : NativeMethodCache.declaredClasses())
+            if (declaring != type && declaring.isAssignableFrom(type))
+                for (final NativeMethod method : NativeMethodCache.declared(declaring))
+                    inherited.add(method);
+        return inherited;
+    }
+
+    /**
+     * Find the intercepted classes with a name. Several class loaders may have loaded a class with
+     * the same name.
+     */
+    private static List<Class<?>> find(final String className)
+    {
+        final Instrumentation instrumentation = NativeInterceptorAgent.getInstrumentation();
+        final Class<?>[] classes =
+            instrumentation == null ? NativeMethodCache.declaredClasses() : instrumentation.getAllLoadedClasses();
+        final List<Class<?>> found = new ArrayList<Class<?>>();
+        for (final Class<?> type : classes)
+            if (type.getName().equals(className) && type.getAnnotation(HasInterceptedNatives.class) != null)
+                found.add(type);
+        return found;
+    }
+
+    /**
+     * The MXBean exposing the metrics.
+     */
+    private static final class Bean implements NativeMethodMetricsMXBean
+    {
+        public String[] getMeteredClasses()
+        {
+            final List<String> names = new ArrayList<String>();
+            for (final Class<?> type : NativeMethodMetrics.METERED)
+                names.add(type.getName());
+            return names.toArray(new String[names.size()]);
+        }
+
+        public InvocationStatistics[] getStatistics()
+        {
+            final List<InvocationStatistics> snapshot = NativeMethodMetrics.snapshot();
+            return snapshot.toArray(new InvocationStatistics[snapshot.size()]);
+        }
+
+        public void enable(final String className)
+        {
+            final List<Class<?>> types = NativeMethodMetrics.find(className);
+            if (types.isEmpty())
+                throw new IllegalArgumentException("No intercepted class " + className + " is loaded");
+            for (final Class<?> type : types)
+                NativeMethodMetrics.setEnabled(type, true);
+        }
+
+        public void disable(final String className)
+        {
+            for (final Class<?> type : NativeMethodMetrics.METERED)
+                if (type.getName().equals(className))
+                    NativeMethodMetrics.setEnabled(type, false);
+        }
+
+        public void reset()
+        {
+            NativeMethodMetrics.reset();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.synth.intercept;
+
+/**
+ * The management interface of {@link NativeMethodMetrics}, registered as
+ * {@link NativeMethodMetrics#OBJECT_NAME}.
+ */
+public interface NativeMethodMetricsMXBean
+{
+    /**
+     * Get the names of the classes whose methods are metered.
+     *
+     * @return The class names.
+     */
+    String[] getMeteredClasses();
+
+    /**
+     * Take a snapshot of the metered methods.
+     *
+     * @return A snapshot of each metered method.
+     */
+    InvocationStatistics[] getStatistics();
+
+    /**
+     * Start metering the methods of every loaded class with the given name.
+     *
+     * @param className The binary name of the class (e.g. java.lang.Thread).
+     * @throws IllegalArgumentException When no intercepted class with the name is loaded.
+     */
+    void enable(String className);
+
+    /**
+     * Stop metering the methods of every class with the given name.
+     *
+     * @param className The binary name of the class.
+     */
+    void disable(String className);
+
+    /**
+     * Discard everything recorded so far, without changing which classes are metered.
+     */
+    void reset();
+}
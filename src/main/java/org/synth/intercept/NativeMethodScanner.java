@@ -0,0 +1,166 @@
+package org.synth.intercept;
+
+import org.objectweb.asm.Opcodes;
+
+/**
+ * A quick check of raw class file bytes for native methods that still need wrapping. It only skips
+ * over the constant pool, fields and attributes to read the access flags of each method, so the
+ * {@link NativeWrappingTransformer} can reject the vast majority of classes without creating any
+ * ASM objects. Native methods that already carry the {@link Constants#NATIVE_METHOD_PREFIX} were
+ * wrapped ahead of time (see {@link JarWrapper}) and are ignored.
+ *
+ * The check is conservative: whenever the bytes cannot be understood (an unknown constant pool
+ * tag, or a truncated class) it reports that the class may need wrapping, leaving the decision to
+ * the full ASM pass.
+ */
+final class NativeMethodScanner
+{
+    /**
+     * The magic number at the start of every class file.
+     */
+    private static final int MAGIC = 0xCAFEBABE;
+
+    /**
+     * The prefix of wrapped native methods, as it appears in the constant pool.
+     */
+    private static final byte[] PREFIX = Constants.NATIVE_METHOD_PREFIX.getBytes();
+
+    private NativeMethodScanner()
+    {
+    }
+
+    /**
+     * Determine whether the class file may declare a native method that is not yet wrapped.
+     *
+     * @param b The class file bytes.
+     * @return False only when the class certainly declares no unwrapped native methods.
+     */
+    static boolean mayHaveUnwrappedNatives(final byte[] b)
+    {
+        try
+        {
+            if (NativeMethodScanner.readInt(b, 0) != NativeMethodScanner.MAGIC)
+                return true;
+            // skip the magic number and version to the constant pool
+            int offset = NativeMethodScanner.skipConstants(b, 10, NativeMethodScanner.readUnsignedShort(b, 8));
+            if (offset < 0)
+                return true;
+            // skip access flags, this class and super class to the interfaces
+            offset += 6;
+            offset += 2 + 2 * NativeMethodScanner.readUnsignedShort(b, offset);
+            // skip the fields
+            int count = NativeMethodScanner.readUnsignedShort(b, offset);
+            offset += 2;
+            for (int i = 0; i < count; i++)
+                offset = NativeMethodScanner.skipMember(b, offset);
+            // check the access flags of each method
+            count = NativeMethodScanner.readUnsignedShort(b, offset);
+            offset += 2;
+            for (int i = 0; i < count; i++)
+            {
+                if ((NativeMethodScanner.readUnsignedShort(b, offset) & Opcodes.ACC_NATIVE) != 0 &&
+                    !NativeMethodScanner.isWrapped(b, NativeMethodScanner.readUnsignedShort(b, offset + 2)))
+                    return true;
+                offset = NativeMethodScanner.skipMember(b, offset);
+            }
+            return false;
+        }
+        catch (final ArrayIndexOutOfBoundsException e)
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Determine whether a native method name, given by its constant pool index, has the prefix of
+     * wrapped native methods. This walks the constant pool again, but only for native methods.
+     */
+    private static boolean isWrapped(final byte[] b, final int nameIndex)
+    {
+        final int offset = NativeMethodScanner.skipConstants(b, 10, nameIndex);
+        if (offset < 0 || b[offset] != 1 ||
+            NativeMethodScanner.readUnsignedShort(b, offset + 1) < NativeMethodScanner.PREFIX.length)
+            return false;
+        for (int i = 0; i < NativeMethodScanner.PREFIX.length; i++)
+            if (b[offset + 3 + i] != NativeMethodScanner.PREFIX[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Skip the constant pool entries before the given index, starting at the offset of the
+     * first entry.
+     *
+     * @return The offset of the entry with the given index, or -1 when the pool contains an
+     *         unknown tag.
+     */
+    private static int skipConstants(final byte[] b, final int start, final int index)
+    {
+        int offset = start;
+        for (int i = 1; i < index; i++)
+        {
+            switch (b[offset])
+            {
+                case 1: // Utf8
+                    offset += 3 + NativeMethodScanner.readUnsignedShort(b, offset + 1);
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    offset += 9;
+                    // these take two entries in the pool
+                    i++;
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    offset += 5;
+                    break;
+                case 15: // MethodHandle
+                    offset += 4;
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    offset += 3;
+                    break;
+                default:
+                    return -1;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Skip a field or method, including its attributes.
+     *
+     * @return The offset following the member.
+     */
+    private static int skipMember(final byte[] b, final int start)
+    {
+        // skip access flags, name and descriptor to the attributes
+        int offset = start + 6;
+        final int count = NativeMethodScanner.readUnsignedShort(b, offset);
+        offset += 2;
+        for (int i = 0; i < count; i++)
+            offset += 6 + NativeMethodScanner.readInt(b, offset + 2);
+        return offset;
+    }
+
+    private static int readUnsignedShort(final byte[] b, final int offset)
+    {
+        return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(final byte[] b, final int offset)
+    {
+        return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) |
+            ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+    }
+}
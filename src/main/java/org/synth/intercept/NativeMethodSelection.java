@@ -0,0 +1,116 @@
+package org.synth.intercept;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records which methods of each class should be intercepted. The {@link NativeInterceptingTransformer}
+ * consults this when a class is retransformed, so that only the selected methods are rewritten to
+ * dispatch to a handler. Every other wrapped method keeps the direct call to its native method.
+ *
+ * Methods are identified by their name followed by their descriptor, e.g.
+ * <code>theNativeMethod(IFLjava/lang/String;)[Ljava/lang/Object;</code>. Each class maps to an
+ * immutable set that is replaced wholesale when it changes.
+ */
+final class NativeMethodSelection
+{
+    /**
+     * The selection for classes that have all of their wrapped methods intercepted.
+     */
+    static final Set<String> ALL = Collections.unmodifiableSet(new HashSet<String>());
+
+    /**
+     * The methods selected for each class, or {@link #ALL}.
+     */
+    private static final ConcurrentMap<Class<?>,Set<String>> SELECTED =
+        new ConcurrentHashMap<Class<?>,Set<String>>();
+
+    private NativeMethodSelection()
+    {
+    }
+
+    /**
+     * Select all the wrapped methods of the given class.
+     *
+     * @param type The class.
+     */
+    static void selectAll(final Class<?> type)
+    {
+        NativeMethodSelection.SELECTED.put(type, NativeMethodSelection.ALL);
+    }
+
+    /**
+     * Add a method to the selection for the given class. This has no effect when all the methods
+     * of the class are already selected.
+     *
+     * @param type The class that declares the method.
+     * @param name The method name.
+     * @param desc The method descriptor.
+     */
+    static void select(final Class<?> type, final String name, final String desc)
+    {
+        final String key = NativeMethodSelection.key(name, desc);
+        while (true)
+        {
+            final Set<String> selected = NativeMethodSelection.SELECTED.get(type);
+            if (selected == null)
+            {
+                if (NativeMethodSelection.SELECTED.putIfAbsent(type, Collections.singleton(key)) == null)
+                    return;
+                continue;
+            }
+            if (selected == NativeMethodSelection.ALL || selected.contains(key))
+                return;
+            final Set<String> updated = new HashSet<String>(selected);
+            updated.add(key);
+            if (NativeMethodSelection.SELECTED.replace(type, selected, Collections.unmodifiableSet(updated)))
+                return;
+        }
+    }
+
+    /**
+     * Remove the selection for the given class, so that none of its methods are intercepted when
+     * it is next retransformed.
+     *
+     * @param type The class.
+     */
+    static void clear(final Class<?> type)
+    {
+        NativeMethodSelection.SELECTED.remove(type);
+    }
+
+    /**
+     * Get the methods selected for the given class.
+     *
+     * @param type The class.
+     * @return The selected methods, {@link #ALL}, or null when the class is not intercepted.
+     */
+    static Set<String> get(final Class<?> type)
+    {
+        return NativeMethodSelection.SELECTED.get(type);
+    }
+
+    /**
+     * Determine whether a method is included in a selection.
+     *
+     * @param selected The selection returned by {@link #get(Class)}.
+     * @param name The method name.
+     * @param desc The method descriptor.
+     * @return Whether the method is selected.
+     */
+    static boolean isSelected(final Set<String> selected, final String name, final String desc)
+    {
+        return selected == NativeMethodSelection.ALL || selected.contains(NativeMethodSelection.key(name, desc));
+    }
+
+    /**
+     * Create the key used to identify a method in a selection.
+     */
+    private static String key(final String name, final String desc)
+    {
+        return name + desc;
+    }
+}
@@ -1,5 +1,8 @@
 package org.synth.intercept;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
@@ -11,6 +14,7 @@ public class NativeWrappingClassAdapter extends ClassAdapter
     public static final int NON_NATIVE_MASK = 0xFFFFFF ^ Opcodes.ACC_NATIVE;
     private final Type type;
     private boolean foundNativeMethod = false;
+    private final List<String> nativeMethodFields = new ArrayList<String>();
 
     public NativeWrappingClassAdapter(final ClassVisitor visitor, final Type type)
     {
@@ -32,11 +36,23 @@ public class NativeWrappingClassAdapter extends ClassAdapter
         if ((access & Opcodes.ACC_NATIVE) == 0)
             return super.visitMethod(access, name, desc, signature, exceptions);
         this.foundNativeMethod = true;
+        this.nativeMethodFields.add(Constants.nativeMethodField(name, desc));
         final MethodVisitor wrapper = super.visitMethod(access & NativeWrappingClassAdapter.NON_NATIVE_MASK, name, desc, signature, exceptions);
         new NativeWrappingMethodAdapter(wrapper, this.type, access, name, desc);
         return super.visitMethod(access, Constants.NATIVE_METHOD_PREFIX + name, desc, signature, exceptions);
     }
 
+    @Override
+    public void visitEnd()
+    {
+        // Add a field to cache the NativeMethod for each wrapped method. Fields cannot be added
+        // when the class is later re-transformed to intercept the methods, so add them now.
+        for (final String field : this.nativeMethodFields)
+            super.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, field,
+                             Constants.NATIVE_METHOD_TYPE.getDescriptor(), null, null).visitEnd();
+        super.visitEnd();
+    }
+
     public boolean foundNativeMethod()
     {
         return this.foundNativeMethod;
@@ -8,6 +8,8 @@ import java.lang.instrument.Instrumentation;
 import java.security.ProtectionDomain;
 import java.util.logging.Logger;
 
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Type;
@@ -27,6 +29,17 @@ public class NativeWrappingTransformer implements ClassFileTransformer
     private static final Logger LOG =
         Logger.getLogger(NativeWrappingTransformer.class.getPackage().getName());
 
+    /**
+     * The description of this transformation in {@link TransformCache} keys.
+     */
+    private static final String TRANSFORMATION = "wrap";
+
+    /**
+     * The description of the eager transformation in {@link TransformCache} keys, followed by the
+     * dispatch mode.
+     */
+    private static final String EAGER_TRANSFORMATION = "wrap eager ";
+
     /**
      * The main transformer method which handles the application of the proper class adapter.
      */
@@ -38,21 +51,34 @@ public class NativeWrappingTransformer implements ClassFileTransformer
         // system classes that shouldn't be instrumented.
         if (classBeingRedefined != null || NativeInterceptorAgent.isExcluded(className))
             return null;
+        // Most classes have no native methods (or were wrapped ahead of time), so check the raw
+        // bytes before doing any real work.
+        if (!NativeMethodScanner.mayHaveUnwrappedNatives(classfileBuffer))
+            return null;
+        // Classes matching the eager filter are intercepted now as well, so that they never need
+        // to be retransformed.
+        final boolean eager = NativeInterceptorAgent.isEager(className);
+        final DispatchMode mode = NativeInterceptorAgent.getDispatchMode();
+        // Reuse the bytes transformed by an earlier run when they are cached.
+        final TransformCache cache = NativeInterceptorAgent.getTransformCache();
+        final String key = cache == null ? null : cache.key(
+            eager ? NativeWrappingTransformer.EAGER_TRANSFORMATION + mode : NativeWrappingTransformer.TRANSFORMATION,
+            classfileBuffer);
+        if (key != null)
+        {
+            final byte[] cached = cache.get(key);
+            if (cached != null)
+                return cached;
+        }
         try
         {
-            // Create the reader that reads from the class bytes.
-            final ClassReader reader = new ClassReader(classfileBuffer);
-            // Create the writer that writes the transformed class. Use COMPUTE_MAXS to allow
-            // the adapter to not keep track of the maximum stack size.
-            final ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
-            // Create the adapter between the reader and writer.
-            final NativeWrappingClassAdapter adapter =
-                new NativeWrappingClassAdapter(writer, Type.getType('L' + className + ';'));
-            // Run the class through the adapter
-            reader.accept(adapter, 0);
-            // Check to see if the transformation found any valid targets. Returning null here
-            // signals that no changes were made.
-            return adapter.foundNativeMethod() ? writer.toByteArray() : null;
+            final byte[] transformed = eager ? NativeWrappingTransformer.wrapAndIntercept(className, classfileBuffer, mode) :
+                NativeWrappingTransformer.wrap(className, classfileBuffer);
+            if (transformed == null)
+                return null;
+            if (key != null)
+                cache.put(key, transformed);
+            return transformed;
         }
         catch (final Throwable t)
         {
@@ -70,4 +96,63 @@ public class NativeWrappingTransformer implements ClassFileTransformer
                     (RuntimeException)t : new RuntimeException("Error while transforming class for intercepting", t);
         }
             }
+
+    /**
+     * Run class bytes through the {@link NativeWrappingClassAdapter}.
+     *
+     * @param className The class name, in internal form (e.g. java/lang/Throwable).
+     * @param classfileBuffer The class bytes.
+     * @return The wrapped class bytes, or null when the class has no native methods.
+     */
+    static byte[] wrap(final String className, final byte[] classfileBuffer)
+    {
+        // Create the reader that reads from the class bytes.
+        final ClassReader reader = new ClassReader(classfileBuffer);
+        // Create the writer that writes the transformed class. Use COMPUTE_MAXS to allow
+        // the adapter to not keep track of the maximum stack size.
+        final ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        // Create the adapter between the reader and writer.
+        final NativeWrappingClassAdapter adapter =
+            new NativeWrappingClassAdapter(writer, Type.getType('L' + className + ';'));
+        // Run the class through the adapter
+        reader.accept(adapter, 0);
+        // Check to see if the transformation found any valid targets. Returning null here
+        // signals that no changes were made.
+        return adapter.foundNativeMethod() ? writer.toByteArray() : null;
+    }
+
+    /**
+     * Wrap class bytes and intercept all of the wrapped methods in the same transformation. The
+     * intercepted methods pass through to their native methods while no handler is registered, so
+     * that interception is switched on and off by registering and unregistering handlers alone.
+     * The class is marked with {@link InterceptedAtLoad}.
+     *
+     * @param className The class name, in internal form (e.g. java/lang/Throwable).
+     * @param classfileBuffer The class bytes.
+     * @param mode The strategy used to dispatch intercepted methods to their handlers.
+     * @return The intercepted class bytes, or null when the class has no native methods.
+     */
+    static byte[] wrapAndIntercept(final String className, final byte[] classfileBuffer, final DispatchMode mode)
+    {
+        final byte[] wrapped = NativeWrappingTransformer.wrap(className, classfileBuffer);
+        if (wrapped == null)
+            return null;
+        final ClassReader reader = new ClassReader(wrapped);
+        final ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        final ClassAdapter marker = new ClassAdapter(writer) {
+            @Override
+            public void visit(final int version, final int access, final String name, final String signature,
+                              final String superName, final String[] interfaces)
+            {
+                super.visit(version, access, name, signature, superName, interfaces);
+                final AnnotationVisitor annotation = this.cv.visitAnnotation(Constants.INTERCEPTED_AT_LOAD_DESCRIPTOR, true);
+                if (annotation != null)
+                    annotation.visitEnd();
+            }
+        };
+        final NativeInterceptingClassAdapter adapter =
+            new NativeInterceptingClassAdapter(marker, Type.getType('L' + className + ';'), mode, true, null);
+        reader.accept(adapter, ClassReader.EXPAND_FRAMES);
+        return adapter.intercepted() ? writer.toByteArray() : wrapped;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,273 @@
+package org.synth.intercept;
+
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A handler that moves slow native methods off virtual threads. A virtual thread calling a native
+ * method pins its carrier thread until the method returns, so slow native methods starve the
+ * scheduler of carriers. When an offloaded method is called from a virtual thread, this handler
+ * calls the native method (see {@link NativeMethod#invokeNative(Object,Object[])}) on a bounded
+ * pool of platform threads instead, and the virtual thread parks until the result arrives, which
+ * frees its carrier. Calls from platform threads call the native method directly.
+ *
+ * Virtual threads only exist from Java 21; on earlier VMs every call takes the direct path.
+ *
+ * Either every intercepted method of the class is offloaded, or only the given methods, with the
+ * others calling their native methods directly. {@link NativeInterceptor#offload(Method)} selects
+ * methods one at a time.
+ *
+ * Unless given a pool of their own, handlers share a single pool of daemon threads, which is
+ * created on first use and lets its threads die when idle, so it never needs to be shut down.
+ */
+public class OffloadingHandler extends PrimitiveInvocationHandler
+{
+    /**
+     * The class of virtual threads, or null when the VM has none.
+     */
+    private static final Class<?> VIRTUAL_THREAD = OffloadingHandler.virtualThreadClass();
+
+    /**
+     * The number of platform threads in the pool shared by handlers created without a pool.
+     */
+    public static final int DEFAULT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The number of seconds a thread of the shared pool is kept while idle.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * The pool of platform threads that offloaded methods are called on.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The offloaded methods, or null when every method is offloaded.
+     */
+    private final Set<Method> methods;
+
+    /**
+     * The number of calls offloaded to the pool.
+     */
+    private final AtomicLong offloaded = new AtomicLong();
+
+    /**
+     * Create a handler that offloads every intercepted method to the shared pool of
+     * {@link #DEFAULT_THREADS} daemon threads.
+     */
+    public OffloadingHandler()
+    {
+        this(SharedPool.POOL, (Set<Method>)null);
+    }
+
+    /**
+     * Create a handler that offloads only the given methods to the shared pool of
+     * {@link #DEFAULT_THREADS} daemon threads.
+     *
+     * @param methods The methods to offload.
+     * @throws IllegalArgumentException When any method is null.
+     */
+    public OffloadingHandler(final Method... methods)
+    {
+        this(SharedPool.POOL, methods);
+    }
+
+    /**
+     * Create a handler that offloads only the given methods to the given pool. The pool should
+     * have a bounded number of platform threads; the handler does not shut it down.
+     *
+     * @param executor The pool.
+     * @param methods The methods to offload, or none to offload every method.
+     * @throws IllegalArgumentException When the pool or any method is null.
+     */
+    public OffloadingHandler(final ExecutorService executor, final Method... methods)
+    {
+        this(executor, methods.length == 0 ? null : new CopyOnWriteArraySet<Method>());
+        for (final Method method : methods)
+            this.offload(method);
+    }
+
+    private OffloadingHandler(final ExecutorService executor, final Set<Method> methods)
+    {
+        if (executor == null)
+            throw new IllegalArgumentException("Cannot offload to null executor");
+        this.executor = executor;
+        this.methods = methods;
+    }
+
+    /**
+     * Start offloading another method.
+     *
+     * @param method The method.
+     * @throws IllegalArgumentException When the method is null.
+     * @throws IllegalStateException When the handler already offloads every method.
+     */
+    public void offload(final Method method)
+    {
+        if (method == null)
+            throw new IllegalArgumentException("Cannot offload null method");
+        if (this.methods == null)
+            throw new IllegalStateException("Every method is already offloaded");
+        this.methods.add(method);
+    }
+
+    @Override
+    public Object invokeObject(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        if (!this.isOffloaded(method))
+            return this.load(proxy, method, args);
+        this.offloaded.incrementAndGet();
+        final Future<Object> result = this.executor.submit(new Callable<Object>() {
+            public Object call() throws Exception
+            {
+                try
+                {
+                    return OffloadingHandler.this.load(proxy, method, args);
+                }
+                catch (final Exception e)
+                {
+                    throw e;
+                }
+                catch (final Error e)
+                {
+                    throw e;
+                }
+                catch (final Throwable t)
+                {
+                    throw new ExecutionException(t);
+                }
+            }
+        });
+        // The native method cannot be interrupted, so neither can waiting for it; the interrupt
+        // is kept for the caller.
+        boolean interrupted = false;
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    return result.get();
+                }
+                catch (final InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        catch (final ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof ExecutionException && cause.getCause() != null)
+                cause = cause.getCause();
+            throw cause;
+        }
+        finally
+        {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Make a call, on the pool when it is offloaded and in the calling thread otherwise. By default
+     * this calls the original native method.
+     *
+     * @param proxy The instance the method was invoked on, or the declaring class for static methods.
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @return The value to return, boxed for primitive return types.
+     * @throws Throwable Whatever the native method throws.
+     */
+    protected Object load(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        return method.invokeNative(proxy, args.box(method.getArgTypes()));
+    }
+
+    /**
+     * Determine whether a call of a method, made from the current thread, is offloaded. By default
+     * calls of the offloaded methods made from virtual threads are.
+     *
+     * @param method The intercepted method.
+     * @return Whether to offload the call.
+     */
+    protected boolean isOffloaded(final NativeMethod method)
+    {
+        return OffloadingHandler.isVirtual(Thread.currentThread()) &&
+            (this.methods == null || this.methods.contains(method.getMethod()));
+    }
+
+    /**
+     * Determine whether every intercepted method is offloaded, rather than only selected ones.
+     */
+    boolean isOffloadingEvery()
+    {
+        return this.methods == null;
+    }
+
+    /**
+     * Getter for the number of calls offloaded to the pool.
+     *
+     * @return The number of offloaded calls.
+     */
+    public long getOffloadedCount()
+    {
+        return this.offloaded.get();
+    }
+
+    /**
+     * Determine whether a thread is a virtual thread.
+     *
+     * @param thread The thread.
+     * @return Whether it is virtual, which is always false before Java 21.
+     */
+    public static boolean isVirtual(final Thread thread)
+    {
+        return thread.getClass() == OffloadingHandler.VIRTUAL_THREAD;
+    }
+
+    /**
+     * Holds the pool shared by the handlers created without one, so that it is only created once a
+     * handler needs it.
+     */
+    private static final class SharedPool
+    {
+        static final ExecutorService POOL = SharedPool.create();
+
+        private static ExecutorService create()
+        {
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(OffloadingHandler.DEFAULT_THREADS, OffloadingHandler.DEFAULT_THREADS,
+                OffloadingHandler.KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                ConcurrencyPolicy.daemonThreads("native-offload-"));
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+
+    /**
+     * Find the class of virtual threads. Calls from platform threads must stay cheap, so virtual
+     * threads are recognized by their class rather than reflectively calling Thread.isVirtual().
+     * The class is not initialized, which would start the virtual thread scheduler.
+     */
+    private static Class<?> virtualThreadClass()
+    {
+        try
+        {
+            return Class.forName("java.lang.VirtualThread", false, null);
+        }
+        catch (final ClassNotFoundException e)
+        {
+            return null;
+        }
+    }
+}
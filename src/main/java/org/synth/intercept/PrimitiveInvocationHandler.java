@@ -0,0 +1,301 @@
+package org.synth.intercept;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+
+/**
+ * A handler for intercepted methods that receives primitive arguments and returns primitive values
+ * without boxing. Subclasses override the typed invoke method for each return type they handle,
+ * and read the arguments from the typed slots of the {@link NativeFrame}.
+ *
+ * Each typed method defaults to calling {@link #invokeObject(Object,NativeMethod,NativeFrame)} and
+ * unboxing the result, so a handler can implement the generic case once and specialize only its
+ * hot methods. Since this class is also an {@link InvocationHandler}, it can be registered through
+ * {@link NativeInterceptor} like any other handler. Classes intercepted in
+ * {@link DispatchMode#PRIMITIVE} mode call the typed methods directly; classes intercepted in the
+ * other modes reach them through {@link #invoke(Object,Method,Object[])}, with boxing.
+ *
+ * When passthrough is enabled, a handler declines an invocation by returning
+ * {@link NativeInvocationHandler#PROCEED} from {@link #invokeObject(Object,NativeMethod,NativeFrame)}
+ * or, from a typed method that cannot return it, by throwing {@link #DECLINED}.
+ */
+public abstract class PrimitiveInvocationHandler implements InvocationHandler
+{
+    /**
+     * Thrown by a typed invoke method to decline an invocation, so that the original native method
+     * is called instead. The instance is shared and has no stack trace, so throwing it is cheap.
+     *
+     * @see NativeInterceptorAgent#setPassthrough(boolean)
+     */
+    public static final Error DECLINED = new Declined();
+
+    /**
+     * Handle a method returning a reference type, or any method whose typed invoke method is not
+     * overridden.
+     *
+     * @param proxy The instance the method was invoked on, or the declaring class for static methods.
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @return The value to return, boxed for primitive return types.
+     * @throws Throwable Any exception to throw from the intercepted method; by default an
+     *         {@link UnsatisfiedLinkError}, as for a method with no handler, since a handler that
+     *         does not override this method does not handle the methods that reach it.
+     */
+    public Object invokeObject(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        throw new UnsatisfiedLinkError(method.toString());
+    }
+
+    /**
+     * Handle a method returning void. By default this calls
+     * {@link #invokeObject(Object,NativeMethod,NativeFrame)}, and throws {@link #DECLINED} when it
+     * returns {@link NativeInvocationHandler#PROCEED}.
+     *
+     * @param proxy The instance the method was invoked on, or the declaring class for static methods.
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @throws Throwable Any exception to throw from the intercepted method, or {@link #DECLINED}.
+     */
+    public void invokeVoid(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        if (this.invokeObject(proxy, method, args) == NativeInvocationHandler.PROCEED)
+            throw PrimitiveInvocationHandler.DECLINED;
+    }
+
+    /**
+     * Handle a method returning boolean. By default this calls
+     * {@link #invokeObject(Object,NativeMethod,NativeFrame)} and unboxes the {@link Boolean} it
+     * returns.
+     *
+     * @param proxy The instance the method was invoked on, or the declaring class for static methods.
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @return The value to return.
+     * @throws Throwable Any exception to throw from the intercepted method, or {@link #DECLINED}.
+     */
+    public boolean invokeBoolean(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        return ((Boolean)this.invokeChecked(proxy, method, args)).booleanValue();
+    }
+
+    /**
+     * Handle a method returning byte. By default this calls
+     * {@link #invokeObject(Object,NativeMethod,NativeFrame)} and unboxes the {@link Byte} it
+     * returns.
+     *
+     * @param proxy The instance the method was invoked on, or the declaring class for static methods.
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @return The value to return.
+     * @throws Throwable Any exception to throw from the intercepted method, or {@link #DECLINED}.
+     */
+    public byte invokeByte(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        return ((Byte)this.invokeChecked(proxy, method, args)).byteValue();
+    }
+
+    /**
+     * Handle a method returning char. By default this calls
+     * {@link #invokeObject(Object,NativeMethod,NativeFrame)} and unboxes the {@link Character} it
+     * returns.
+     *
+     * @param proxy The instance the method was invoked on, or the declaring class for static methods.
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @return The value to return.
+     * @throws Throwable Any exception to throw from the intercepted method, or {@link #DECLINED}.
+     */
+    public char invokeChar(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        return ((Character)this.invokeChecked(proxy, method, args)).charValue();
+    }
+
+    /**
+     * Handle a method returning short. By default this calls
+     * {@link #invokeObject(Object,NativeMethod,NativeFrame)} and unboxes the {@link Short} it
+     * returns.
+     *
+     * @param proxy The instance the method was invoked on, or the declaring class for static methods.
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @return The value to return.
+     * @throws Throwable Any exception to throw from the intercepted method, or {@link #DECLINED}.
+     */
+    public short invokeShort(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        return ((Short)this.invokeChecked(proxy, method, args)).shortValue();
+    }
+
+    /**
+     * Handle a method returning int. By default this calls
+     * {@link #invokeObject(Object,NativeMethod,NativeFrame)} and unboxes the {@link Integer} it
+     * returns.
+     *
+     * @param proxy The instance the method was invoked on, or the declaring class for static methods.
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @return The value to return.
+     * @throws Throwable Any exception to throw from the intercepted method, or {@link #DECLINED}.
+     */
+    public int invokeInt(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        return ((Integer)this.invokeChecked(proxy, method, args)).intValue();
+    }
+
+    /**
+     * Handle a method returning long. By default this calls
+     * {@link #invokeObject(Object,NativeMethod,NativeFrame)} and unboxes the {@link Long} it
+     * returns.
+     *
+     * @param proxy The instance the method was invoked on, or the declaring class for static methods.
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @return The value to return.
+     * @throws Throwable Any exception to throw from the intercepted method, or {@link #DECLINED}.
+     */
+    public long invokeLong(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        return ((Long)this.invokeChecked(proxy, method, args)).longValue();
+    }
+
+    /**
+     * Handle a method returning float. By default this calls
+     * {@link #invokeObject(Object,NativeMethod,NativeFrame)} and unboxes the {@link Float} it
+     * returns.
+     *
+     * @param proxy The instance the method was invoked on, or the declaring class for static methods.
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @return The value to return.
+     * @throws Throwable Any exception to throw from the intercepted method, or {@link #DECLINED}.
+     */
+    public float invokeFloat(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        return ((Float)this.invokeChecked(proxy, method, args)).floatValue();
+    }
+
+    /**
+     * Handle a method returning double. By default this calls
+     * {@link #invokeObject(Object,NativeMethod,NativeFrame)} and unboxes the {@link Double} it
+     * returns.
+     *
+     * @param proxy The instance the method was invoked on, or the declaring class for static methods.
+     * @param method The intercepted method.
+     * @param args The arguments passed to the method.
+     * @return The value to return.
+     * @throws Throwable Any exception to throw from the intercepted method, or {@link #DECLINED}.
+     */
+    public double invokeDouble(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        return ((Double)this.invokeChecked(proxy, method, args)).doubleValue();
+    }
+
+    /**
+     * The {@link InvocationHandler} entry point, used by classes that were not intercepted in
+     * {@link DispatchMode#PRIMITIVE} mode. This unboxes the arguments into a frame, calls the typed
+     * method for the return type and boxes the result.
+     */
+    public final Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+    {
+        final NativeMethod nativeMethod = NativeMethodCache.forMethod(method);
+        final NativeFrame frame = NativeFrame.unbox(method.getParameterTypes(), args);
+        final Class<?> returnType = method.getReturnType();
+        if (!returnType.isPrimitive())
+            return this.invokeObject(proxy, nativeMethod, frame);
+        try
+        {
+            if (returnType == void.class)
+            {
+                this.invokeVoid(proxy, nativeMethod, frame);
+                return null;
+            }
+            if (returnType == boolean.class)
+                return Boolean.valueOf(this.invokeBoolean(proxy, nativeMethod, frame));
+            if (returnType == byte.class)
+                return Byte.valueOf(this.invokeByte(proxy, nativeMethod, frame));
+            if (returnType == char.class)
+                return Character.valueOf(this.invokeChar(proxy, nativeMethod, frame));
+            if (returnType == short.class)
+                return Short.valueOf(this.invokeShort(proxy, nativeMethod, frame));
+            if (returnType == int.class)
+                return Integer.valueOf(this.invokeInt(proxy, nativeMethod, frame));
+            if (returnType == long.class)
+                return Long.valueOf(this.invokeLong(proxy, nativeMethod, frame));
+            if (returnType == float.class)
+                return Float.valueOf(this.invokeFloat(proxy, nativeMethod, frame));
+            return Double.valueOf(this.invokeDouble(proxy, nativeMethod, frame));
+        }
+        catch (final Declined e)
+        {
+            return NativeInvocationHandler.PROCEED;
+        }
+    }
+
+    /**
+     * Call {@link #invokeObject(Object,NativeMethod,NativeFrame)} for a typed invoke method and
+     * check the value it returns.
+     *
+     * @throws Error {@link #DECLINED} when the handler returned {@link NativeInvocationHandler#PROCEED}.
+     */
+    private Object invokeChecked(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+    {
+        final Object value = this.invokeObject(proxy, method, args);
+        if (value == NativeInvocationHandler.PROCEED)
+            throw PrimitiveInvocationHandler.DECLINED;
+        return method.checkReturn(value);
+    }
+
+    /**
+     * Adapt a handler for use by code generated in {@link DispatchMode#PRIMITIVE} mode.
+     *
+     * @param handler The registered handler, or null.
+     * @return The handler itself when it is a {@link PrimitiveInvocationHandler}, otherwise an
+     *         adapter that boxes the arguments and passes them on.
+     */
+    static PrimitiveInvocationHandler adapt(final InvocationHandler handler)
+    {
+        if (handler == null || handler instanceof PrimitiveInvocationHandler)
+            return (PrimitiveInvocationHandler)handler;
+        return new Boxing(handler);
+    }
+
+    /**
+     * The fallback used for plain {@link InvocationHandler InvocationHandlers} registered for
+     * classes intercepted in {@link DispatchMode#PRIMITIVE} mode.
+     */
+    private static final class Boxing extends PrimitiveInvocationHandler
+    {
+        private final InvocationHandler handler;
+
+        Boxing(final InvocationHandler handler)
+        {
+            this.handler = handler;
+        }
+
+        @Override
+        public Object invokeObject(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+        {
+            final Object value = this.handler.invoke(proxy, method.getMethod(), args.box(method.getArgTypes()));
+            return value == NativeInvocationHandler.PROCEED ? value : method.checkReturn(value);
+        }
+    }
+
+    /**
+     * The type of {@link PrimitiveInvocationHandler#DECLINED}.
+     */
+    private static final class Declined extends Error
+    {
+        private static final long serialVersionUID = 1L;
+
+        Declined()
+        {
+            super("Invocation declined by handler");
+        }
+
+        @Override
+        public Throwable fillInStackTrace()
+        {
+            return this;
+        }
+    }
+}
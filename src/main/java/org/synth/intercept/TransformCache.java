@@ -0,0 +1,324 @@
+package org.synth.intercept;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A directory of transformed class bytes shared between VM runs, so that classes that have not
+ * changed are not run through ASM again. Entries are keyed by a hash of the library version, a
+ * description of the transformation, and the original class bytes, so a changed class or a new
+ * library version never sees stale bytes.
+ *
+ * Several VMs may share the same directory. Entries are written to a temporary file and renamed
+ * into place, so readers only ever see complete entries. Entries are read straight into the array
+ * handed back to the VM, since class bytes are small and the VM needs them on the heap anyway.
+ * Every hit updates the entry's modification time, and when the directory grows beyond its
+ * maximum size the least recently used entries are deleted.
+ */
+final class TransformCache
+{
+    /**
+     * Log for various logging events.
+     */
+    private static final Logger LOG = Logger.getLogger(TransformCache.class.getPackage().getName());
+
+    /**
+     * The suffix of complete cache entries.
+     */
+    private static final String ENTRY_SUFFIX = ".class";
+
+    /**
+     * The suffix of entries that are still being written.
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * How long a temporary file is left alone before it is assumed to belong to a writer that died.
+     */
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000L;
+
+    /**
+     * The magic number at the start of every class file.
+     */
+    private static final int MAGIC = 0xCAFEBABE;
+
+    /**
+     * The directory holding the entries.
+     */
+    private final File directory;
+
+    /**
+     * The maximum size of all the entries, in bytes.
+     */
+    private final long maxSize;
+
+    /**
+     * The library version, which is part of every key.
+     */
+    private final String version;
+
+    /**
+     * An estimate of the size of all the entries. Other VMs may add and evict entries too, so this
+     * is only used to decide when to look at the directory again.
+     */
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * Create a cache of transformed classes.
+     *
+     * @param directory The directory holding the entries. It is created when it does not exist.
+     * @param maxSize The maximum size of all the entries, in bytes.
+     * @param version The library version, which is part of every key.
+     * @throws IllegalArgumentException When the directory cannot be created.
+     */
+    TransformCache(final File directory, final long maxSize, final String version)
+    {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory())
+            throw new IllegalArgumentException("Unable to create cache directory " + directory);
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.version = version;
+        long total = 0;
+        for (final File entry : this.entries())
+            total += entry.length();
+        this.size.set(total);
+    }
+
+    /**
+     * Create a cache of transformed classes for this version of the library.
+     *
+     * @param directory The directory holding the entries.
+     * @param maxSize The maximum size of all the entries, in bytes.
+     * @return The cache, or null when the library version is not known (i.e. it was not loaded
+     *         from a released jar), since the cached bytes could not be told apart from those of
+     *         another build.
+     */
+    static TransformCache create(final File directory, final long maxSize)
+    {
+        final String version = TransformCache.class.getPackage().getImplementationVersion();
+        if (version == null)
+        {
+            TransformCache.LOG.warning("Library version unknown, not caching transformed classes in " + directory);
+            return null;
+        }
+        return new TransformCache(directory, maxSize, version);
+    }
+
+    /**
+     * Create the key for a transformation of some class bytes.
+     *
+     * @param transformation A description of the transformation, including anything that changes
+     *            its output.
+     * @param classfileBuffer The class bytes before the transformation.
+     * @return The key.
+     */
+    String key(final String transformation, final byte[] classfileBuffer)
+    {
+        try
+        {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(this.version.getBytes("UTF-8"));
+            digest.update((byte)0);
+            digest.update(transformation.getBytes("UTF-8"));
+            digest.update((byte)0);
+            digest.update(classfileBuffer);
+            final StringBuilder key = new StringBuilder();
+            for (final byte b : digest.digest())
+            {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16));
+                key.append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+        catch (final UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException("UTF-8 is not available", e);
+        }
+    }
+
+    /**
+     * Get the transformed class bytes for a key.
+     *
+     * @param key The key from {@link #key(String,byte[])}.
+     * @return The transformed bytes, or null when they are not cached.
+     */
+    byte[] get(final String key)
+    {
+        final File entry = new File(this.directory, key + TransformCache.ENTRY_SUFFIX);
+        if (!entry.isFile())
+            return null;
+        try
+        {
+            final RandomAccessFile file = new RandomAccessFile(entry, "r");
+            try
+            {
+                final long length = file.length();
+                if (length < 4 || length > Integer.MAX_VALUE || file.readInt() != TransformCache.MAGIC)
+                {
+                    TransformCache.LOG.warning("Ignoring corrupt cache entry " + entry);
+                    return null;
+                }
+                final byte[] bytes = new byte[(int)length];
+                file.seek(0);
+                file.readFully(bytes);
+                // mark the entry as recently used, for eviction
+                entry.setLastModified(System.currentTimeMillis());
+                return bytes;
+            }
+            finally
+            {
+                file.close();
+            }
+        }
+        catch (final IOException e)
+        {
+            // another VM may have evicted the entry
+            TransformCache.LOG.fine("Unable to read cache entry " + entry + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Store the transformed class bytes for a key. Failures are logged and otherwise ignored,
+     * since the class can always be transformed again.
+     *
+     * @param key The key from {@link #key(String,byte[])}.
+     * @param bytes The transformed class bytes.
+     */
+    void put(final String key, final byte[] bytes)
+    {
+        final File entry = new File(this.directory, key + TransformCache.ENTRY_SUFFIX);
+        File temp = null;
+        long added = 0;
+        try
+        {
+            temp = File.createTempFile(key, TransformCache.TEMP_SUFFIX, this.directory);
+            final FileOutputStream out = new FileOutputStream(temp);
+            try
+            {
+                out.write(bytes);
+            }
+            finally
+            {
+                out.close();
+            }
+            // another VM may have stored the same entry first, which is just as good
+            final boolean replaced = entry.isFile();
+            if (temp.renameTo(entry))
+            {
+                temp = null;
+                if (!replaced)
+                    added = bytes.length;
+            }
+            else if (entry.isFile())
+                temp = null;
+            else
+                TransformCache.LOG.fine("Unable to store cache entry " + entry);
+        }
+        catch (final IOException e)
+        {
+            TransformCache.LOG.fine("Unable to store cache entry " + entry + ": " + e);
+        }
+        finally
+        {
+            if (temp != null)
+                temp.delete();
+        }
+        // only a new entry grows the cache
+        if (added > 0 && this.size.addAndGet(added) > this.maxSize)
+            this.evict();
+    }
+
+    /**
+     * Delete the least recently used entries until the cache is back to three quarters of its
+     * maximum size, along with any temporary files left behind by writers that died.
+     */
+    private synchronized void evict()
+    {
+        if (this.size.get() <= this.maxSize)
+            return;
+        final long now = System.currentTimeMillis();
+        final File[] temps = this.directory.listFiles(new SuffixFilter(TransformCache.TEMP_SUFFIX));
+        if (temps != null)
+        {
+            for (final File temp : temps)
+            {
+                if (now - temp.lastModified() > TransformCache.STALE_TEMP_MILLIS)
+                    temp.delete();
+            }
+        }
+        final File[] entries = this.entries();
+        final long[] lastModified = new long[entries.length];
+        long total = 0;
+        for (int i = 0; i < entries.length; i++)
+        {
+            total += entries[i].length();
+            lastModified[i] = entries[i].lastModified();
+        }
+        // sort on a snapshot of the modification times, since other VMs may touch entries
+        final Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = Integer.valueOf(i);
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer a, final Integer b)
+            {
+                final long x = lastModified[a.intValue()];
+                final long y = lastModified[b.intValue()];
+                return x < y ? -1 : x == y ? 0 : 1;
+            }
+        });
+        final long target = this.maxSize / 4 * 3;
+        for (int i = 0; i < order.length && total > target; i++)
+        {
+            final File entry = entries[order[i].intValue()];
+            final long length = entry.length();
+            if (entry.delete())
+                total -= length;
+        }
+        this.size.set(total);
+        TransformCache.LOG.fine("Evicted cache entries in " + this.directory + " down to " + total + " bytes");
+    }
+
+    /**
+     * List the complete entries in the cache.
+     */
+    private File[] entries()
+    {
+        final File[] entries = this.directory.listFiles(new SuffixFilter(TransformCache.ENTRY_SUFFIX));
+        return entries == null ? new File[0] : entries;
+    }
+
+    /**
+     * Accepts the files with a given suffix.
+     */
+    private static final class SuffixFilter implements FileFilter
+    {
+        private final String suffix;
+
+        SuffixFilter(final String suffix)
+        {
+            this.suffix = suffix;
+        }
+
+        @Override
+        public boolean accept(final File file)
+        {
+            return file.getName().endsWith(this.suffix) && file.isFile();
+        }
+    }
+}
@@ -2,14 +2,28 @@ package org.synth.intercept;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.EmptyStackException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
 
 import junit.framework.Assert;
 import junit.framework.TestCase;
@@ -17,7 +31,10 @@ import junit.framework.TestCase;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.EmptyVisitor;
 import org.objectweb.asm.util.CheckClassAdapter;
 import org.objectweb.asm.util.TraceClassVisitor;
 
@@ -108,6 +125,41 @@ public class InstrumentationTest extends TestCase
         Assert.assertTrue(toAssert[0]);
     }
 
+    /**
+     * Tests that repeated invocations of an intercepted method are passed the same resolved
+     * {@link Method} rather than a fresh reflective copy.
+     *
+     * @throws Exception
+     */
+    public void testInterceptingReusesResolvedMethod() throws Exception
+    {
+        final ClassReader reader = new ClassReader(InstrumentationTest.class
+                .getResourceAsStream(InstrumentationTest.TEST_INTERCEPTING_DATA_RESOURCE));
+        final ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        final NativeInterceptingClassAdapter adapter = new NativeInterceptingClassAdapter(InstrumentationTest
+                .getClassAdapter(writer), Type.getType("Lorg/synth/intercept/data/TestInterceptingData;"));
+        reader.accept(adapter, 0);
+        final byte[] classBytes = writer.toByteArray();
+        final TestClassLoader loader = new TestClassLoader();
+        final Class<?> c = loader.testClass("org.synth.intercept.data.TestInterceptingData", classBytes);
+        final Method[] methods = new Method[2];
+        NativeInvocationHandler.registerHandler(c, new InvocationHandler() {
+            private int calls = 0;
+
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                methods[this.calls++] = method;
+                return null;
+            }
+        });
+        final Object data = c.newInstance();
+        c.getMethod("instanceObject").invoke(data);
+        c.getMethod("instanceObject").invoke(data);
+        Assert.assertEquals("instanceObject", methods[0].getName());
+        Assert.assertSame("The resolved method should be cached between invocations", methods[0], methods[1]);
+    }
+
     /**
      * Tests both the wrapping an intercepting transformations.
      * 
@@ -152,6 +204,889 @@ public class InstrumentationTest extends TestCase
         Assert.assertTrue(Arrays.equals(new int[] { 1, 2, 3 }, result));
     }
 
+    /**
+     * Tests that the wrapping transformation adds a static field for each wrapped method, and that
+     * the intercepting transformation caches the {@link NativeMethod} passed to the handler in it.
+     *
+     * @throws Exception
+     */
+    public void testInterceptingCachesNativeMethodInField() throws Exception
+    {
+        final Class<?> c = InstrumentationTest.wrapAndIntercept(DispatchMode.STATIC);
+        final Method[] invoked = new Method[1];
+        NativeInvocationHandler.registerHandler(c, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                invoked[0] = method;
+                return null;
+            }
+        });
+        final Field field = c.getDeclaredField(Constants.nativeMethodField("staticVoid", "()V"));
+        field.setAccessible(true);
+        Assert.assertTrue("The field should be synthetic", field.isSynthetic());
+        Assert.assertNull("The field should be initialized on first use", field.get(null));
+        c.getMethod("staticVoid").invoke(null);
+        final NativeMethod cached = (NativeMethod)field.get(null);
+        Assert.assertNotNull("The field should be initialized on first use", cached);
+        Assert.assertSame(cached.getMethod(), invoked[0]);
+    }
+
+    /**
+     * Tests both the wrapping and intercepting transformations when generating
+     * {@link DispatchMode#LINKED} dispatch code.
+     *
+     * @throws Exception
+     */
+    public void testWrappingAndInterceptingLinked() throws Exception
+    {
+        final Class<?> c = InstrumentationTest.wrapAndIntercept(DispatchMode.LINKED);
+        final boolean[] toAssert = new boolean[] { false };
+        NativeInvocationHandler.registerHandler(c, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                toAssert[0] = true;
+                Assert.assertEquals("instanceIntArray", method.getName());
+                if (args.length != 3)
+                    Assert.fail("Invalid argument length");
+                Assert.assertEquals("testinput", args[0].toString());
+                Assert.assertTrue(Arrays.equals(new float[] { 1.3f, 2.9f, 3 }, (float[])args[1]));
+                Assert.assertEquals("Hello, world!", args[2]);
+                return new int[] { 1, 2, 3 };
+            }
+        });
+        final Object data = c.newInstance();
+        final int[] result = (int[])c.getMethod("instanceIntArray", Object.class, float[].class, String.class).invoke(
+                data, new StringBuilder("testinput"), new float[] { 1.3f, 2.9f, 3 }, "Hello, world!");
+        Assert.assertTrue(toAssert[0]);
+        Assert.assertTrue(Arrays.equals(new int[] { 1, 2, 3 }, result));
+    }
+
+    /**
+     * Tests that {@link DispatchMode#LINKED} dispatch code follows the registry as handlers are
+     * registered, replaced and unregistered.
+     *
+     * @throws Exception
+     */
+    public void testLinkedDispatchRelinks() throws Exception
+    {
+        final Class<?> c = InstrumentationTest.wrapAndIntercept(DispatchMode.LINKED);
+        final Object first = new Object();
+        final Object second = new Object();
+        NativeInvocationHandler.registerHandler(c, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                Assert.assertSame("Static methods should be passed the declaring class", c, proxy);
+                return first;
+            }
+        });
+        Assert.assertSame(first, c.getMethod("staticObject").invoke(null));
+        NativeInvocationHandler.registerHandler(c, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                return second;
+            }
+        });
+        Assert.assertSame(second, c.getMethod("staticObject").invoke(null));
+        NativeInvocationHandler.unregisterHandler(c);
+        try
+        {
+            c.getMethod("staticObject").invoke(null);
+            Assert.fail("Expected exception not thrown...");
+        }
+        catch (final InvocationTargetException e)
+        {
+            Assert.assertTrue(e.getTargetException() instanceof UnsatisfiedLinkError);
+        }
+    }
+
+    /**
+     * Tests that {@link DispatchMode#PRIMITIVE} dispatch code passes primitive arguments and
+     * return values to a {@link PrimitiveInvocationHandler} without boxing.
+     *
+     * @throws Exception
+     */
+    public void testPrimitiveDispatch() throws Exception
+    {
+        final Class<?> c = InstrumentationTest.wrapAndIntercept(DispatchMode.PRIMITIVE);
+        NativeInvocationHandler.registerHandler(c, new PrimitiveInvocationHandler() {
+            @Override
+            public long invokeLong(final Object proxy, final NativeMethod method, final NativeFrame args)
+            {
+                Assert.assertEquals("instanceLong", method.getName());
+                Assert.assertEquals(3, args.size());
+                return args.getLong(0) + (long)args.getDouble(1) + ((String)args.getObject(2)).length();
+            }
+
+            @Override
+            public double invokeDouble(final Object proxy, final NativeMethod method, final NativeFrame args)
+            {
+                Assert.assertSame("Static methods should be passed the declaring class", c, proxy);
+                Assert.assertEquals('x', args.getChar(2));
+                Assert.assertTrue(args.getBoolean(3));
+                return args.getInt(0) * args.getFloat(1);
+            }
+        });
+        final Object data = c.newInstance();
+        Assert.assertEquals(Long.valueOf(Long.MAX_VALUE - 2),
+            c.getMethod("instanceLong", long.class, double.class, String.class).invoke(data, Long.MAX_VALUE - 10, 3.5, "abcde"));
+        Assert.assertEquals(Double.valueOf(-7.5),
+            c.getMethod("staticDouble", int.class, float.class, char.class, boolean.class).invoke(null, -3, 2.5f, 'x', true));
+    }
+
+    /**
+     * Tests that without passthrough, a handler declining an invocation by returning
+     * {@link NativeInvocationHandler#PROCEED} makes the method throw, in every dispatch mode,
+     * rather than return the sentinel.
+     *
+     * @throws Exception
+     */
+    public void testDecliningWithoutPassthrough() throws Exception
+    {
+        for (final DispatchMode mode : DispatchMode.values())
+        {
+            final Class<?> c = InstrumentationTest.wrapAndIntercept(mode);
+            NativeInvocationHandler.registerHandler(c, new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args)
+                {
+                    return NativeInvocationHandler.PROCEED;
+                }
+            });
+            for (final Method method : new Method[] { c.getMethod("instanceObject"), c.getMethod("staticObject") })
+            {
+                try
+                {
+                    method.invoke(c.newInstance());
+                    Assert.fail(mode + ": Declining without passthrough should not return");
+                }
+                catch (final InvocationTargetException e)
+                {
+                    Assert.assertTrue(mode + ": " + e.getTargetException(), e.getTargetException() instanceof UnsatisfiedLinkError);
+                }
+            }
+            NativeInvocationHandler.unregisterHandler(c);
+        }
+    }
+
+    /**
+     * Tests that with passthrough enabled, intercepted methods call the original native method
+     * when no handler is registered or the handler declines, in every dispatch mode. The original
+     * methods are not bound in this VM, so reaching one throws an {@link UnsatisfiedLinkError}
+     * naming the prefixed method.
+     *
+     * @throws Exception
+     */
+    public void testPassthrough() throws Exception
+    {
+        for (final DispatchMode mode : DispatchMode.values())
+        {
+            final Class<?> c = InstrumentationTest.wrapAndIntercept(mode, true);
+            final Object data = c.newInstance();
+            final Method instanceObject = c.getMethod("instanceObject");
+            final Method instanceLong = c.getMethod("instanceLong", long.class, double.class, String.class);
+            final Method staticDouble = c.getMethod("staticDouble", int.class, float.class, char.class, boolean.class);
+            InstrumentationTest.assertPassesThrough(mode, instanceObject, data);
+            InstrumentationTest.assertPassesThrough(mode, staticDouble, null, 1, 2.0f, 'c', true);
+
+            final Object result = new Object();
+            NativeInvocationHandler.registerHandler(c, new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+                {
+                    return "instanceObject".equals(method.getName()) ? result : NativeInvocationHandler.PROCEED;
+                }
+            });
+            Assert.assertSame(mode.toString(), result, instanceObject.invoke(data));
+            InstrumentationTest.assertPassesThrough(mode, instanceLong, data, 1L, 2.0, "a");
+            InstrumentationTest.assertPassesThrough(mode, staticDouble, null, 1, 2.0f, 'c', true);
+
+            NativeInvocationHandler.registerHandler(c, new PrimitiveInvocationHandler() {
+                @Override
+                public long invokeLong(final Object proxy, final NativeMethod method, final NativeFrame args)
+                {
+                    if (args.getLong(0) < 0)
+                        throw PrimitiveInvocationHandler.DECLINED;
+                    return args.getLong(0);
+                }
+            });
+            Assert.assertEquals(mode.toString(), Long.valueOf(3), instanceLong.invoke(data, 3L, 2.0, "a"));
+            InstrumentationTest.assertPassesThrough(mode, instanceLong, data, -3L, 2.0, "a");
+
+            // a value of the wrong type is still rejected by the return type check
+            NativeInvocationHandler.registerHandler(c, new PrimitiveInvocationHandler() {
+                @Override
+                public Object invokeObject(final Object proxy, final NativeMethod method, final NativeFrame args)
+                {
+                    return "not an int[]";
+                }
+            });
+            try
+            {
+                c.getMethod("staticIntArray", Object.class, float[].class, String.class).invoke(null, null, null, null);
+                Assert.fail(mode + ": Returning the wrong type should throw");
+            }
+            catch (final InvocationTargetException e)
+            {
+                Assert.assertTrue(mode + ": " + e.getTargetException(), e.getTargetException() instanceof IllegalStateException);
+            }
+            NativeInvocationHandler.unregisterHandler(c);
+        }
+    }
+
+    /**
+     * Tests that a {@link MemoizingHandler} remembers results by argument value, evicts the least
+     * recently used result when full, and calls the original native method on a miss.
+     *
+     * @throws Exception
+     */
+    public void testMemoizingHandler() throws Exception
+    {
+        final Class<?> c = InstrumentationTest.wrapAndIntercept(DispatchMode.PRIMITIVE);
+        final int[] loads = new int[1];
+        final MemoizingHandler handler = new MemoizingHandler(2) {
+            @Override
+            protected Object load(final Object proxy, final NativeMethod method, final NativeFrame args)
+            {
+                loads[0]++;
+                return Double.valueOf(args.getInt(0) * args.getFloat(1));
+            }
+        };
+        NativeInvocationHandler.registerHandler(c, handler);
+        final Method staticDouble = c.getMethod("staticDouble", int.class, float.class, char.class, boolean.class);
+        Assert.assertEquals(Double.valueOf(6), staticDouble.invoke(null, 3, 2.0f, 'c', true));
+        Assert.assertEquals(Double.valueOf(6), staticDouble.invoke(null, 3, 2.0f, 'c', true));
+        Assert.assertEquals("A remembered result should not be loaded again", 1, loads[0]);
+        Assert.assertEquals(Double.valueOf(8), staticDouble.invoke(null, 4, 2.0f, 'c', true));
+        Assert.assertEquals(Double.valueOf(10), staticDouble.invoke(null, 5, 2.0f, 'c', true));
+        Assert.assertEquals(Double.valueOf(6), staticDouble.invoke(null, 3, 2.0f, 'c', true));
+        Assert.assertEquals("The least recently used result should be evicted", 4, loads[0]);
+        Assert.assertEquals(1, handler.getHitCount());
+        Assert.assertEquals(4, handler.getMissCount());
+        Assert.assertEquals(2, handler.getEvictionCount());
+        Assert.assertEquals(2, handler.size());
+
+        NativeInvocationHandler.registerHandler(c, new MemoizingHandler(2));
+        try
+        {
+            staticDouble.invoke(null, 3, 2.0f, 'c', true);
+            Assert.fail("A miss should call the unbound native method");
+        }
+        catch (final InvocationTargetException e)
+        {
+            Assert.assertTrue(e.getTargetException() instanceof UnsatisfiedLinkError);
+            Assert.assertTrue(e.getTargetException().getMessage().indexOf(Constants.NATIVE_METHOD_PREFIX + "staticDouble") != -1);
+        }
+        NativeInvocationHandler.unregisterHandler(c);
+    }
+
+    /**
+     * Tests that a {@link MemoizingHandler} keys array arguments by their contents, hands out
+     * copies of remembered arrays, and loads a result again once it expires.
+     *
+     * @throws Exception
+     */
+    public void testMemoizingHandlerArraysAndExpiry() throws Exception
+    {
+        final Class<?> c = InstrumentationTest.wrapAndIntercept(DispatchMode.PRIMITIVE);
+        final int[] loads = new int[1];
+        final MemoizingHandler handler = new MemoizingHandler(8, 50, TimeUnit.MILLISECONDS) {
+            @Override
+            protected Object load(final Object proxy, final NativeMethod method, final NativeFrame args)
+            {
+                loads[0]++;
+                return new int[] { (int)((float[])args.getObject(1))[0], loads[0] };
+            }
+        };
+        NativeInvocationHandler.registerHandler(c, handler);
+        final Method staticIntArray = c.getMethod("staticIntArray", Object.class, float[].class, String.class);
+        final Object a = new Object();
+        final float[] b = new float[] { 3.0f };
+        final int[] first = (int[])staticIntArray.invoke(null, a, b, "c");
+        Assert.assertTrue(Arrays.equals(new int[] { 3, 1 }, first));
+        b[0] = 4.0f;
+        first[1] = -1;
+        final int[] second = (int[])staticIntArray.invoke(null, a, new float[] { 3.0f }, "c");
+        Assert.assertEquals("Array arguments should be compared by their contents when remembered", 1, loads[0]);
+        Assert.assertTrue("Changing a returned array should not change what is remembered",
+                          Arrays.equals(new int[] { 3, 1 }, second));
+        Assert.assertNotSame(first, second);
+        Assert.assertTrue(Arrays.equals(new int[] { 4, 2 }, (int[])staticIntArray.invoke(null, a, b, "c")));
+        Thread.sleep(100);
+        Assert.assertTrue("An expired result should be loaded again",
+                          Arrays.equals(new int[] { 3, 3 }, (int[])staticIntArray.invoke(null, a, new float[] { 3.0f }, "c")));
+        Assert.assertEquals(1, handler.getEvictionCount());
+        NativeInvocationHandler.unregisterHandler(c);
+    }
+
+    /**
+     * Tests that a {@link CoalescingHandler} lets an invocation made while an equal one is in
+     * flight wait for its result instead of calling the native method again.
+     *
+     * @throws Exception
+     */
+    public void testCoalescingHandler() throws Exception
+    {
+        final Class<?> c = InstrumentationTest.wrapAndIntercept(DispatchMode.PRIMITIVE);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CoalescingHandler handler = new CoalescingHandler() {
+            @Override
+            protected Object load(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+            {
+                loads.incrementAndGet();
+                release.await();
+                return Double.valueOf(args.getInt(0) * args.getFloat(1));
+            }
+        };
+        NativeInvocationHandler.registerHandler(c, handler);
+        final Method staticDouble = c.getMethod("staticDouble", int.class, float.class, char.class, boolean.class);
+        final AtomicReference<Object> coalesced = new AtomicReference<Object>();
+        final Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        coalesced.set(staticDouble.invoke(null, 3, 2.0f, 'c', true));
+                    }
+                    catch (final Exception e)
+                    {
+                        coalesced.set(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        // wait for one thread to be loading and the other to be waiting for it
+        while (handler.getCoalescedCount() == 0)
+            Thread.sleep(1);
+        release.countDown();
+        for (final Thread thread : threads)
+            thread.join();
+        Assert.assertEquals(Double.valueOf(6), coalesced.get());
+        Assert.assertEquals("Equal invocations in flight should call the native method once", 1, loads.get());
+        Assert.assertEquals(Double.valueOf(8), staticDouble.invoke(null, 4, 2.0f, 'c', true));
+        Assert.assertEquals("Invocations should not be remembered once complete", 2, loads.get());
+        final AtomicInteger depth = new AtomicInteger();
+        NativeInvocationHandler.registerHandler(c, new CoalescingHandler() {
+            @Override
+            protected Object load(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+            {
+                if (depth.getAndIncrement() == 0)
+                    return staticDouble.invoke(null, 3, 2.0f, 'c', true);
+                return Double.valueOf(1);
+            }
+        });
+        Assert.assertEquals("An invocation re-entered by its own thread should not wait for itself",
+                            Double.valueOf(1), staticDouble.invoke(null, 3, 2.0f, 'c', true));
+        NativeInvocationHandler.unregisterHandler(c);
+    }
+
+    /**
+     * Tests that offloaded calls are made on the pool, with their results and exceptions returned
+     * to the caller, and that platform threads make their calls directly.
+     *
+     * @throws Exception
+     */
+    public void testOffloadingHandler() throws Exception
+    {
+        final Class<?> c = InstrumentationTest.wrapAndIntercept(DispatchMode.PRIMITIVE);
+        final Thread caller = Thread.currentThread();
+        final AtomicBoolean offload = new AtomicBoolean();
+        final OffloadingHandler handler = new OffloadingHandler() {
+            @Override
+            protected Object load(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+            {
+                Assert.assertEquals("Calls should only leave the calling thread when offloaded",
+                    offload.get(), Thread.currentThread() != caller);
+                if (args.getInt(0) < 0)
+                    throw new EmptyStackException();
+                return Double.valueOf(args.getInt(0) * args.getFloat(1));
+            }
+
+            @Override
+            protected boolean isOffloaded(final NativeMethod method)
+            {
+                return offload.get();
+            }
+        };
+        NativeInvocationHandler.registerHandler(c, handler);
+        final Method staticDouble = c.getMethod("staticDouble", int.class, float.class, char.class, boolean.class);
+        Assert.assertFalse(OffloadingHandler.isVirtual(caller));
+        Assert.assertEquals(Double.valueOf(6), staticDouble.invoke(null, 3, 2.0f, 'c', true));
+        Assert.assertEquals(0, handler.getOffloadedCount());
+        offload.set(true);
+        Assert.assertEquals(Double.valueOf(8), staticDouble.invoke(null, 4, 2.0f, 'c', true));
+        try
+        {
+            staticDouble.invoke(null, -1, 2.0f, 'c', true);
+            Assert.fail("Expected the exception thrown on the pool");
+        }
+        catch (final InvocationTargetException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof EmptyStackException);
+        }
+        Assert.assertEquals(2, handler.getOffloadedCount());
+        NativeInvocationHandler.unregisterHandler(c);
+    }
+
+    /**
+     * Tests that calls from virtual threads are offloaded to platform threads, when the VM has
+     * virtual threads.
+     *
+     * @throws Exception
+     */
+    public void testOffloadingVirtualThreads() throws Exception
+    {
+        final Method startVirtualThread;
+        try
+        {
+            startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+        }
+        catch (final NoSuchMethodException e)
+        {
+            return;
+        }
+        final Class<?> c = InstrumentationTest.wrapAndIntercept(DispatchMode.PRIMITIVE);
+        final AtomicReference<Thread> loader = new AtomicReference<Thread>();
+        final OffloadingHandler handler = new OffloadingHandler() {
+            @Override
+            protected Object load(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+            {
+                loader.set(Thread.currentThread());
+                return Double.valueOf(args.getInt(0) * args.getFloat(1));
+            }
+        };
+        NativeInvocationHandler.registerHandler(c, handler);
+        final Method staticDouble = c.getMethod("staticDouble", int.class, float.class, char.class, boolean.class);
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        final Thread thread = (Thread)startVirtualThread.invoke(null, new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    result.set(staticDouble.invoke(null, 3, 2.0f, 'c', true));
+                }
+                catch (final Exception e)
+                {
+                    result.set(e);
+                }
+            }
+        });
+        thread.join();
+        Assert.assertTrue(OffloadingHandler.isVirtual(thread));
+        Assert.assertEquals(Double.valueOf(6), result.get());
+        Assert.assertFalse("Calls from virtual threads should be made on platform threads", OffloadingHandler.isVirtual(loader.get()));
+        Assert.assertEquals(1, handler.getOffloadedCount());
+        NativeInvocationHandler.unregisterHandler(c);
+    }
+
+    /**
+     * Tests that confined invocations run on a single dedicated thread, and that a limit rejects
+     * the invocations that wait too long for their turn.
+     *
+     * @throws Exception
+     */
+    public void testConcurrencyPolicy() throws Exception
+    {
+        final Class<?> c = InstrumentationTest.wrapAndIntercept(DispatchMode.PRIMITIVE);
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final CountDownLatch release = new CountDownLatch(1);
+        NativeInvocationHandler.registerHandler(c, new PrimitiveInvocationHandler() {
+            @Override
+            public double invokeDouble(final Object proxy, final NativeMethod method, final NativeFrame args) throws Throwable
+            {
+                threads.add(Thread.currentThread());
+                if (args.getInt(0) < 0)
+                    release.await();
+                return args.getInt(0) * args.getFloat(1);
+            }
+        });
+        final Method staticDouble = c.getMethod("staticDouble", int.class, float.class, char.class, boolean.class);
+        final ConcurrencyPolicy confined = ConcurrencyPolicy.confined();
+        NativeInterceptor.constrain(staticDouble, confined);
+        Assert.assertEquals(Double.valueOf(6), staticDouble.invoke(null, 3, 2.0f, 'c', true));
+        Assert.assertEquals(Double.valueOf(8), staticDouble.invoke(null, 4, 2.0f, 'c', true));
+        Assert.assertEquals("Confined invocations should run on one dedicated thread", 1, threads.size());
+        Assert.assertFalse(threads.contains(Thread.currentThread()));
+        Assert.assertEquals(2, confined.getCallCount());
+
+        final ConcurrencyPolicy limit = ConcurrencyPolicy.limit(1, 10, TimeUnit.MILLISECONDS);
+        NativeInterceptor.constrain(c, limit);
+        confined.shutdown();
+        final Thread confinedThread = threads.iterator().next();
+        confinedThread.join(1000);
+        Assert.assertFalse("The confined thread should stop once shut down", confinedThread.isAlive());
+        final Thread holder = new Thread() {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    staticDouble.invoke(null, -1, 2.0f, 'c', true);
+                }
+                catch (final Exception e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        holder.start();
+        // wait for the other thread to hold the only permit
+        while (limit.getCallCount() == 0)
+            Thread.sleep(1);
+        try
+        {
+            staticDouble.invoke(null, 3, 2.0f, 'c', true);
+            Assert.fail("Expected the invocation to time out waiting for the permit");
+        }
+        catch (final InvocationTargetException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        Assert.assertEquals(1, limit.getRejectedCount());
+        Assert.assertEquals(1, limit.getPeakQueueDepth());
+        release.countDown();
+        holder.join();
+        Assert.assertEquals(Double.valueOf(6), staticDouble.invoke(null, 3, 2.0f, 'c', true));
+        Assert.assertEquals(2, limit.getCallCount());
+        Assert.assertEquals(0, limit.getQueueDepth());
+        Assert.assertEquals("The confined policy should have been replaced", 2, confined.getCallCount());
+        NativeInterceptor.constrain(c, null);
+        NativeInvocationHandler.unregisterHandler(c);
+    }
+
+    /**
+     * Tests that only the selected methods are intercepted, and the other wrapped methods still
+     * call their native methods directly.
+     *
+     * @throws Exception
+     */
+    public void testSelectiveIntercepting() throws Exception
+    {
+        final Class<?> c = InstrumentationTest.wrapAndIntercept(DispatchMode.STATIC, false,
+            Collections.singleton("instanceObject()Ljava/lang/Object;"));
+        final Object result = new Object();
+        NativeInvocationHandler.registerHandler(c, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                return result;
+            }
+        });
+        final Object data = c.newInstance();
+        Assert.assertNotNull(c.getMethod("instanceObject").getAnnotation(Intercepted.class));
+        Assert.assertSame(result, c.getMethod("instanceObject").invoke(data));
+        Assert.assertNull(c.getMethod("instanceVoid").getAnnotation(Intercepted.class));
+        InstrumentationTest.assertPassesThrough(DispatchMode.STATIC, c.getMethod("instanceVoid"), data);
+        InstrumentationTest.assertPassesThrough(DispatchMode.STATIC, c.getMethod("staticObject"), null);
+        NativeInvocationHandler.unregisterHandler(c);
+    }
+
+    /**
+     * Tests that the prescan agrees with ASM on whether classes declare native methods that are
+     * not yet wrapped, and falls back to reporting natives for bytes it cannot read.
+     *
+     * @throws Exception
+     */
+    public void testNativeMethodScanner() throws Exception
+    {
+        final String[] resources = new String[] {
+            InstrumentationTest.TEST_WRAPPING_DATA_RESOURCE, InstrumentationTest.TEST_INTERCEPTING_DATA_RESOURCE,
+            "/org/synth/intercept/InstrumentationTest.class", "/java/lang/Object.class", "/java/lang/String.class",
+            "/java/lang/Thread.class", "/java/util/HashMap.class"
+        };
+        for (final String resource : resources)
+        {
+            final ClassReader reader = new ClassReader(InstrumentationTest.class.getResourceAsStream(resource));
+            final AtomicBoolean hasNatives = new AtomicBoolean();
+            reader.accept(new EmptyVisitor() {
+                @Override
+                public MethodVisitor visitMethod(final int access, final String name, final String desc,
+                                                 final String signature, final String[] exceptions)
+                {
+                    if ((access & Opcodes.ACC_NATIVE) != 0 && !name.startsWith(Constants.NATIVE_METHOD_PREFIX))
+                        hasNatives.set(true);
+                    return null;
+                }
+            }, ClassReader.SKIP_CODE);
+            Assert.assertEquals(resource, hasNatives.get(), NativeMethodScanner.mayHaveUnwrappedNatives(reader.b));
+        }
+        final byte[] bytes = new ClassReader(InstrumentationTest.class
+                .getResourceAsStream("/org/synth/intercept/InstrumentationTest.class")).b;
+        Assert.assertTrue(NativeMethodScanner.mayHaveUnwrappedNatives(Arrays.copyOf(bytes, bytes.length / 2)));
+        Assert.assertTrue(NativeMethodScanner.mayHaveUnwrappedNatives(new byte[0]));
+    }
+
+    /**
+     * Tests the glob patterns of the class name filter.
+     */
+    public void testGlobClassnameFilter()
+    {
+        final GlobClassnameFilter filter =
+            GlobClassnameFilter.parse("com.acme.**:org/example/*:org.example.Native$*:net.*.impl.Fixed", ':');
+        Assert.assertTrue(filter.matches("com/acme/Foo"));
+        Assert.assertTrue(filter.matches("com/acme/sub/pkg/Foo$Bar"));
+        Assert.assertFalse(filter.matches("com/acmeish/Foo"));
+        Assert.assertFalse(filter.matches("com/acme"));
+        Assert.assertTrue(filter.matches("org/example/Foo"));
+        Assert.assertFalse(filter.matches("org/example/sub/Foo"));
+        Assert.assertTrue(filter.matches("org/example/Native$Inner"));
+        Assert.assertTrue(filter.matches("net/any/impl/Fixed"));
+        Assert.assertFalse(filter.matches("net/any/impl/Fixed2"));
+        Assert.assertFalse(filter.matches("net/a/b/impl/Fixed"));
+        Assert.assertFalse(filter.matches("java/lang/String"));
+        Assert.assertFalse(filter.matches(null));
+        try
+        {
+            GlobClassnameFilter.parse("com.acme.**::org.example.*", ':');
+            Assert.fail("Empty patterns should be rejected");
+        }
+        catch (final IllegalArgumentException expected)
+        {
+        }
+        Assert.assertTrue(NativeInterceptorAgent.isExcluded("java/lang/String"));
+        Assert.assertTrue(NativeInterceptorAgent.isExcluded("com/sun/Foo"));
+        Assert.assertFalse(NativeInterceptorAgent.isExcluded("com/sunny/Foo"));
+    }
+
+    /**
+     * Tests that the offline tool wraps the classes with native methods in a jar, copies the other
+     * entries unchanged, and that its output is left alone by the wrapping transformer.
+     *
+     * @throws Exception
+     */
+    public void testJarWrapper() throws Exception
+    {
+        final byte[] data = new ClassReader(InstrumentationTest.class
+                .getResourceAsStream(InstrumentationTest.TEST_WRAPPING_DATA_RESOURCE)).b;
+        final byte[] test = new ClassReader(InstrumentationTest.class
+                .getResourceAsStream("/org/synth/intercept/InstrumentationTest.class")).b;
+        final File in = File.createTempFile("unwrapped", ".jar");
+        final File out = File.createTempFile("wrapped", ".jar");
+        try
+        {
+            final JarOutputStream jarOut = new JarOutputStream(new FileOutputStream(in));
+            jarOut.putNextEntry(new JarEntry("org/synth/intercept/data/TestWrappingData.class"));
+            jarOut.write(data);
+            jarOut.putNextEntry(new JarEntry("org/synth/intercept/InstrumentationTest.class"));
+            jarOut.write(test);
+            jarOut.close();
+            Assert.assertEquals(1, new JarWrapper(2).wrap(in, out));
+            final JarFile jar = new JarFile(out);
+            try
+            {
+                final byte[] wrapped = new ClassReader(jar.getInputStream(
+                    jar.getJarEntry("org/synth/intercept/data/TestWrappingData.class"))).b;
+                Assert.assertTrue(Arrays.equals(NativeWrappingTransformer.wrap("org/synth/intercept/data/TestWrappingData", data), wrapped));
+                Assert.assertTrue(Arrays.equals(test, new ClassReader(jar.getInputStream(
+                    jar.getJarEntry("org/synth/intercept/InstrumentationTest.class"))).b));
+                Assert.assertFalse(NativeMethodScanner.mayHaveUnwrappedNatives(wrapped));
+                Assert.assertNull(new NativeWrappingTransformer().transform(
+                    null, "org/synth/intercept/data/TestWrappingData", null, null, wrapped));
+            }
+            finally
+            {
+                jar.close();
+            }
+        }
+        finally
+        {
+            in.delete();
+            out.delete();
+        }
+    }
+
+    /**
+     * Tests that the transformed class cache returns stored bytes, keys them on the version,
+     * transformation and original bytes, and evicts the least recently used entries.
+     *
+     * @throws Exception
+     */
+    public void testTransformCache() throws Exception
+    {
+        final File directory = File.createTempFile("transform-cache", "");
+        directory.delete();
+        try
+        {
+            final ClassReader reader = new ClassReader(InstrumentationTest.class
+                    .getResourceAsStream(InstrumentationTest.TEST_WRAPPING_DATA_RESOURCE));
+            final ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+            reader.accept(new NativeWrappingClassAdapter(writer, Type.getType("Lorg/synth/intercept/data/TestWrappingData;")), 0);
+            final byte[] original = reader.b;
+            final byte[] transformed = writer.toByteArray();
+            // room for two entries, so that the third evicts just the oldest
+            final TransformCache cache = new TransformCache(directory, transformed.length * 3 - 1, "1.0");
+            final String key = cache.key("wrap", original);
+            Assert.assertNull(cache.get(key));
+            cache.put(key, transformed);
+            Assert.assertTrue(Arrays.equals(transformed, cache.get(key)));
+            // storing the same entry again does not count towards the size
+            cache.put(key, transformed);
+            cache.put(key, transformed);
+            Assert.assertTrue(Arrays.equals(transformed, cache.get(key)));
+            Assert.assertFalse(key.equals(cache.key("intercept", original)));
+            Assert.assertFalse(key.equals(new TransformCache(directory, transformed.length * 3 - 1, "2.0").key("wrap", original)));
+            Assert.assertFalse(key.equals(cache.key("wrap", Arrays.copyOf(original, original.length - 1))));
+            // the third entry takes the cache over its maximum size, evicting the oldest entry
+            new File(directory, key + ".class").setLastModified(System.currentTimeMillis() - 60000);
+            cache.put(cache.key("other", original), transformed);
+            cache.put(cache.key("third", original), transformed);
+            Assert.assertNull(cache.get(key));
+            Assert.assertNotNull(cache.get(cache.key("other", original)));
+            Assert.assertNotNull(cache.get(cache.key("third", original)));
+            Assert.assertEquals(0, directory.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(final File dir, final String name)
+                {
+                    return name.endsWith(".tmp");
+                }
+            }).length);
+        }
+        finally
+        {
+            for (final File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+
+    /**
+     * Tests that intercepted methods keep dispatching to a registered handler while handlers are
+     * registered and unregistered concurrently, in both the static and linked dispatch modes.
+     *
+     * @throws Exception
+     */
+    public void testConcurrentRegistration() throws Exception
+    {
+        final Class<?>[] classes = new Class<?>[] {
+            InstrumentationTest.wrapAndIntercept(DispatchMode.STATIC),
+            InstrumentationTest.wrapAndIntercept(DispatchMode.LINKED)
+        };
+        final Class<?> other = InstrumentationTest.wrapAndIntercept(DispatchMode.STATIC);
+        final Object[] results = new Object[] { new Object(), new Object() };
+        final InvocationHandler[] handlers = new InvocationHandler[results.length];
+        for (int i = 0; i < results.length; i++)
+        {
+            final Object result = results[i];
+            handlers[i] = new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+                {
+                    return result;
+                }
+            };
+        }
+        for (final Class<?> c : classes)
+            NativeInvocationHandler.registerHandler(c, handlers[0]);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicBoolean done = new AtomicBoolean();
+        final Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++)
+        {
+            readers[i] = new Thread() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        final Object[] instances = new Object[classes.length];
+                        final Method[] methods = new Method[classes.length];
+                        for (int j = 0; j < classes.length; j++)
+                        {
+                            instances[j] = classes[j].newInstance();
+                            methods[j] = classes[j].getMethod("instanceObject");
+                        }
+                        for (int j = 0; j < 20000 && failure.get() == null; j++)
+                        {
+                            final Object result = methods[j % methods.length].invoke(instances[j % instances.length]);
+                            if (result != results[0] && result != results[1])
+                                Assert.fail("Unexpected result " + result);
+                        }
+                    }
+                    catch (final Throwable t)
+                    {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+        }
+        final Thread writer = new Thread() {
+            @Override
+            public void run()
+            {
+                for (int i = 0; !done.get(); i++)
+                {
+                    NativeInvocationHandler.registerHandler(classes[i % classes.length], handlers[i % handlers.length]);
+                    if (i % 2 == 0)
+                        NativeInvocationHandler.registerHandler(other, handlers[0]);
+                    else
+                        NativeInvocationHandler.unregisterHandler(other);
+                }
+            }
+        };
+        writer.start();
+        for (final Thread reader : readers)
+            reader.start();
+        for (final Thread reader : readers)
+            reader.join();
+        done.set(true);
+        writer.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        for (final Class<?> c : classes)
+        {
+            NativeInvocationHandler.registerHandler(c, handlers[1]);
+            Assert.assertSame("The last registered handler should be used", results[1],
+                c.getMethod("instanceObject").invoke(c.newInstance()));
+            NativeInvocationHandler.unregisterHandler(c);
+        }
+        NativeInvocationHandler.unregisterHandler(other);
+    }
+
+    /**
+     * Tests that plain {@link InvocationHandler InvocationHandlers} still work for classes
+     * intercepted in {@link DispatchMode#PRIMITIVE} mode, and that a
+     * {@link PrimitiveInvocationHandler} works for classes intercepted in the other modes.
+     *
+     * @throws Exception
+     */
+    public void testPrimitiveDispatchFallbacks() throws Exception
+    {
+        final Class<?> primitive = InstrumentationTest.wrapAndIntercept(DispatchMode.PRIMITIVE);
+        NativeInvocationHandler.registerHandler(primitive, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+            {
+                Assert.assertEquals(Long.valueOf(7), args[0]);
+                Assert.assertEquals(Double.valueOf(0.5), args[1]);
+                return Long.valueOf(11);
+            }
+        });
+        Assert.assertEquals(Long.valueOf(11),
+            primitive.getMethod("instanceLong", long.class, double.class, String.class).invoke(primitive.newInstance(), 7, 0.5, "a"));
+
+        final Class<?> boxed = InstrumentationTest.wrapAndIntercept(DispatchMode.STATIC);
+        NativeInvocationHandler.registerHandler(boxed, new PrimitiveInvocationHandler() {
+            @Override
+            public long invokeLong(final Object proxy, final NativeMethod method, final NativeFrame args)
+            {
+                return args.getLong(0) * 2;
+            }
+        });
+        Assert.assertEquals(Long.valueOf(14),
+            boxed.getMethod("instanceLong", long.class, double.class, String.class).invoke(boxed.newInstance(), 7, 0.5, "a"));
+    }
+
     /**
      * Tests both the wrapping and intercepting transformations work correctly
      * when the {@link InvocationHandler} throws a declared exception.
@@ -198,6 +1133,38 @@ public class InstrumentationTest extends TestCase
         Assert.assertTrue(toAssert[0]);
     }
 
+    /**
+     * Runs the wrapping and intercepting transformations over the wrapping test data and loads
+     * the result in a new class loader.
+     *
+     * @param mode The dispatch mode for the intercepting transformation.
+     * @return The transformed class.
+     */
+    static Class<?> wrapAndIntercept(final DispatchMode mode) throws IOException
+    {
+        return InstrumentationTest.wrapAndIntercept(mode, false);
+    }
+
+    static Class<?> wrapAndIntercept(final DispatchMode mode, final boolean passthrough) throws IOException
+    {
+        return InstrumentationTest.wrapAndIntercept(mode, passthrough, null);
+    }
+
+    static Class<?> wrapAndIntercept(final DispatchMode mode, final boolean passthrough, final Set<String> selected)
+        throws IOException
+    {
+        final Type type = Type.getType("Lorg/synth/intercept/data/TestWrappingData;");
+        ClassReader reader = new ClassReader(InstrumentationTest.class
+                .getResourceAsStream(InstrumentationTest.TEST_WRAPPING_DATA_RESOURCE));
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(new NativeWrappingClassAdapter(InstrumentationTest.getClassAdapter(writer), type), 0);
+        reader = new ClassReader(writer.toByteArray());
+        writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(new NativeInterceptingClassAdapter(InstrumentationTest.getClassAdapter(writer), type, mode, passthrough, selected), 0);
+        final byte[] classBytes = writer.toByteArray();
+        return new TestClassLoader().testClass("org.synth.intercept.data.TestWrappingData", classBytes);
+    }
+
     /**
      * Adds a layer of indirection to allow easy wrapping of the class wrapper
      * for debugging purposes.
@@ -259,6 +1226,25 @@ public class InstrumentationTest extends TestCase
      * testing bytecode generation without running this test with the -javaagent
      * VM flag.
      */
+    /**
+     * Assert that invoking the given method reaches the original native method.
+     */
+    static void assertPassesThrough(final DispatchMode mode, final Method method, final Object instance, final Object... args)
+        throws Exception
+    {
+        try
+        {
+            method.invoke(instance, args);
+            Assert.fail("Expected exception not thrown...");
+        }
+        catch (final InvocationTargetException e)
+        {
+            Assert.assertTrue(mode + ": " + e.getTargetException(), e.getTargetException() instanceof UnsatisfiedLinkError);
+            Assert.assertTrue(mode + ": " + e.getTargetException(),
+                e.getTargetException().getMessage().indexOf(Constants.NATIVE_METHOD_PREFIX + method.getName()) != -1);
+        }
+    }
+
     static class TestClassLoader extends ClassLoader
     {
         public Class<?> testClass(final String name, final byte[] bytes)
@@ -65,4 +65,27 @@ public class TestWrappingData
      * @throws EmptyStackException Whenever thrown by the {@link InvocationHandler} registered to this class.
      */
     public static native int[] staticIntArray(Object a, float[] b, String c) throws IOException, EmptyStackException;
-}
\ No newline at end of file
+
+    /**
+     * An instance method with primitive arguments and a primitive return value. Tests that
+     * instrumentation passes primitives through correctly in the instance context.
+     *
+     * @param a A parameter.
+     * @param b A parameter.
+     * @param c A parameter.
+     * @return Whatever is returned by the {@link InvocationHandler} registered to this class.
+     */
+    public native long instanceLong(long a, double b, String c);
+
+    /**
+     * A static method with primitive arguments and a primitive return value. Tests that
+     * instrumentation passes primitives through correctly in the static context.
+     *
+     * @param a A parameter.
+     * @param b A parameter.
+     * @param c A parameter.
+     * @param d A parameter.
+     * @return Whatever is returned by the {@link InvocationHandler} registered to this class.
+     */
+    public static native double staticDouble(int a, float b, char c, boolean d);
+}
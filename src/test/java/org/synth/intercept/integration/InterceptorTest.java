@@ -1,14 +1,33 @@
 package org.synth.intercept.integration;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.ObjectName;
 
 import junit.framework.TestCase;
 
 import org.synth.intercept.ClassnameFilter;
+import org.synth.intercept.CoalescingHandler;
+import org.synth.intercept.DispatchMode;
+import org.synth.intercept.GlobClassnameFilter;
+import org.synth.intercept.HasInterceptedNatives;
+import org.synth.intercept.Intercepted;
+import org.synth.intercept.InterceptedAtLoad;
+import org.synth.intercept.InvocationStatistics;
 import org.synth.intercept.NativeInterceptor;
+import org.synth.intercept.NativeEvents;
+import org.synth.intercept.NativeFrame;
 import org.synth.intercept.NativeInterceptorAgent;
+import org.synth.intercept.NativeMethod;
+import org.synth.intercept.NativeMethodMetrics;
+import org.synth.intercept.OffloadingHandler;
 import org.synth.intercept.data.TestWrappingData;
 
 public class InterceptorTest extends TestCase
@@ -77,6 +96,301 @@ public class InterceptorTest extends TestCase
         assertTrue("Object returned should be the one from the proxy", returnValue == returned);
     }
 
+    public void testInterceptingInheritedInstanceObject() throws Exception
+    {
+        Object returnValue = new Object();
+        RESULT.setReturnValue(returnValue);
+        // Created reflectively so that verifying this class does not load TestWrappingData
+        // before the agent is enabled.
+        TestWrappingData data = (TestWrappingData)InheritingData.class.newInstance();
+        Object returned = data.instanceObject();
+        assertTrue("Subclass instances should use the handler of the intercepted superclass", RESULT.isInvoked());
+        assertTrue("Incorrect proxy object", data == RESULT.getProxy());
+        assertTrue("Object returned should be the one from the proxy", returnValue == returned);
+    }
+
+    public void testRestoringUninterceptedClass() throws Exception
+    {
+        NativeInterceptor.intercept(TestWrappingData.class, null, false);
+        try
+        {
+            assertNull("Restored class should not be marked as intercepted",
+                       TestWrappingData.class.getAnnotation(HasInterceptedNatives.class));
+            assertNull("Restored method should not be marked as intercepted",
+                       TestWrappingData.class.getMethod("staticVoid").getAnnotation(Intercepted.class));
+            try
+            {
+                TestWrappingData.staticVoid();
+                fail("Restored method should call the unbound native method");
+            }
+            catch (UnsatisfiedLinkError e)
+            {
+                assertTrue("Restored method should call the native method directly",
+                           e.getMessage().indexOf("staticVoid") != -1);
+            }
+            assertFalse("Invocation method should not be called once restored", RESULT.isInvoked());
+        }
+        finally
+        {
+            NativeInterceptor.intercept(TestWrappingData.class, RESULT, false);
+        }
+        assertNotNull("Class should be marked as intercepted again",
+                      TestWrappingData.class.getAnnotation(HasInterceptedNatives.class));
+        TestWrappingData.staticVoid();
+        assertTrue("Invocation method should be called once intercepted again", RESULT.isInvoked());
+    }
+
+    public void testCoalescingAndOffloadingMethods() throws Exception
+    {
+        final Method staticObject = TestWrappingData.class.getMethod("staticObject");
+        final Method staticVoid = TestWrappingData.class.getMethod("staticVoid");
+        try
+        {
+            NativeInterceptor.coalesce(staticObject);
+            fail("Methods should not be coalesced while another handler is registered");
+        }
+        catch (IllegalStateException expected)
+        {
+        }
+        NativeInterceptor.intercept(TestWrappingData.class, null, false);
+        try
+        {
+            NativeInterceptor.coalesce(staticObject);
+            NativeInterceptor.coalesce(staticVoid);
+            assertNotNull("Coalesced method should be intercepted", staticObject.getAnnotation(Intercepted.class));
+            assertNotNull("Coalesced methods should share the class handler", staticVoid.getAnnotation(Intercepted.class));
+            try
+            {
+                TestWrappingData.staticObject();
+                fail("Coalesced method should call the unbound native method");
+            }
+            catch (UnsatisfiedLinkError expected)
+            {
+            }
+            try
+            {
+                NativeInterceptor.offload(staticObject);
+                fail("Methods should not be offloaded while a coalescing handler is registered");
+            }
+            catch (IllegalStateException expected)
+            {
+            }
+
+            final Object coalesced = new Object();
+            NativeInterceptor.intercept(TestWrappingData.class, new CoalescingHandler() {
+                @Override
+                protected Object load(Object proxy, NativeMethod method, NativeFrame args)
+                {
+                    return coalesced;
+                }
+            }, false);
+            NativeInterceptor.coalesce(staticObject);
+            assertSame("Coalescing a method already coalesced should keep the handler", coalesced, TestWrappingData.staticObject());
+
+            final Object offloaded = new Object();
+            NativeInterceptor.intercept(TestWrappingData.class, new OffloadingHandler() {
+                @Override
+                protected Object load(Object proxy, NativeMethod method, NativeFrame args)
+                {
+                    return offloaded;
+                }
+            }, false);
+            NativeInterceptor.offload(staticObject);
+            assertSame("Offloading a method already offloaded should keep the handler", offloaded, TestWrappingData.staticObject());
+        }
+        finally
+        {
+            NativeInterceptor.intercept(TestWrappingData.class, RESULT, false);
+        }
+    }
+
+    public void testBatchIntercepting() throws Exception
+    {
+        long pause = NativeInterceptor.intercept(Collections.<Class<?>,InvocationHandler>singletonMap(TestWrappingData.class, RESULT));
+        assertTrue("The retransformation pause should be reported", pause > 0);
+        TestWrappingData.staticVoid();
+        assertTrue("Invocation method should be called upon invocation", RESULT.isInvoked());
+        RESULT.reset();
+        pause = NativeInterceptor.intercept(TestWrappingData.class.getPackage().getName(), RESULT);
+        assertTrue("The retransformation pause should be reported", pause > 0);
+        TestWrappingData.staticVoid();
+        assertTrue("Invocation method should be called upon invocation", RESULT.isInvoked());
+    }
+
+    public void testInterceptingAtLoad() throws Exception
+    {
+        NativeInterceptorAgent.setEagerFilter(new GlobClassnameFilter("org.synth.intercept.integration.InterceptorTest$EagerData"));
+        Class<?> type;
+        try
+        {
+            // Loaded by name so that it is only loaded once the eager filter is set.
+            type = Class.forName("org.synth.intercept.integration.InterceptorTest$EagerData");
+        }
+        finally
+        {
+            NativeInterceptorAgent.setEagerFilter(null);
+        }
+        assertNotNull("Class should be marked as intercepted at load",
+                      type.getAnnotation(InterceptedAtLoad.class));
+        Method method = type.getMethod("staticObject");
+        assertPassesThroughToNative(method);
+        long pause = NativeInterceptor.intercept(Collections.<Class<?>,InvocationHandler>singletonMap(type, RESULT));
+        assertEquals("Classes intercepted at load should not be retransformed", 0, pause);
+        Object returnValue = new Object();
+        RESULT.setReturnValue(returnValue);
+        assertSame("Object returned should be the one from the proxy", returnValue, method.invoke(null));
+        assertTrue("Invocation method should be called once a handler is registered", RESULT.isInvoked());
+        NativeInterceptor.intercept(type, null, false);
+        RESULT.reset();
+        assertPassesThroughToNative(method);
+        assertFalse("Invocation method should not be called once the handler is unregistered", RESULT.isInvoked());
+    }
+
+    private static void assertPassesThroughToNative(Method method) throws Exception
+    {
+        try
+        {
+            method.invoke(null);
+            fail("Method without a handler should call the unbound native method");
+        }
+        catch (InvocationTargetException e)
+        {
+            assertTrue("Method without a handler should call the native method",
+                       e.getTargetException() instanceof UnsatisfiedLinkError);
+        }
+    }
+
+    public void testPublishingNativeInvocationEvents() throws Exception
+    {
+        Class<?> type = loadEagerly("org.synth.intercept.integration.InterceptorTest$EventData", DispatchMode.STATIC);
+        Class<?> primitiveType = loadEagerly("org.synth.intercept.integration.InterceptorTest$PrimitiveEventData", DispatchMode.PRIMITIVE);
+        Method method = type.getMethod("staticObject");
+        Method primitiveMethod = primitiveType.getMethod("staticObject");
+        if (!NativeEvents.enable())
+        {
+            // Without Java Flight Recorder, only check that the evented call still passes through.
+            NativeEvents.NATIVE_INVOCATIONS = true;
+            try
+            {
+                assertPassesThroughToNative(method);
+            }
+            finally
+            {
+                NativeEvents.NATIVE_INVOCATIONS = false;
+            }
+            assertPassesThroughToNative(method);
+            return;
+        }
+        // The JFR API is used reflectively, so that this test still compiles for Java 6.
+        Class<?> recordingType = Class.forName("jdk.jfr.Recording");
+        Class<?> pathType = Class.forName("java.nio.file.Path");
+        Object recording = recordingType.getConstructor().newInstance();
+        recordingType.getMethod("enable", String.class).invoke(recording, "org.synth.intercept.NativeInvocation");
+        recordingType.getMethod("enable", String.class).invoke(recording, "org.synth.intercept.HandlerDispatch");
+        File file = File.createTempFile("native-events", ".jfr");
+        List<?> events;
+        try
+        {
+            // Starting the recording switches both events on and relinks the handlers to trace them.
+            recordingType.getMethod("start").invoke(recording);
+            assertPassesThroughToNative(method);
+            NativeInterceptor.intercept(type, RESULT, false);
+            NativeInterceptor.intercept(primitiveType, RESULT, false);
+            method.invoke(null);
+            primitiveMethod.invoke(null);
+            recordingType.getMethod("stop").invoke(recording);
+            Object path = File.class.getMethod("toPath").invoke(file);
+            recordingType.getMethod("dump", pathType).invoke(recording, path);
+            events = (List<?>)Class.forName("jdk.jfr.consumer.RecordingFile").getMethod("readAllEvents", pathType).invoke(null, path);
+        }
+        finally
+        {
+            recordingType.getMethod("close").invoke(recording);
+            NativeInterceptor.intercept(type, null, false);
+            NativeInterceptor.intercept(primitiveType, null, false);
+            file.delete();
+        }
+        assertTrue("Native invocation without a handler should be published",
+                   hasEvent(events, "org.synth.intercept.NativeInvocation", type, "staticObject"));
+        assertTrue("Dispatch to a handler should be published",
+                   hasEvent(events, "org.synth.intercept.HandlerDispatch", type, "staticObject"));
+        assertTrue("Dispatch to a primitive handler should be published",
+                   hasEvent(events, "org.synth.intercept.HandlerDispatch", primitiveType, "staticObject"));
+        assertFalse("Native invocations should not be evented once the recording is closed", NativeEvents.NATIVE_INVOCATIONS);
+        assertPassesThroughToNative(method);
+    }
+
+    private static Class<?> loadEagerly(String name, DispatchMode mode) throws ClassNotFoundException
+    {
+        DispatchMode previous = NativeInterceptorAgent.getDispatchMode();
+        NativeInterceptorAgent.setEagerFilter(new GlobClassnameFilter(name));
+        NativeInterceptorAgent.setDispatchMode(mode);
+        try
+        {
+            // Loaded by name so that it is only loaded once the eager filter is set.
+            return Class.forName(name);
+        }
+        finally
+        {
+            NativeInterceptorAgent.setDispatchMode(previous);
+            NativeInterceptorAgent.setEagerFilter(null);
+        }
+    }
+
+    private static boolean hasEvent(List<?> events, String name, Class<?> declaringClass, String method) throws Exception
+    {
+        Class<?> eventType = Class.forName("jdk.jfr.consumer.RecordedEvent");
+        for (Object event : events)
+        {
+            Object type = eventType.getMethod("getEventType").invoke(event);
+            if (!name.equals(type.getClass().getMethod("getName").invoke(type)))
+                continue;
+            Object recordedClass = eventType.getMethod("getClass", String.class).invoke(event, "declaringClass");
+            if (declaringClass.getName().equals(recordedClass.getClass().getMethod("getName").invoke(recordedClass)) &&
+                method.equals(eventType.getMethod("getString", String.class).invoke(event, "method")))
+                return true;
+        }
+        return false;
+    }
+
+    public void testMeteringInvocations() throws Exception
+    {
+        assertTrue("Classes should not be metered by default", NativeMethodMetrics.snapshot(TestWrappingData.class).isEmpty());
+        NativeMethodMetrics.setEnabled(TestWrappingData.class, true);
+        try
+        {
+            TestWrappingData.staticObject();
+            TestWrappingData.staticObject();
+            RESULT.setToThrow(new UnsupportedOperationException());
+            try
+            {
+                TestWrappingData.staticObject();
+                fail("Exception should have been thrown");
+            }
+            catch (UnsupportedOperationException expected)
+            {
+            }
+            InvocationStatistics statistics = null;
+            for (InvocationStatistics method : NativeMethodMetrics.snapshot(TestWrappingData.class))
+                if (method.getMethod().indexOf(".staticObject()") != -1)
+                    statistics = method;
+            assertNotNull("Intercepted method should be metered", statistics);
+            assertEquals("Every invocation should be counted", 3, statistics.getInvocations());
+            assertEquals("Invocations that threw should be counted", 1, statistics.getErrors());
+            assertEquals("Only a sample of the invocations should be timed", 1, statistics.getTimedInvocations());
+            assertTrue("Percentiles should be ordered", statistics.getMedianNanos() <= statistics.getMaxNanos());
+            Object[] exposed = (Object[])ManagementFactory.getPlatformMBeanServer().getAttribute(
+                new ObjectName(NativeMethodMetrics.OBJECT_NAME), "Statistics");
+            assertEquals("Metrics should be exposed through JMX",
+                         NativeMethodMetrics.snapshot(TestWrappingData.class).size(), exposed.length);
+        }
+        finally
+        {
+            NativeMethodMetrics.setEnabled(TestWrappingData.class, false);
+        }
+        assertTrue("Metering should stop once disabled", NativeMethodMetrics.snapshot(TestWrappingData.class).isEmpty());
+    }
+
     public void testInterceptingStaticIntArray() throws Exception
     {
         int[] returnValue = new int[] { 1, 1, 2, 3, 5, 8, 13, 21 };
@@ -370,6 +684,7 @@ public class InterceptorTest extends TestCase
             this.method = null;
             this.args = null;
             this.returnValue = null;
+            this.toThrow = null;
         }
         public boolean isInvoked()
         {
@@ -420,4 +735,23 @@ public class InterceptorTest extends TestCase
             this.toThrow = toThrow;
         }
     }
-}
\ No newline at end of file
+
+    public static class InheritingData extends TestWrappingData
+    {
+    }
+
+    public static class EagerData
+    {
+        public static native Object staticObject();
+    }
+
+    public static class EventData
+    {
+        public static native Object staticObject();
+    }
+
+    public static class PrimitiveEventData
+    {
+        public static native Object staticObject();
+    }
+}